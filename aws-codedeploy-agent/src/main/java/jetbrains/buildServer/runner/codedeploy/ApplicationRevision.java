@@ -13,6 +13,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -54,6 +55,26 @@ class ApplicationRevision {
     return readyRevisionPath == null ? packZip() : FileUtil.resolvePath(myBaseDir, readyRevisionPath);
   }
 
+  /**
+   * Archives matched by the revision paths for uploading them as is, files of unsupported bundle types are skipped
+   */
+  @NotNull
+  static List<File> getReadyArchives(@NotNull String paths, @NotNull File baseDir) throws CodeDeployRunner.CodeDeployRunnerException {
+    final String readyRevisionPath = CodeDeployUtil.getReadyRevision(paths);
+    final List<File> files = readyRevisionPath == null ?
+      new ArrayList<File>(new PathMappings(baseDir, CodeDeployUtil.getRevisionPathMappings(paths)).collectFiles()) :
+      Collections.singletonList(FileUtil.resolvePath(baseDir, readyRevisionPath));
+
+    final List<File> archives = new ArrayList<File>();
+    for (File f : files) {
+      if (f.isFile() && CodeDeployUtil.getBundleType(f.getName()) != null) archives.add(f);
+    }
+    if (archives.isEmpty()) {
+      throw new CodeDeployRunner.CodeDeployRunnerException("No " + CodeDeployConstants.REVISION_PATHS_LABEL.toLowerCase() + " archives found, supported bundle types are .zip, .tar and .tar.gz", null);
+    }
+    return archives;
+  }
+
   @NotNull
   private File packZip() throws CodeDeployRunner.CodeDeployRunnerException {
     final List<File> files = new ArrayList<File>(myPathMappings.collectFiles());
@@ -118,6 +139,9 @@ class ApplicationRevision {
       byte[] buffer = new byte[64 * 1024];
 
       for (File f : files) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new CodeDeployRunner.CodeDeployRunnerException("Packaging application revision " + destZip + " interrupted", null);
+        }
 
         final ZipEntry zipEntry = new ZipEntry(getZipPath(f));
         zipEntry.setTime(f.lastModified());
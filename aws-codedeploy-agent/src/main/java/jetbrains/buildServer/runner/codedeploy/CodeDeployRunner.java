@@ -7,13 +7,19 @@ import com.amazonaws.services.s3.AmazonS3;
 import jetbrains.buildServer.RunBuildException;
 import jetbrains.buildServer.agent.*;
 import jetbrains.buildServer.messages.ErrorData;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
 import jetbrains.buildServer.util.amazon.AWSClients;
+import jetbrains.buildServer.util.amazon.AWSException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
 
 import static jetbrains.buildServer.runner.codedeploy.CodeDeployConstants.*;
 import static jetbrains.buildServer.runner.codedeploy.CodeDeployUtil.*;
@@ -25,10 +31,46 @@ import static jetbrains.buildServer.util.amazon.AWSCommonParams.*;
  * @author vbedrosova
  */
 public class CodeDeployRunner implements AgentBuildRunner {
+  private static final int DEPLOYMENT_THREADS = 8;
+
+  @NotNull
+  private static final ExecutorService ourDeploymentExecutor = new ThreadPoolExecutor(DEPLOYMENT_THREADS, DEPLOYMENT_THREADS, 60, TimeUnit.SECONDS,
+    new LinkedBlockingQueue<Runnable>(), new NamedDaemonThreadFactory("CodeDeploy deployment creation"));
+
+  static {
+    ((ThreadPoolExecutor) ourDeploymentExecutor).allowCoreThreadTimeOut(true);
+  }
+
+  @NotNull
+  private final S3BucketRegionResolver myRegionResolver;
+
+  public CodeDeployRunner(@NotNull BuildAgentConfiguration agentConfiguration) {
+    myRegionResolver = new S3BucketRegionResolver(agentConfiguration.getCacheDirectory(RUNNER_TYPE));
+  }
+
   @NotNull
   @Override
   public BuildProcess createBuildProcess(@NotNull final AgentRunningBuild runningBuild, @NotNull final BuildRunnerContext context) throws RunBuildException {
     return new SyncBuildProcessAdapter() {
+      @Nullable
+      private volatile FutureTask<File> myPackaging;
+      @Nullable
+      private volatile AWSClient myAWSClient;
+      @NotNull
+      private final List<GroupDeployment> myConcurrentTasks = new CopyOnWriteArrayList<GroupDeployment>();
+
+      @Override
+      protected void interruptImpl() {
+        final FutureTask<File> packaging = myPackaging;
+        if (packaging != null) packaging.cancel(true);
+        final AWSClient awsClient = myAWSClient;
+        if (awsClient != null) awsClient.abortUpload();
+        for (GroupDeployment task : myConcurrentTasks) {
+          final AWSClient taskClient = task.myAWSClient;
+          if (taskClient != null) taskClient.abortUpload();
+        }
+      }
+
       @NotNull
       @Override
       protected BuildFinishedStatus runImpl() throws RunBuildException {
@@ -41,73 +83,549 @@ public class CodeDeployRunner implements AgentBuildRunner {
         m.s3ObjectVersion = nullIfEmpty(configParameters.get(S3_OBJECT_VERSION_CONFIG_PARAM));
         m.s3ObjectETag = nullIfEmpty(configParameters.get(S3_OBJECT_ETAG_CONFIG_PARAM));
 
-        return withAWSClients(runnerParameters, new WithAWSClients<BuildFinishedStatus, CodeDeployRunnerException>() {
-          @Nullable
-          @Override
-          public BuildFinishedStatus run(@NotNull AWSClients clients) throws CodeDeployRunnerException {
-            final AWSClient awsClient = createAWSClient(clients.createS3Client(), clients.createCodeDeployClient(), runningBuild).withListener(
-              new ServiceMessageLoggingDeploymentListener(runnerParameters, runningBuild.getCheckoutDirectory().getAbsolutePath()) {
-                @Override
-                protected void problem(int identity, @NotNull String type, @NotNull String descr) {
-                  super.problem(identity, type, descr);
-                  m.problemOccurred = true;
+        // packaging runs concurrently with credentials acquisition and pre-flight checks
+        final FutureTask<File> packaging = startPackaging(runnerParameters, configParameters);
+        myPackaging = packaging;
+
+        try {
+          return withAWSClients(runnerParameters, new WithAWSClients<BuildFinishedStatus, CodeDeployRunnerException>() {
+            @Nullable
+            private AmazonS3 myBucketRegionS3Client;
+
+            @Nullable
+            @Override
+            public BuildFinishedStatus run(@NotNull AWSClients clients) throws CodeDeployRunnerException {
+              final String s3BucketName = getS3BucketName(runnerParameters);
+              final String scope = CodeDeployMetadataCache.getScope(runnerParameters);
+              final ServiceMessageLoggingDeploymentListener listener = new ServiceMessageLoggingDeploymentListener(runnerParameters, runningBuild.getCheckoutDirectory().getAbsolutePath()) {
+                  @Override
+                  protected void problem(int identity, @NotNull String type, @NotNull String descr) {
+                    super.problem(identity, type, descr);
+                    m.problemOccurred = true;
+                  }
+
+                  @Override
+                  void uploadRevisionFinished(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {
+                    super.uploadRevisionFinished(revision, s3BucketName, s3ObjectKey, s3ObjectVersion, s3ObjectETag, url);
+                    m.s3ObjectVersion = s3ObjectVersion;
+                    m.s3ObjectETag = s3ObjectETag;
+                  }
+
+                  @Override
+                  void copyRevisionFinished(@NotNull String sourceBucketName, @NotNull String sourceObjectKey, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {
+                    super.copyRevisionFinished(sourceBucketName, sourceObjectKey, s3BucketName, s3ObjectKey, s3ObjectVersion, s3ObjectETag, url);
+                    m.s3ObjectVersion = s3ObjectVersion;
+                    m.s3ObjectETag = s3ObjectETag;
+                  }
+
+                  @Override
+                  void createDeploymentFinished(@NotNull String applicationName, @NotNull String deploymentGroupName, @Nullable String deploymentConfigName, @NotNull String deploymentId) {
+                    super.createDeploymentFinished(applicationName, deploymentGroupName, deploymentConfigName, deploymentId);
+                    m.deploymentId = deploymentId;
+                  }
+
+                  @Override
+                  protected void log(@NotNull String message) {
+                    runningBuild.getBuildLogger().message(message);
+                  }
+                };
+              final AmazonS3 s3Client = myRegionResolver.createS3Client(clients, runnerParameters, s3BucketName);
+              final AWSClient awsClient = createAWSClient(s3Client, clients.createCodeDeployClient(), runningBuild).withParallelUpload(isParallelUpload(runnerParameters)).withMetadataCache(scope).withRateLimit(scope).withListener(listener);
+
+              myAWSClient = awsClient;
+              try {
+                if (isBulkUpload(runnerParameters)) return uploadArchives(clients, awsClient, s3Client, listener, "" + s3BucketName);
+                return runSteps(clients, awsClient, listener, s3BucketName);
+              } finally {
+                myAWSClient = null;
+              }
+            }
+
+            @NotNull
+            private BuildFinishedStatus runSteps(@NotNull AWSClients clients, @NotNull AWSClient awsClient, @NotNull ServiceMessageLoggingDeploymentListener listener,
+                                                 @Nullable String bucketName) throws CodeDeployRunnerException {
+              // rollback doesn't need the bucket, other steps can't be configured without it
+              if (isRollbackStepEnabled(runnerParameters)) return rollback(awsClient);
+              final String s3BucketName = "" + bucketName;
+              if (isMatrixDeployment(runnerParameters)) return deployMatrix(awsClient, listener, s3BucketName);
+
+              final boolean uploadStepEnabled = isUploadStepEnabled(runnerParameters);
+              final boolean registerStepEnabled = isRegisterStepEnabled(runnerParameters);
+              final boolean deployStepEnabled = isDeployStepEnabled(runnerParameters);
+
+              final String applicationName = getAppName(runnerParameters);
+              final String deploymentGroupName = getDeploymentGroupName(runnerParameters);
+              final String deploymentConfigName = nullIfEmpty(getDeploymentConfigName(runnerParameters));
+              final boolean fanOut = isFanOutDeployment(runnerParameters);
+              final RolloutPlan rolloutPlan = RolloutPlan.parse(runnerParameters);
+
+              if (!awsClient.checkPreconditions(
+                uploadStepEnabled ? s3BucketName : null,
+                registerStepEnabled || deployStepEnabled ? applicationName : null,
+                deployStepEnabled && !fanOut && rolloutPlan == null ? deploymentGroupName : null,
+                deployStepEnabled ? deploymentConfigName : null)) {
+                return BuildFinishedStatus.FINISHED_WITH_PROBLEMS;
+              }
+
+              if (deployStepEnabled && fanOut) checkBucketRegion(getDeploymentGroupParameters(runnerParameters), s3BucketName);
+              if (deployStepEnabled && rolloutPlan != null) {
+                for (RolloutPlan.Wave wave : rolloutPlan.getWaves()) checkBucketRegion(wave.getGroups(), s3BucketName);
+              }
+
+              String s3ObjectKey = getS3ObjectKey(runnerParameters);
+
+              final String revisionS3Source = getRevisionS3Source(runnerParameters);
+              if (uploadStepEnabled && !isEmptyOrSpaces(revisionS3Source) && !m.problemOccurred && !isInterrupted()) {
+                final String sourceObjectKey = "" + getS3SourceKey(revisionS3Source);
+
+                if (isEmptyOrSpaces(s3ObjectKey)) {
+                  s3ObjectKey = sourceObjectKey.substring(sourceObjectKey.lastIndexOf('/') + 1);
                 }
 
-                @Override
-                void uploadRevisionFinished(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {
-                  super.uploadRevisionFinished(revision, s3BucketName, s3ObjectKey, s3ObjectVersion, s3ObjectETag, url);
-                  m.s3ObjectVersion = s3ObjectVersion;
-                  m.s3ObjectETag = s3ObjectETag;
+                final String sourceBucketName = "" + getS3SourceBucket(revisionS3Source);
+                listener.retryOnWrongRegion();
+                awsClient.copyRevision(sourceBucketName, sourceObjectKey, s3BucketName, s3ObjectKey);
+                if (listener.takeWrongRegion() && !isInterrupted()) {
+                  createBucketRegionClient(clients, listener, s3BucketName).copyRevision(sourceBucketName, sourceObjectKey, s3BucketName, s3ObjectKey);
                 }
+              } else if (packaging != null && !m.problemOccurred && !isInterrupted()) {
+                final File readyRevision = waitForArchive(packaging);
+                if (readyRevision == null) return BuildFinishedStatus.INTERRUPTED;
 
-                @Override
-                protected void log(@NotNull String message) {
-                  runningBuild.getBuildLogger().message(message);
+                if (isEmptyOrSpaces(s3ObjectKey)) {
+                  s3ObjectKey = readyRevision.getName();
                 }
-              });
 
-            final String s3BucketName = getS3BucketName(runnerParameters);
-            String s3ObjectKey = getS3ObjectKey(runnerParameters);
+                listener.retryOnWrongRegion();
+                awsClient.uploadRevision(readyRevision, s3BucketName, s3ObjectKey);
+                if (listener.takeWrongRegion() && !isInterrupted()) {
+                  final AWSClient regionClient = createBucketRegionClient(clients, listener, s3BucketName);
+                  myAWSClient = regionClient;
+                  regionClient.uploadRevision(readyRevision, s3BucketName, s3ObjectKey);
+                }
+              }
 
-            if (isUploadStepEnabled(runnerParameters) && !m.problemOccurred && !isInterrupted()) {
-              final File readyRevision = new ApplicationRevision(
-                isEmptyOrSpaces(s3ObjectKey) ? runningBuild.getBuildTypeExternalId() : s3ObjectKey,
-                getRevisionPaths(runnerParameters),
-                context.getWorkingDirectory(), runningBuild.getBuildTempDirectory(),
-                configParameters.get(CUSTOM_APPSPEC_YML_CONFIG_PARAM),
-                isRegisterStepEnabled(runnerParameters) || isDeployStepEnabled(runnerParameters)).withLogger(runningBuild.getBuildLogger()).getArchive();
+              final String bundleType = "" + getBundleType(s3ObjectKey);
 
-              if (isEmptyOrSpaces(s3ObjectKey)) {
-                s3ObjectKey = readyRevision.getName();
+              if (registerStepEnabled && !m.problemOccurred && !isInterrupted()) {
+                awsClient.registerRevision(s3BucketName, s3ObjectKey, bundleType, m.s3ObjectVersion, m.s3ObjectETag, applicationName);
               }
 
-              awsClient.uploadRevision(readyRevision, s3BucketName, s3ObjectKey);
+              if (deployStepEnabled && !m.problemOccurred && !isInterrupted() && rolloutPlan != null) {
+                awsClient.requestRollout(s3BucketName, s3ObjectKey, applicationName, rolloutPlan);
+                return BuildFinishedStatus.FINISHED_DETACHED;
+              }
+
+              if (deployStepEnabled && !m.problemOccurred && !isInterrupted() && isCoordinatedDeployment(runnerParameters)) {
+                awsClient.requestDeployment(s3BucketName, s3ObjectKey, applicationName, deploymentGroupName);
+                return BuildFinishedStatus.FINISHED_DETACHED;
+              }
+
+              if (deployStepEnabled && !m.problemOccurred && !isInterrupted() && fanOut) {
+                return deployToGroups(listener, getDeploymentGroupParameters(runnerParameters), s3BucketName, s3ObjectKey, bundleType, applicationName, deploymentConfigName);
+              }
+
+              if (deployStepEnabled && !m.problemOccurred && !isInterrupted()) {
+                awsClient.deployRevision(
+                  s3BucketName, s3ObjectKey, bundleType, m.s3ObjectVersion, m.s3ObjectETag,
+                  applicationName, deploymentGroupName,
+                  getEC2Tags(runnerParameters), getAutoScalingGroups(runnerParameters),
+                  deploymentConfigName,
+                  Boolean.parseBoolean(getRollbackOnFailure(runnerParameters)),
+                  Boolean.parseBoolean(getRollbackOnAlarmThreshold(runnerParameters)),
+                  getFileExistsBehavior(runnerParameters));
+                if (isInterrupted() && m.deploymentId != null) {
+                  // interrupted before the build got detached, nobody is going to wait for this deployment
+                  awsClient.stopInterruptedDeployment(m.deploymentId);
+                  return BuildFinishedStatus.INTERRUPTED;
+                }
+                return m.problemOccurred ? BuildFinishedStatus.FINISHED_WITH_PROBLEMS : BuildFinishedStatus.FINISHED_DETACHED;
+              }
+              return m.problemOccurred ? BuildFinishedStatus.FINISHED_WITH_PROBLEMS : BuildFinishedStatus.FINISHED_SUCCESS;
             }
 
-            final String applicationName = getAppName(runnerParameters);
-            final String bundleType = "" + getBundleType(s3ObjectKey);
+            /**
+             * Uploads every archive matched by the revision paths as is, concurrently on the shared worker pool.
+             * Archive keys, versions and ETags are published as indexed build parameters once all the archives are uploaded
+             */
+            @NotNull
+            private BuildFinishedStatus uploadArchives(@NotNull final AWSClients clients, @NotNull AWSClient awsClient, @NotNull AmazonS3 s3Client,
+                                                       @NotNull LoggingDeploymentListener listener, @NotNull final String s3BucketName) throws CodeDeployRunnerException {
+              if (!awsClient.checkPreconditions(s3BucketName, null, null, null)) {
+                return BuildFinishedStatus.FINISHED_WITH_PROBLEMS;
+              }
+
+              final String s3ObjectKeyTemplate = "" + getS3ObjectKeyTemplate(runnerParameters);
+              final Map<String, File> archives = new LinkedHashMap<String, File>();
+              for (File archive : ApplicationRevision.getReadyArchives("" + getRevisionPaths(runnerParameters), context.getWorkingDirectory())) {
+                final String s3ObjectKey = getBulkS3ObjectKey(s3ObjectKeyTemplate, archive.getName());
+                final File sameKeyArchive = archives.put(s3ObjectKey, archive);
+                if (sameKeyArchive != null) {
+                  throw new CodeDeployRunnerException("Application revision archives " + sameKeyArchive + " and " + archive + " have the same S3 object key " + s3ObjectKey, null);
+                }
+              }
+
+              final AmazonCodeDeployClient codeDeployClient = clients.createCodeDeployClient();
+              final List<String> s3ObjectKeys = new ArrayList<String>();
+              final List<GroupDeployment> uploads = new ArrayList<GroupDeployment>();
+              final List<Future<?>> futures = new ArrayList<Future<?>>();
+              for (final Map.Entry<String, File> archive : archives.entrySet()) {
+                final GroupDeployment upload = new GroupDeployment(runnerParameters, runningBuild.getCheckoutDirectory().getAbsolutePath());
+                upload.retryOnWrongRegion();
+                final AWSClient uploadClient = createAWSClient(s3Client, codeDeployClient, runningBuild).withParallelUpload(isParallelUpload(runnerParameters)).withListener(upload);
+                upload.myAWSClient = uploadClient;
+                s3ObjectKeys.add(archive.getKey());
+                uploads.add(upload);
+                myConcurrentTasks.add(upload);
+                futures.add(ourDeploymentExecutor.submit(new Runnable() {
+                  @Override
+                  public void run() {
+                    if (isInterrupted()) return;
+                    uploadClient.uploadRevision(archive.getValue(), s3BucketName, archive.getKey());
+                    if (upload.takeWrongRegion() && !isInterrupted()) {
+                      final AWSClient regionClient = createBucketRegionClient(clients, upload, s3BucketName);
+                      upload.myAWSClient = regionClient;
+                      regionClient.uploadRevision(archive.getValue(), s3BucketName, archive.getKey());
+                    }
+                  }
+                }));
+              }
+
+              final BuildFinishedStatus status;
+              try {
+                status = awaitUploads(uploads, futures);
+              } finally {
+                myConcurrentTasks.clear();
+              }
+              if (status != BuildFinishedStatus.FINISHED_SUCCESS) return status;
 
-            if (CodeDeployUtil.isRegisterStepEnabled(runnerParameters) && !m.problemOccurred && !isInterrupted()) {
-              awsClient.registerRevision(s3BucketName, s3ObjectKey, bundleType, m.s3ObjectVersion, m.s3ObjectETag, applicationName);
+              for (int i = 0; i < uploads.size(); ++i) {
+                listener.archiveUploaded(i + 1, s3ObjectKeys.get(i), uploads.get(i).myS3ObjectVersion, uploads.get(i).myS3ObjectETag);
+              }
+              listener.archivesUploaded(s3BucketName, uploads.size());
+              return status;
             }
 
-            if (CodeDeployUtil.isDeployStepEnabled(runnerParameters) && !m.problemOccurred && !isInterrupted()) {
-              final String deploymentGroupName = getDeploymentGroupName(runnerParameters);
+            /**
+             * Creates client for the S3 bucket region resolved again, once S3 refused a request sent to the cached bucket region.
+             * The region is resolved once per step, so concurrent uploads share the S3 client
+             */
+            @NotNull
+            private AWSClient createBucketRegionClient(@NotNull AWSClients clients, @NotNull LoggingDeploymentListener listener, @NotNull String s3BucketName) {
+              AmazonS3 s3Client;
+              synchronized (this) {
+                s3Client = myBucketRegionS3Client;
+                if (s3Client == null) {
+                  myRegionResolver.invalidate(s3BucketName);
+                  myBucketRegionS3Client = s3Client = myRegionResolver.createS3Client(clients, runnerParameters, s3BucketName);
+                }
+              }
+              return createAWSClient(s3Client, clients.createCodeDeployClient(), runningBuild).withParallelUpload(isParallelUpload(runnerParameters)).withListener(listener);
+            }
+
+            /**
+             * Redeploys the revision of the last successful deployment to the group, nothing is packaged, uploaded or registered
+             */
+            @NotNull
+            private BuildFinishedStatus rollback(@NotNull AWSClient awsClient) {
+              final String applicationName = "" + getAppName(runnerParameters);
               final String deploymentConfigName = nullIfEmpty(getDeploymentConfigName(runnerParameters));
 
-              awsClient.deployRevision(
-                s3BucketName, s3ObjectKey, bundleType, m.s3ObjectVersion, m.s3ObjectETag,
-                applicationName, deploymentGroupName,
+              // the deployment group is looked up anyway
+              if (!awsClient.checkPreconditions(null, applicationName, null, deploymentConfigName)) {
+                return BuildFinishedStatus.FINISHED_WITH_PROBLEMS;
+              }
+
+              awsClient.rollbackRevision(
+                applicationName, "" + getDeploymentGroupName(runnerParameters),
                 getEC2Tags(runnerParameters), getAutoScalingGroups(runnerParameters),
                 deploymentConfigName,
                 Boolean.parseBoolean(getRollbackOnFailure(runnerParameters)),
                 Boolean.parseBoolean(getRollbackOnAlarmThreshold(runnerParameters)),
                 getFileExistsBehavior(runnerParameters));
+              if (isInterrupted() && m.deploymentId != null) {
+                // interrupted before the build got detached, nobody is going to wait for this deployment
+                awsClient.stopInterruptedDeployment(m.deploymentId);
+                return BuildFinishedStatus.INTERRUPTED;
+              }
               return m.problemOccurred ? BuildFinishedStatus.FINISHED_WITH_PROBLEMS : BuildFinishedStatus.FINISHED_DETACHED;
             }
-            return m.problemOccurred ? BuildFinishedStatus.FINISHED_WITH_PROBLEMS : BuildFinishedStatus.FINISHED_SUCCESS;
+
+            /**
+             * CodeDeploy deploys revisions only from S3 buckets in the deployment group region,
+             * groups of another region would fail to deploy the revision
+             */
+            private void checkBucketRegion(@NotNull List<Map<String, String>> deploymentGroups, @NotNull String s3BucketName) throws CodeDeployRunnerException {
+              final String bucketRegion = myRegionResolver.getCachedRegion(s3BucketName);
+              if (bucketRegion == null) return;
+
+              for (Map<String, String> groupParams : deploymentGroups) {
+                final String groupRegion = groupParams.get(REGION_NAME_PARAM);
+                if (!bucketRegion.equals(groupRegion)) {
+                  throw new CodeDeployRunnerException("Deployment group " + getDeploymentGroupName(groupParams) + " is in region " + groupRegion + ", but S3 bucket " + s3BucketName +
+                                                      " is in region " + bucketRegion + ", CodeDeploy deploys revisions only from S3 buckets in the deployment group region", null);
+                }
+              }
+            }
+
+            /**
+             * Creates deployments to several deployment groups concurrently, the groups may be in different regions.
+             * Group logs are printed in the groups order once all the deployments are created
+             */
+            @NotNull
+            private BuildFinishedStatus deployToGroups(@NotNull LoggingDeploymentListener listener, @NotNull List<Map<String, String>> deploymentGroups,
+                                                       @NotNull final String s3BucketName, @NotNull final String s3ObjectKey, @NotNull final String bundleType,
+                                                       @NotNull final String applicationName, @Nullable final String deploymentConfigName) throws CodeDeployRunnerException {
+              final List<GroupDeployment> deployments = new ArrayList<GroupDeployment>();
+              final List<Future<?>> futures = new ArrayList<Future<?>>();
+              for (final Map<String, String> groupParams : deploymentGroups) {
+                final GroupDeployment deployment = new GroupDeployment(groupParams, runningBuild.getCheckoutDirectory().getAbsolutePath());
+                deployments.add(deployment);
+                futures.add(ourDeploymentExecutor.submit(new Runnable() {
+                  @Override
+                  public void run() {
+                    try {
+                      withAWSClients(groupParams, new WithAWSClients<Void, RuntimeException>() {
+                        @Nullable
+                        @Override
+                        public Void run(@NotNull final AWSClients clients) {
+                          final String scope = CodeDeployMetadataCache.getScope(groupParams);
+                          // deployments don't call S3
+                          final AWSClient awsClient = createAWSClient(new AWSClient.S3ClientProvider() {
+                            @NotNull
+                            @Override
+                            public AmazonS3 getS3Client() {
+                              return clients.createS3Client();
+                            }
+                          }, clients.createCodeDeployClient(), runningBuild).withMetadataCache(scope).withRateLimit(scope).withListener(deployment);
+                          deployment.myAWSClient = awsClient;
+                          awsClient.deployRevision(
+                            s3BucketName, s3ObjectKey, bundleType, m.s3ObjectVersion, m.s3ObjectETag,
+                            applicationName, "" + getDeploymentGroupName(groupParams),
+                            getEC2Tags(groupParams), getAutoScalingGroups(groupParams),
+                            deploymentConfigName,
+                            Boolean.parseBoolean(getRollbackOnFailure(groupParams)),
+                            Boolean.parseBoolean(getRollbackOnAlarmThreshold(groupParams)),
+                            getFileExistsBehavior(groupParams));
+                          return null;
+                        }
+                      });
+                    } catch (Throwable t) {
+                      deployment.exception(new AWSException(t));
+                    }
+                  }
+                }));
+              }
+
+              return awaitDeployments(listener, deployments, futures, true);
+            }
+
+            /**
+             * Packages, uploads, registers and deploys the matrix revisions concurrently on the shared worker pool.
+             * Entry logs are printed in the matrix order once all the entries are processed
+             */
+            @NotNull
+            private BuildFinishedStatus deployMatrix(@NotNull AWSClient awsClient, @NotNull LoggingDeploymentListener listener, @NotNull final String s3BucketName) throws CodeDeployRunnerException {
+              final boolean uploadStepEnabled = isUploadStepEnabled(runnerParameters);
+              final boolean deployStepEnabled = isDeployStepEnabled(runnerParameters);
+              final String deploymentConfigName = nullIfEmpty(getDeploymentConfigName(runnerParameters));
+
+              // applications and deployment groups are looked up by the entries
+              if (!awsClient.checkPreconditions(uploadStepEnabled ? s3BucketName : null, null, null, deployStepEnabled ? deploymentConfigName : null)) {
+                return BuildFinishedStatus.FINISHED_WITH_PROBLEMS;
+              }
+
+              final DeploymentMatrix matrix = DeploymentMatrix.parse(runnerParameters);
+              assert matrix != null;
+
+              final List<GroupDeployment> entries = new ArrayList<GroupDeployment>();
+              final List<Future<?>> futures = new ArrayList<Future<?>>();
+              for (int i = 0; i < matrix.getEntries().size(); ++i) {
+                final Map<String, String> entryParams = matrix.getEntries().get(i);
+                // entries may share the custom appspec.yml name
+                final File tempDir = new File(runningBuild.getBuildTempDirectory(), "codedeploy-matrix-" + (i + 1));
+                final GroupDeployment entry = new GroupDeployment(entryParams, runningBuild.getCheckoutDirectory().getAbsolutePath());
+                entries.add(entry);
+                myConcurrentTasks.add(entry);
+                futures.add(ourDeploymentExecutor.submit(new Runnable() {
+                  @Override
+                  public void run() {
+                    try {
+                      withAWSClients(entryParams, new WithAWSClients<Void, CodeDeployRunnerException>() {
+                        @Nullable
+                        @Override
+                        public Void run(@NotNull AWSClients clients) throws CodeDeployRunnerException {
+                          final String scope = CodeDeployMetadataCache.getScope(entryParams);
+                          final AWSClient entryClient = createAWSClient(myRegionResolver.createS3Client(clients, entryParams, s3BucketName), clients.createCodeDeployClient(), runningBuild)
+                            .withParallelUpload(isParallelUpload(entryParams)).withMetadataCache(scope).withRateLimit(scope).withListener(entry);
+                          entry.myAWSClient = entryClient;
+                          deployMatrixEntry(entryClient, entry, entryParams, s3BucketName, tempDir, deploymentConfigName);
+                          return null;
+                        }
+                      });
+                    } catch (Throwable t) {
+                      entry.exception(new AWSException(t));
+                    }
+                  }
+                }));
+              }
+
+              try {
+                return awaitDeployments(listener, entries, futures, deployStepEnabled);
+              } finally {
+                myConcurrentTasks.clear();
+              }
+            }
+
+            private void deployMatrixEntry(@NotNull AWSClient awsClient, @NotNull GroupDeployment entry, @NotNull Map<String, String> entryParams,
+                                           @NotNull String s3BucketName, @NotNull File tempDir, @Nullable String deploymentConfigName) throws CodeDeployRunnerException {
+              final boolean registerStepEnabled = isRegisterStepEnabled(entryParams);
+              final boolean deployStepEnabled = isDeployStepEnabled(entryParams);
+              final String s3ObjectKey = "" + getS3ObjectKey(entryParams);
+              final String applicationName = "" + getAppName(entryParams);
+
+              if (isUploadStepEnabled(entryParams) && !isInterrupted()) {
+                //noinspection ResultOfMethodCallIgnored
+                tempDir.mkdirs();
+                final File revision = new ApplicationRevision(s3ObjectKey, "" + getRevisionPaths(entryParams),
+                  context.getWorkingDirectory(), tempDir,
+                  configParameters.get(CUSTOM_APPSPEC_YML_CONFIG_PARAM),
+                  registerStepEnabled || deployStepEnabled).getArchive();
+                if (!isInterrupted()) awsClient.uploadRevision(revision, s3BucketName, s3ObjectKey);
+              }
+
+              final String bundleType = "" + getBundleType(s3ObjectKey);
+
+              if (registerStepEnabled && !entry.myProblemOccurred && !isInterrupted()) {
+                awsClient.registerRevision(s3BucketName, s3ObjectKey, bundleType, entry.myS3ObjectVersion, entry.myS3ObjectETag, applicationName);
+              }
+
+              if (deployStepEnabled && !entry.myProblemOccurred && !isInterrupted()) {
+                awsClient.deployRevision(
+                  s3BucketName, s3ObjectKey, bundleType, entry.myS3ObjectVersion, entry.myS3ObjectETag,
+                  applicationName, "" + getDeploymentGroupName(entryParams),
+                  getEC2Tags(entryParams), getAutoScalingGroups(entryParams),
+                  deploymentConfigName,
+                  Boolean.parseBoolean(getRollbackOnFailure(entryParams)),
+                  Boolean.parseBoolean(getRollbackOnAlarmThreshold(entryParams)),
+                  getFileExistsBehavior(entryParams));
+              }
+            }
+
+            /**
+             * Waits for the concurrent archive uploads and prints their logs in order
+             */
+            @NotNull
+            private BuildFinishedStatus awaitUploads(@NotNull List<GroupDeployment> uploads, @NotNull List<Future<?>> futures) throws CodeDeployRunnerException {
+              for (Future<?> future : futures) {
+                try {
+                  future.get();
+                } catch (InterruptedException e) {
+                  throw new CodeDeployRunnerException("Interrupted while uploading application revision archives", e);
+                } catch (ExecutionException e) {
+                  throw new CodeDeployRunnerException("Failed to upload application revision archives", e.getCause());
+                }
+              }
+
+              boolean problemOccurred = false;
+              for (GroupDeployment upload : uploads) {
+                upload.flush(runningBuild.getBuildLogger());
+                problemOccurred |= upload.myProblemOccurred;
+              }
+
+              if (isInterrupted()) return BuildFinishedStatus.INTERRUPTED;
+              return problemOccurred ? BuildFinishedStatus.FINISHED_WITH_PROBLEMS : BuildFinishedStatus.FINISHED_SUCCESS;
+            }
+
+            /**
+             * Waits for the concurrently processed deployments, prints their logs in order and detaches the build
+             * if the deployments are created
+             */
+            @NotNull
+            private BuildFinishedStatus awaitDeployments(@NotNull LoggingDeploymentListener listener, @NotNull List<GroupDeployment> deployments,
+                                                         @NotNull List<Future<?>> futures, boolean deployStepEnabled) throws CodeDeployRunnerException {
+              for (Future<?> future : futures) {
+                try {
+                  future.get();
+                } catch (InterruptedException e) {
+                  throw new CodeDeployRunnerException("Interrupted while creating deployments", e);
+                } catch (ExecutionException e) {
+                  throw new CodeDeployRunnerException("Failed to create deployments", e.getCause());
+                }
+              }
+
+              final List<String> deploymentIds = new ArrayList<String>();
+              boolean problemOccurred = false;
+              for (GroupDeployment deployment : deployments) {
+                final AWSClient awsClient = deployment.myAWSClient;
+                if (isInterrupted() && deployment.myDeploymentId != null && awsClient != null) {
+                  awsClient.stopInterruptedDeployment(deployment.myDeploymentId);
+                }
+                deployment.flush(runningBuild.getBuildLogger());
+                if (deployment.myDeploymentId != null) deploymentIds.add(deployment.myDeploymentId);
+                problemOccurred |= deployment.myProblemOccurred;
+              }
+
+              if (isInterrupted()) return BuildFinishedStatus.INTERRUPTED;
+              if (!deployStepEnabled) return problemOccurred ? BuildFinishedStatus.FINISHED_WITH_PROBLEMS : BuildFinishedStatus.FINISHED_SUCCESS;
+              if (deploymentIds.size() < deployments.size()) {
+                for (String id : deploymentIds) {
+                  runningBuild.getBuildLogger().warning("Deployment " + id + " keeps running, the build doesn't wait for it as not all the deployments were created");
+                }
+                return BuildFinishedStatus.FINISHED_WITH_PROBLEMS;
+              }
+              listener.deploymentsCreated(deploymentIds);
+              return BuildFinishedStatus.FINISHED_DETACHED;
+            }
+          });
+        } finally {
+          myPackaging = null;
+          if (packaging != null) packaging.cancel(true);
+        }
+      }
+
+      @Nullable
+      private FutureTask<File> startPackaging(@NotNull Map<String, String> runnerParameters, @NotNull Map<String, String> configParameters) {
+        if (!isUploadStepEnabled(runnerParameters) || !isEmptyOrSpaces(getRevisionS3Source(runnerParameters))) return null;
+        // matrix revisions are packaged by the matrix entries, archives uploaded in bulk are not packaged
+        if (isMatrixDeployment(runnerParameters) || isBulkUpload(runnerParameters)) return null;
+
+        final String s3ObjectKey = getS3ObjectKey(runnerParameters);
+        final ApplicationRevision revision = new ApplicationRevision(
+          isEmptyOrSpaces(s3ObjectKey) ? runningBuild.getBuildTypeExternalId() : s3ObjectKey,
+          getRevisionPaths(runnerParameters),
+          context.getWorkingDirectory(), runningBuild.getBuildTempDirectory(),
+          configParameters.get(CUSTOM_APPSPEC_YML_CONFIG_PARAM),
+          isRegisterStepEnabled(runnerParameters) || isDeployStepEnabled(runnerParameters)).withLogger(runningBuild.getBuildLogger());
+
+        final FutureTask<File> packaging = new FutureTask<File>(new Callable<File>() {
+          @Override
+          public File call() throws Exception {
+            return revision.getArchive();
           }
         });
+        final Thread thread = new Thread(packaging, "CodeDeploy revision packaging for build " + runningBuild.getBuildId());
+        thread.setDaemon(true);
+        thread.start();
+        return packaging;
+      }
+
+      /**
+       * @return null if packaging was cancelled because the build is interrupted
+       */
+      @Nullable
+      private File waitForArchive(@NotNull FutureTask<File> packaging) throws CodeDeployRunnerException {
+        try {
+          return packaging.get();
+        } catch (CancellationException e) {
+          return null;
+        } catch (ExecutionException e) {
+          final Throwable cause = e.getCause();
+          if (cause instanceof CodeDeployRunnerException) throw (CodeDeployRunnerException) cause;
+          throw new CodeDeployRunnerException("Failed to package application revision", cause);
+        } catch (InterruptedException e) {
+          throw new CodeDeployRunnerException("Interrupted while packaging application revision", e);
+        }
       }
 
       @NotNull
@@ -146,7 +664,17 @@ public class CodeDeployRunner implements AgentBuildRunner {
 
   @NotNull
   private AWSClient createAWSClient(@NotNull final AmazonS3 s3Client, @NotNull final AmazonCodeDeployClient codeDeployClient, @NotNull final AgentRunningBuild runningBuild) {
-    return new AWSClient(s3Client, codeDeployClient).withDescription("TeamCity build \"" + runningBuild.getBuildTypeName() + "\" #" + runningBuild.getBuildNumber());
+    return new AWSClient(s3Client, codeDeployClient).withDescription(getDescription(runningBuild));
+  }
+
+  @NotNull
+  private AWSClient createAWSClient(@NotNull AWSClient.S3ClientProvider s3ClientProvider, @NotNull AmazonCodeDeployClient codeDeployClient, @NotNull AgentRunningBuild runningBuild) {
+    return new AWSClient(s3ClientProvider, codeDeployClient).withDescription(getDescription(runningBuild));
+  }
+
+  @NotNull
+  private static String getDescription(@NotNull AgentRunningBuild runningBuild) {
+    return "TeamCity build \"" + runningBuild.getBuildTypeName() + "\" #" + runningBuild.getBuildNumber();
   }
 
   static class CodeDeployRunnerException extends RunBuildException {
@@ -156,6 +684,57 @@ public class CodeDeployRunner implements AgentBuildRunner {
     }
   }
 
+  /**
+   * Deployment to one of several deployment groups of the step or a deployment matrix entry, processed concurrently
+   * with the others so its log is buffered
+   */
+  private static final class GroupDeployment extends ServiceMessageLoggingDeploymentListener {
+    @NotNull
+    private final List<String> myMessages = new ArrayList<String>();
+    @Nullable
+    private volatile AWSClient myAWSClient;
+    @Nullable
+    private volatile String myDeploymentId;
+    @Nullable
+    private volatile String myS3ObjectVersion;
+    @Nullable
+    private volatile String myS3ObjectETag;
+    private volatile boolean myProblemOccurred;
+
+    private GroupDeployment(@NotNull Map<String, String> runnerParameters, @Nullable String checkoutDir) {
+      super(runnerParameters, checkoutDir);
+    }
+
+    @Override
+    protected void problem(int identity, @NotNull String type, @NotNull String descr) {
+      super.problem(identity, type, descr);
+      myProblemOccurred = true;
+    }
+
+    @Override
+    void uploadRevisionFinished(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {
+      super.uploadRevisionFinished(revision, s3BucketName, s3ObjectKey, s3ObjectVersion, s3ObjectETag, url);
+      myS3ObjectVersion = s3ObjectVersion;
+      myS3ObjectETag = s3ObjectETag;
+    }
+
+    @Override
+    void createDeploymentFinished(@NotNull String applicationName, @NotNull String deploymentGroupName, @Nullable String deploymentConfigName, @NotNull String deploymentId) {
+      super.createDeploymentFinished(applicationName, deploymentGroupName, deploymentConfigName, deploymentId);
+      myDeploymentId = deploymentId;
+    }
+
+    @Override
+    protected synchronized void log(@NotNull String message) {
+      myMessages.add(message);
+    }
+
+    synchronized void flush(@NotNull BuildProgressLogger logger) {
+      for (String message : myMessages) logger.message(message);
+      myMessages.clear();
+    }
+  }
+
   private class Mutable {
     public Mutable(@NotNull Map<String, String> configParameters) {
       problemOccurred = false;
@@ -165,5 +744,6 @@ public class CodeDeployRunner implements AgentBuildRunner {
     boolean problemOccurred;
     String s3ObjectVersion;
     String s3ObjectETag;
+    String deploymentId;
   }
 }
\ No newline at end of file
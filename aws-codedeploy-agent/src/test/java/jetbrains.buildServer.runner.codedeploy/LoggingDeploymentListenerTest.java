@@ -10,7 +10,9 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Map;
 
 /**
  * @author vbedrosova
@@ -95,6 +97,56 @@ public class LoggingDeploymentListenerTest extends LoggingTestCase {
     assertLog("PROGRESS Deployment ID-123XYZ finished, 5 instances succeeded");
   }
 
+  @Test
+  public void deployment_progress_unchanged() throws Exception {
+    final LoggingDeploymentListener listener = create();
+    listener.deploymentInProgress(FAKE_ID, createStatus("in progress", 2, 1, 0, 0, 0));
+    listener.deploymentInProgress(FAKE_ID, createStatus("in progress", 2, 1, 0, 0, 0));
+    listener.deploymentInProgress(FAKE_ID, createStatus("in progress", 2, 1, 0, 0, 0));
+    assertLog("PROGRESS Deployment ID-123XYZ in progress, 0 instances succeeded, 2 pending, 1 in progress");
+  }
+
+  @Test
+  public void deployment_progress_delta() throws Exception {
+    final LoggingDeploymentListener listener = create();
+    listener.deploymentInProgress(FAKE_ID, createStatus("queued", 5, 0, 0, 0, 0));
+    listener.deploymentInProgress(FAKE_ID, createStatus("in progress", 4, 1, 0, 0, 0));
+    listener.deploymentInProgress(FAKE_ID, createStatus("in progress", 0, 1, 3, 1, 0));
+    assertLog(
+      "PROGRESS Deployment ID-123XYZ queued, 0 instances succeeded, 5 pending",
+      "PROGRESS Deployment ID-123XYZ in progress, 0 instances succeeded, 4 pending, 1 in progress",
+      "LOG Deployment ID-123XYZ: in progress",
+      "PROGRESS Deployment ID-123XYZ in progress, 3 instances succeeded, 1 failed, 1 in progress",
+      "LOG Deployment ID-123XYZ: +3 succeeded, 1 new failure");
+  }
+
+  @Test
+  public void deployment_progress_restored() throws Exception {
+    final LoggingDeploymentListener listener = create();
+    listener.restoreInProgress(FAKE_ID, createStatus("in progress", 4, 1, 0, 0, 0));
+    listener.deploymentInProgress(FAKE_ID, createStatus("in progress", 4, 1, 0, 0, 0));
+    listener.deploymentInProgress(FAKE_ID, createStatus("in progress", 2, 1, 2, 0, 0));
+    assertLog(
+      "PROGRESS Deployment ID-123XYZ in progress, 2 instances succeeded, 2 pending, 1 in progress",
+      "LOG Deployment ID-123XYZ: +2 succeeded");
+  }
+
+  @Test
+  public void deployment_target_updated() throws Exception {
+    final AWSClient.Listener.DeploymentTargetStatus target = new AWSClient.Listener.DeploymentTargetStatus();
+    target.id = "i-0123";
+    target.status = "InProgress";
+    target.events.add(createEvent("BeforeInstall", "Succeeded", 12300L));
+    target.events.add(createEvent("Install", "InProgress", null));
+
+    create().deploymentTargetUpdated(FAKE_ID, target);
+    assertLog(
+      "OPEN target i-0123",
+      "LOG BeforeInstall succeeded in 12 sec",
+      "LOG Install in progress",
+      "CLOSE target i-0123");
+  }
+
   @Test
   public void deployment_succeeded_short() throws Exception {
     create().deploymentSucceeded(FAKE_ID, createStatus("finished", 0, 0, 5, 0, 0));
@@ -129,6 +181,96 @@ public class LoggingDeploymentListenerTest extends LoggingTestCase {
       "PROBLEM identity: -116108899 type: CODEDEPLOY_TIMEOUT descr: Timeout 2400 sec exceeded, deployment " + FAKE_ID + " failed, 0 instances succeeded, 1 failed, 1 pending, 1 in progress: Some error message");
   }
 
+  @Test
+  public void deployment_stopped() throws Exception {
+    create().deploymentStopped(FAKE_ID, "timeout 2400 sec exceeded");
+    assertLog("LOG Deployment " + FAKE_ID + " stopped: timeout 2400 sec exceeded");
+  }
+
+  @Test
+  public void deployment_requested() throws Exception {
+    create().deploymentRequested("App Name", "Deployment Fleet", "bucketName", "path/key.zip");
+    assertLog(
+      "PARAM " + CodeDeployConstants.S3_OBJECT_KEY_CONFIG_PARAM + " -> path/key.zip",
+      "PARAM " + CodeDeployConstants.DEPLOYMENT_REQUESTED_BUILD_CONFIG_PARAM + " -> true",
+      "LOG Requested application App Name deployment to deployment group Deployment Fleet, TeamCity server will create it once previous deployments to the group finish",
+      "STATUS_TEXT Deployment queued");
+  }
+
+  @Test
+  public void rollout_requested() throws Exception {
+    create().rolloutRequested("App Name", createRolloutPlan("canary\nFleet 1, Fleet 2 | 1"), "bucketName", "path/key.zip");
+    assertLog(
+      "PARAM " + CodeDeployConstants.S3_OBJECT_KEY_CONFIG_PARAM + " -> path/key.zip",
+      "PARAM " + CodeDeployConstants.ROLLOUT_REQUESTED_BUILD_CONFIG_PARAM + " -> true",
+      "LOG Requested application App Name rollout in 2 waves, TeamCity server will deploy the waves one after another",
+      "STATUS_TEXT Rollout requested");
+  }
+
+  @Test
+  public void rollout_wave_started() throws Exception {
+    final LoggingDeploymentListener listener = create();
+    listener.rolloutWaveStarted(2, 3, Arrays.asList("Fleet 1", "Fleet 2"));
+    listener.rolloutDeploymentCreated("Fleet 1", "d-2", Arrays.asList("d-1", "d-2"));
+    assertLog(
+      "PARAM " + CodeDeployConstants.ROLLOUT_WAVE_BUILD_CONFIG_PARAM + " -> 2",
+      "LOG Rollout wave 2 of 3: deploying to deployment groups Fleet 1, Fleet 2",
+      "STATUS_TEXT Rollout wave 2 of 3",
+      "PARAM " + CodeDeployConstants.DEPLOYMENT_IDS_BUILD_CONFIG_PARAM + " -> d-1,d-2",
+      "LOG Deployment d-2 to deployment group Fleet 1 created");
+  }
+
+  @Test
+  public void deployments_created() throws Exception {
+    create().deploymentsCreated(Arrays.asList("d-1", "d-2"));
+    assertLog(
+      "PARAM " + CodeDeployConstants.DEPLOYMENT_IDS_BUILD_CONFIG_PARAM + " -> d-1,d-2",
+      "STATUS_TEXT Created 2 deployments");
+  }
+
+  @Test
+  public void archives_uploaded() throws Exception {
+    final LoggingDeploymentListener listener = create();
+    listener.archiveUploaded(1, "build/web.zip", "v1", "e1");
+    listener.archiveUploaded(2, "build/api.zip", null, "e2");
+    listener.archivesUploaded("bucketName", 2);
+    assertLog(
+      "PARAM " + CodeDeployConstants.S3_OBJECT_KEY_CONFIG_PARAM + ".1 -> build/web.zip",
+      "PARAM " + CodeDeployConstants.S3_OBJECT_VERSION_CONFIG_PARAM + ".1 -> v1",
+      "PARAM " + CodeDeployConstants.S3_OBJECT_ETAG_CONFIG_PARAM + ".1 -> e1",
+      "PARAM " + CodeDeployConstants.S3_OBJECT_KEY_CONFIG_PARAM + ".2 -> build/api.zip",
+      "PARAM " + CodeDeployConstants.S3_OBJECT_ETAG_CONFIG_PARAM + ".2 -> e2",
+      "PARAM " + CodeDeployConstants.S3_OBJECT_COUNT_CONFIG_PARAM + " -> 2",
+      "LOG Uploaded 2 application revision archives to S3 bucket bucketName",
+      "STATUS_TEXT Uploaded 2 application revision archives");
+  }
+
+  @Test
+  public void archive_uploaded_in_bulk() throws Exception {
+    final File revision = writeFile("web.zip");
+    final String url = "https://s3-eu-west-1.amazonaws.com/bucketName/build/web.zip";
+    final LoggingDeploymentListener listener = create(Collections.singletonMap(CodeDeployConstants.S3_OBJECT_KEY_TEMPLATE_PARAM, "build/{archive}"));
+    listener.uploadRevisionStarted(revision, "bucketName", "build/web.zip");
+    listener.uploadRevisionFinished(revision, "bucketName", "build/web.zip", "v1", "e1", url);
+    assertLog(
+      "OPEN " + LoggingDeploymentListener.UPLOAD_REVISION,
+      "LOG Uploading application revision ##BASE_DIR##/web.zip to S3 bucket bucketName using key build/web.zip",
+      "LOG Uploaded application revision " + url + "?versionId=v1&etag=e1",
+      "CLOSE " + LoggingDeploymentListener.UPLOAD_REVISION);
+  }
+
+  @Test
+  public void deployments_progress() throws Exception {
+    create().deploymentsProgress(1, 3, Arrays.asList(createStatus("succeeded", 0, 0, 3, 0, 0), createStatus("in progress", 2, 1, 1, 0, 0)));
+    assertLog("STATUS_TEXT Deployments 1 of 3 finished, 4 instances succeeded, 2 pending, 1 in progress");
+  }
+
+  @Test
+  public void deployment_status_unavailable() throws Exception {
+    create().deploymentStatusUnavailable(FAKE_ID, "status polling is suspended for 60 sec");
+    assertLog("LOG Deployment " + FAKE_ID + " status is unavailable: status polling is suspended for 60 sec");
+  }
+
   @Test
   public void deployment_failed() throws Exception {
     create().deploymentFailed(FAKE_ID, null, createError("abc", "Some error message"), createStatus("failed", 0, 0, 0, 2, 0));
@@ -139,6 +281,26 @@ public class LoggingDeploymentListenerTest extends LoggingTestCase {
       "PROBLEM identity: 448838431 type: CODEDEPLOY_FAILURE descr: deployment " + FAKE_ID + " failed, 0 instances succeeded, 2 failed: Some error message");
   }
 
+  @Test
+  public void deployment_failed_with_diagnostics() throws Exception {
+    final AWSClient.Listener.ErrorInfo errorInfo = createError("abc", "Some error message");
+    errorInfo.diagnostics.add(createDiagnostics("i-1", "ApplicationStart", "ScriptFailed", "scripts/start.sh", "Script at specified location: scripts/start.sh run as user root failed with exit code 1", "[stderr]port 8080 is in use"));
+    errorInfo.diagnostics.add(createDiagnostics("i-2", "ApplicationStart", "ScriptFailed", "scripts/start.sh", null, null));
+
+    create().deploymentFailed(FAKE_ID, null, errorInfo, createStatus("failed", 0, 0, 0, 2, 0));
+    assertLog(
+      "ERR deployment " + FAKE_ID + " failed, 0 instances succeeded, 2 failed, 0 pending, 0 skipped, 0 in progress",
+      "ERR Associated error: Some error message",
+      "ERR Error code: abc",
+      "OPEN failed targets",
+      "ERR target i-1 ApplicationStart failed with ScriptFailed in scripts/start.sh",
+      "ERR Message: Script at specified location: scripts/start.sh run as user root failed with exit code 1",
+      "LOG Log tail:\n[stderr]port 8080 is in use",
+      "ERR target i-2 ApplicationStart failed with ScriptFailed in scripts/start.sh",
+      "CLOSE failed targets",
+      "PROBLEM identity: 448838431 type: CODEDEPLOY_FAILURE descr: deployment " + FAKE_ID + " failed, 0 instances succeeded, 2 failed: Some error message; target i-1 ApplicationStart failed with ScriptFailed in scripts/start.sh and 1 more");
+  }
+
   @Test
   public void deployment_exception_type() throws Exception {
     create().exception(new AWSException("Some exception message", null, AWSException.EXCEPTION_BUILD_PROBLEM_TYPE, null));
@@ -190,6 +352,27 @@ public class LoggingDeploymentListenerTest extends LoggingTestCase {
     return new AWSClient.Listener.InstancesStatus();
   }
 
+  @NotNull
+  private AWSClient.Listener.LifecycleEventInfo createEvent(@NotNull String name, @NotNull String status, @Nullable Long durationMs) {
+    final AWSClient.Listener.LifecycleEventInfo event = new AWSClient.Listener.LifecycleEventInfo();
+    event.name = name;
+    event.status = status;
+    event.durationMs = durationMs;
+    return event;
+  }
+
+  @NotNull
+  private AWSClient.Listener.TargetDiagnostics createDiagnostics(@NotNull String targetId, @Nullable String event, @Nullable String code, @Nullable String script, @Nullable String message, @Nullable String logTail) {
+    final AWSClient.Listener.TargetDiagnostics diagnostics = new AWSClient.Listener.TargetDiagnostics();
+    diagnostics.targetId = targetId;
+    diagnostics.lifecycleEvent = event;
+    diagnostics.errorCode = code;
+    diagnostics.scriptName = script;
+    diagnostics.message = message;
+    diagnostics.logTail = logTail;
+    return diagnostics;
+  }
+
   @NotNull
   private AWSClient.Listener.ErrorInfo createError(@Nullable String code, @Nullable String message) {
     final AWSClient.Listener.ErrorInfo errorInfo = new AWSClient.Listener.ErrorInfo();
@@ -198,9 +381,21 @@ public class LoggingDeploymentListenerTest extends LoggingTestCase {
     return errorInfo;
   }
 
+  @NotNull
+  private RolloutPlan createRolloutPlan(@NotNull String plan) {
+    final RolloutPlan rolloutPlan = RolloutPlan.parse(Collections.singletonMap(CodeDeployConstants.ROLLOUT_PLAN_PARAM, plan));
+    assert rolloutPlan != null;
+    return rolloutPlan;
+  }
+
   @NotNull
   private LoggingDeploymentListener create() {
-    return new LoggingDeploymentListener(Collections.<String, String>emptyMap(),
+    return create(Collections.<String, String>emptyMap());
+  }
+
+  @NotNull
+  private LoggingDeploymentListener create(@NotNull Map<String, String> runnerParameters) {
+    return new LoggingDeploymentListener(runnerParameters,
       "fake_checkout_dir") {
       @Override
       protected void log(@NotNull String message) {
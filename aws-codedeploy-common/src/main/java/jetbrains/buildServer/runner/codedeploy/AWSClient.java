@@ -2,12 +2,17 @@
 
 package jetbrains.buildServer.runner.codedeploy;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.codedeploy.AmazonCodeDeployClient;
 import com.amazonaws.services.codedeploy.model.*;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.HeadBucketRequest;
+import com.amazonaws.services.s3.transfer.Copy;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.model.CopyResult;
 import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.Converter;
 import jetbrains.buildServer.util.StringUtil;
@@ -18,25 +23,46 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Date;
-import java.util.Map;
+import java.util.*;
 
 /**
  * @author vbedrosova
  */
 @SuppressWarnings("JavaDoc")
 public class AWSClient {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(AWSClient.class.getName());
+
+  static final int MAX_BATCH_SIZE = 25;
 
-  @NotNull private final AmazonS3 myS3Client;
+  @NotNull private final S3ClientProvider myS3ClientProvider;
   @NotNull private final AmazonCodeDeployClient myCodeDeployClient;
   @Nullable private String myDescription;
+  private boolean myParallelUpload;
+  @Nullable private String myMetadataScope;
   @NotNull private Listener myListener = new Listener();
+  @NotNull private CodeDeployThrottling myThrottling = CodeDeployThrottling.NO_RATE_LIMIT;
+  @Nullable private volatile ParallelS3Upload myParallelS3Upload;
+  @Nullable private volatile Upload myUpload;
+  private volatile boolean myUploadAborted;
 
-  public AWSClient(@NotNull AmazonS3 s3Client,
+  public AWSClient(@NotNull final AmazonS3 s3Client,
                    @NotNull AmazonCodeDeployClient codeDeployClient) {
-    myS3Client = s3Client;
+    this(new S3ClientProvider() {
+      @NotNull
+      @Override
+      public AmazonS3 getS3Client() {
+        return s3Client;
+      }
+    }, codeDeployClient);
+  }
+
+  /**
+   * Allows creating S3 client lazily, e.g. when only CodeDeploy calls are expected
+   */
+  public AWSClient(@NotNull S3ClientProvider s3ClientProvider,
+                   @NotNull AmazonCodeDeployClient codeDeployClient) {
+    myS3ClientProvider = s3ClientProvider;
     myCodeDeployClient = codeDeployClient;
   }
 
@@ -46,6 +72,36 @@ public class AWSClient {
     return this;
   }
 
+  /**
+   * Switches revision upload from TransferManager to the multipart upload sharing a bounded thread pool
+   * between all uploads, see {@link ParallelS3Upload}
+   */
+  @NotNull
+  public AWSClient withParallelUpload(boolean parallelUpload) {
+    myParallelUpload = parallelUpload;
+    return this;
+  }
+
+  /**
+   * Enables {@link CodeDeployMetadataCache} usage for pre-flight checks,
+   * scope must distinguish account and region, see {@link CodeDeployMetadataCache#getScope(Map)}
+   */
+  @NotNull
+  public AWSClient withMetadataCache(@NotNull String scope) {
+    myMetadataScope = scope;
+    return this;
+  }
+
+  /**
+   * Makes CodeDeploy calls share the rate limit with all clients of the same scope in this JVM, see {@link CodeDeployThrottling}.
+   * Throttled calls only slow the shared rate down and are rethrown, AWS SDK client retries them with its own retry policy.
+   */
+  @NotNull
+  public AWSClient withRateLimit(@NotNull String scope) {
+    myThrottling = CodeDeployThrottling.forScope(scope);
+    return this;
+  }
+
   @NotNull
   public AWSClient withListener(@NotNull Listener listener) {
     myListener = listener;
@@ -66,10 +122,68 @@ public class AWSClient {
     try {
       doUploadRevision(revision, s3BucketName, s3ObjectKey);
     } catch (Throwable t) {
+      if (myUploadAborted) {
+        LOG.info("Upload of " + revision + " to S3 bucket " + s3BucketName + " aborted");
+        return;
+      }
       processFailure(t);
     }
   }
 
+  /**
+   * Aborts the revision upload in progress, parts of the multipart upload already sent to S3 are released.
+   * May be called from any thread, further uploads are not started.
+   */
+  public void abortUpload() {
+    myUploadAborted = true;
+    final ParallelS3Upload parallelS3Upload = myParallelS3Upload;
+    if (parallelS3Upload != null) parallelS3Upload.abort();
+    final Upload upload = myUpload;
+    if (upload != null) abortQuietly(upload);
+  }
+
+  /**
+   * Copies already published application revision archive from the source S3 location to S3 bucket named s3BucketName with the provided key.
+   * The copy is performed by S3 itself (CopyObject or UploadPartCopy for large objects), so no revision bytes are transferred through the client.
+   * <p>
+   * For performing this operation target AWSClient must have corresponding S3 permissions for both source and target buckets.
+   *
+   * @param sourceBucketName source S3 bucket name
+   * @param sourceObjectKey  source S3 object key
+   * @param s3BucketName     valid S3 bucket name
+   * @param s3ObjectKey      valid S3 object key
+   */
+  public void copyRevision(@NotNull String sourceBucketName, @NotNull String sourceObjectKey,
+                           @NotNull String s3BucketName, @NotNull String s3ObjectKey) {
+    try {
+      doCopyRevision(sourceBucketName, sourceObjectKey, s3BucketName, s3ObjectKey);
+    } catch (Throwable t) {
+      processFailure(t);
+    }
+  }
+
+  /**
+   * Performs fast pre-flight checks of the provided resources: S3 bucket must exist, CodeDeploy application,
+   * deployment group and deployment configuration must be pre-configured. Only non-null resources are checked,
+   * checks lacking permissions are skipped.
+   *
+   * @param s3BucketName         S3 bucket name or null
+   * @param applicationName      CodeDeploy application name or null
+   * @param deploymentGroupName  deployment group name or null, requires application name
+   * @param deploymentConfigName deployment configuration name or null
+   * @return true if all checks passed, false if failure was reported to the listener
+   */
+  public boolean checkPreconditions(@Nullable String s3BucketName, @Nullable String applicationName,
+                                    @Nullable String deploymentGroupName, @Nullable String deploymentConfigName) {
+    try {
+      doCheckPreconditions(s3BucketName, applicationName, deploymentGroupName, deploymentConfigName);
+      return true;
+    } catch (Throwable t) {
+      processFailure(t);
+      return false;
+    }
+  }
+
   /**
    * Registers application revision from the specified location for the specified CodeDeploy application.
    * <p>
@@ -127,6 +241,39 @@ public class AWSClient {
     }
   }
 
+  /**
+   * Redeploys the revision of the last successful deployment to the deployment group, nothing is uploaded or registered.
+   * The revision is looked up with GetDeploymentGroup and GetDeployment, so any revision type is supported.
+   */
+  public void rollbackRevision(@NotNull String applicationName, @NotNull String deploymentGroupName,
+                               @NotNull Map<String, String> ec2Tags, @NotNull Collection<String> autoScalingGroups,
+                               @Nullable String deploymentConfigName,
+                               boolean rollbackOnFailure, boolean rollbackOnAlarmThreshold, @Nullable String fileExistsBehavior) {
+    try {
+      final RevisionLocation revisionLocation = getLastSuccessfulRevision(applicationName, deploymentGroupName);
+      if (revisionLocation == null) return;
+      createDeployment(revisionLocation, applicationName, deploymentGroupName, ec2Tags, autoScalingGroups, deploymentConfigName, rollbackOnFailure, rollbackOnAlarmThreshold, fileExistsBehavior);
+    } catch (Throwable t) {
+      processFailure(t);
+    }
+  }
+
+  /**
+   * Requests the deployment from TeamCity server instead of creating it, server creates deployments
+   * to the same deployment group one at a time. Uploaded revision version and ETag are already reported to the server.
+   */
+  public void requestDeployment(@NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String applicationName, @NotNull String deploymentGroupName) {
+    myListener.deploymentRequested(applicationName, deploymentGroupName, s3BucketName, s3ObjectKey);
+  }
+
+  /**
+   * Requests the rollout from TeamCity server instead of creating deployments, server deploys the waves
+   * of the {@link RolloutPlan} one after another. Uploaded revision version and ETag are already reported to the server.
+   */
+  public void requestRollout(@NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String applicationName, @NotNull RolloutPlan plan) {
+    myListener.rolloutRequested(applicationName, plan, s3BucketName, s3ObjectKey);
+  }
+
   /**
    *
    * @param deploymentId
@@ -134,9 +281,90 @@ public class AWSClient {
    * @return deployment finis date or null if it's still in progress
    */
   @Nullable
-  public Date checkDeploymentStatus(@NotNull String deploymentId, @Nullable Date knownDeploymentStartTime) {
-    final DeploymentInfo dInfo = myCodeDeployClient.getDeployment(new GetDeploymentRequest().withDeploymentId(deploymentId)).getDeploymentInfo();
+  public Date checkDeploymentStatus(@NotNull final String deploymentId, @Nullable Date knownDeploymentStartTime) {
+    return processDeploymentInfo(deploymentId, myThrottling.call(new CodeDeployThrottling.Call<DeploymentInfo>() {
+      @Override
+      public DeploymentInfo run() {
+        return myCodeDeployClient.getDeployment(new GetDeploymentRequest().withDeploymentId(deploymentId)).getDeploymentInfo();
+      }
+    }));
+  }
+
+  /**
+   * Fetches deployments using BatchGetDeployments in chunks of {@link #MAX_BATCH_SIZE}, duplicate ids are requested once
+   *
+   * @return deployment infos by deployment id, deployments not returned by AWS and malformed ids are absent
+   */
+  @NotNull
+  public Map<String, DeploymentInfo> getDeployments(@NotNull Collection<String> deploymentIds) {
+    final List<String> ids = new ArrayList<String>(new LinkedHashSet<String>(deploymentIds));
+    final Map<String, DeploymentInfo> result = new HashMap<String, DeploymentInfo>();
+    for (int i = 0; i < ids.size(); i += MAX_BATCH_SIZE) {
+      getDeployments(ids.subList(i, Math.min(ids.size(), i + MAX_BATCH_SIZE)), result);
+    }
+    return result;
+  }
+
+  /**
+   * A single malformed id fails the whole batch, so the failed batch is split in halves until the malformed ids are left out
+   */
+  private void getDeployments(@NotNull final List<String> ids, @NotNull Map<String, DeploymentInfo> result) {
+    final List<DeploymentInfo> infos;
+    try {
+      infos = myThrottling.call(new CodeDeployThrottling.Call<List<DeploymentInfo>>() {
+        @Override
+        public List<DeploymentInfo> run() {
+          return myCodeDeployClient.batchGetDeployments(new BatchGetDeploymentsRequest().withDeploymentIds(ids)).getDeploymentsInfo();
+        }
+      });
+    } catch (InvalidDeploymentIdException e) {
+      if (ids.size() == 1) {
+        LOG.debug("Malformed CodeDeploy deployment id " + ids.get(0) + ": " + e.getMessage());
+        return;
+      }
+      final int half = ids.size() / 2;
+      getDeployments(ids.subList(0, half), result);
+      getDeployments(ids.subList(half, ids.size()), result);
+      return;
+    }
+    if (infos == null) return;
+    for (DeploymentInfo info : infos) {
+      result.put(info.getDeploymentId(), info);
+    }
+  }
 
+  /**
+   * Fetches deployment targets updated since the previous call with the same tracker
+   */
+  @NotNull
+  public List<Listener.DeploymentTargetStatus> getUpdatedDeploymentTargets(@NotNull DeploymentTargetsTracker tracker) {
+    return tracker.poll(myCodeDeployClient, myThrottling);
+  }
+
+  /**
+   * Reports the already fetched deployment targets updates to the listener
+   */
+  public void processDeploymentTargets(@NotNull String deploymentId, @NotNull List<Listener.DeploymentTargetStatus> targets) {
+    for (Listener.DeploymentTargetStatus target : targets) {
+      myListener.deploymentTargetUpdated(deploymentId, target);
+    }
+  }
+
+  /**
+   * Reports the already fetched deployment state to the listener
+   *
+   * @return deployment completion time if deployment is finished, null otherwise
+   */
+  @Nullable
+  public Date processDeploymentInfo(@NotNull String deploymentId, @Nullable DeploymentInfo dInfo) {
+    return processDeploymentInfo(deploymentId, dInfo, Collections.<Listener.TargetDiagnostics>emptyList());
+  }
+
+  /**
+   * Same as {@link #processDeploymentInfo(String, DeploymentInfo)}, failure is reported with the provided diagnostics
+   */
+  @Nullable
+  public Date processDeploymentInfo(@NotNull String deploymentId, @Nullable DeploymentInfo dInfo, @NotNull List<Listener.TargetDiagnostics> diagnostics) {
     if (dInfo == null || dInfo.getCompleteTime() == null) { // deployment in progress?
       myListener.deploymentInProgress(deploymentId, getInstancesStatus(dInfo));
       return null;
@@ -145,29 +373,209 @@ public class AWSClient {
     if (isSuccess(dInfo)) {
       myListener.deploymentSucceeded(deploymentId, getInstancesStatus(dInfo));
     } else {
-      myListener.deploymentFailed(deploymentId, null, getErrorInfo(dInfo), getInstancesStatus(dInfo));
+      myListener.deploymentFailed(deploymentId, null, getErrorInfo(dInfo, diagnostics), getInstancesStatus(dInfo));
     }
 
     return dInfo.getCompleteTime();
   }
 
+  /**
+   * Reports deployment failure because AWS doesn't know the deployment, e.g. its id is malformed or the deployment was deleted
+   */
+  public void processDeploymentMissing(@NotNull String deploymentId) {
+    final Listener.ErrorInfo errorInfo = new Listener.ErrorInfo();
+    errorInfo.code = "DeploymentDoesNotExistException";
+    errorInfo.message = "Deployment " + deploymentId + " doesn't exist";
+    myListener.deploymentFailed(deploymentId, null, errorInfo, null);
+  }
+
+  /**
+   * Reports deployment failure because of the exceeded timeout, with the last known deployment state
+   */
+  public void processDeploymentTimeout(@NotNull String deploymentId, int timeoutSec, @Nullable DeploymentInfo lastInfo, boolean stopped) {
+    if (stopped) myListener.deploymentStopped(deploymentId, "timeout " + timeoutSec + " sec exceeded");
+    myListener.deploymentFailed(deploymentId, timeoutSec, getErrorInfo(lastInfo, Collections.<Listener.TargetDiagnostics>emptyList()), getInstancesStatus(lastInfo));
+  }
+
+  /**
+   * Stops the deployment, instances already updated are not rolled back unless automatic rollback is configured
+   */
+  public void stopDeployment(@NotNull final String deploymentId) {
+    myThrottling.call(new CodeDeployThrottling.Call<StopDeploymentResult>() {
+      @Override
+      public StopDeploymentResult run() {
+        return myCodeDeployClient.stopDeployment(new StopDeploymentRequest().withDeploymentId(deploymentId));
+      }
+    });
+  }
+
+  /**
+   * Stops the deployment of the interrupted build, failure to stop it is only logged as the build is already over
+   */
+  public void stopInterruptedDeployment(@NotNull String deploymentId) {
+    try {
+      stopDeployment(deploymentId);
+      myListener.deploymentStopped(deploymentId, "build interrupted");
+    } catch (Exception e) {
+      LOG.warn("Failed to stop deployment " + deploymentId + " of the interrupted build", e);
+    }
+  }
+
+  /**
+   * Fetches lifecycle event diagnostics of the failed deployment targets, see {@link FailedTargetsDiagnostics}
+   */
+  @NotNull
+  public List<Listener.TargetDiagnostics> getFailedTargetsDiagnostics(@NotNull String deploymentId) {
+    return FailedTargetsDiagnostics.fetch(myCodeDeployClient, myThrottling, deploymentId);
+  }
+
   private void doUploadRevision(@NotNull final File revision, @NotNull final String s3BucketName, @NotNull final String s3ObjectKey) throws Throwable {
     myListener.uploadRevisionStarted(revision, s3BucketName, s3ObjectKey);
 
-    final UploadResult uploadResult = doUploadWithTransferManager(revision, s3BucketName, s3ObjectKey);
+    final UploadResult uploadResult = myParallelUpload ? doParallelUpload(revision, s3BucketName, s3ObjectKey) : doUploadWithTransferManager(revision, s3BucketName, s3ObjectKey);
 
-    myListener.uploadRevisionFinished(revision, s3BucketName, s3ObjectKey, uploadResult.getVersionId(), uploadResult.getETag(), myS3Client.getUrl(s3BucketName, s3ObjectKey).toString());
+    myListener.uploadRevisionFinished(revision, s3BucketName, s3ObjectKey, uploadResult.getVersionId(), uploadResult.getETag(), getS3Client().getUrl(s3BucketName, s3ObjectKey).toString());
+  }
+
+  @NotNull
+  private UploadResult doParallelUpload(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey) throws Throwable {
+    final ParallelS3Upload upload = new ParallelS3Upload(getS3Client(), revision, s3BucketName, s3ObjectKey);
+    myParallelS3Upload = upload;
+    try {
+      if (myUploadAborted) upload.abort();
+      return upload.upload();
+    } finally {
+      myParallelS3Upload = null;
+    }
   }
 
   @NotNull
   private UploadResult doUploadWithTransferManager(@NotNull final File revision, @NotNull final String s3BucketName, @NotNull final String s3ObjectKey) throws Throwable {
-    return S3Util.withTransferManager(myS3Client, new S3Util.WithTransferManager<Upload>() {
+    try {
+      return S3Util.withTransferManager(getS3Client(), new S3Util.WithTransferManager<Upload>() {
+        @NotNull
+        @Override
+        public Collection<Upload> run(@NotNull TransferManager manager) throws Throwable {
+          final Upload upload = manager.upload(s3BucketName, s3ObjectKey, revision);
+          myUpload = upload;
+          if (myUploadAborted) abortQuietly(upload);
+          return Collections.singletonList(upload);
+        }
+      }).iterator().next().waitForUploadResult();
+    } finally {
+      myUpload = null;
+    }
+  }
+
+  private static void abortQuietly(@NotNull Upload upload) {
+    try {
+      upload.abort();
+    } catch (Exception e) {
+      LOG.warn("Failed to abort S3 upload", e);
+    }
+  }
+
+  private void doCopyRevision(@NotNull final String sourceBucketName, @NotNull final String sourceObjectKey,
+                              @NotNull final String s3BucketName, @NotNull final String s3ObjectKey) throws Throwable {
+    myListener.copyRevisionStarted(sourceBucketName, sourceObjectKey, s3BucketName, s3ObjectKey);
+
+    final CopyResult copyResult = S3Util.withTransferManager(getS3Client(), new S3Util.WithTransferManager<Copy>() {
       @NotNull
       @Override
-      public Collection<Upload> run(@NotNull TransferManager manager) throws Throwable {
-        return Collections.singletonList(manager.upload(s3BucketName, s3ObjectKey, revision));
+      public Collection<Copy> run(@NotNull TransferManager manager) throws Throwable {
+        return Collections.singletonList(manager.copy(sourceBucketName, sourceObjectKey, s3BucketName, s3ObjectKey));
+      }
+    }).iterator().next().waitForCopyResult();
+
+    myListener.copyRevisionFinished(sourceBucketName, sourceObjectKey, s3BucketName, s3ObjectKey, copyResult.getVersionId(), copyResult.getETag(), getS3Client().getUrl(s3BucketName, s3ObjectKey).toString());
+  }
+
+  private void doCheckPreconditions(@Nullable final String s3BucketName, @Nullable final String applicationName,
+                                    @Nullable final String deploymentGroupName, @Nullable final String deploymentConfigName) {
+    if (StringUtil.isNotEmpty(s3BucketName)) {
+      skipIfAccessDenied(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            getS3Client().headBucket(new HeadBucketRequest(s3BucketName));
+          } catch (AmazonServiceException e) {
+            // the bucket exists in another region than the cached one, S3 operations are retried in the bucket region
+            if (!S3BucketRegionResolver.isWrongRegionError(e)) throw e;
+          }
+        }
+      });
+    }
+    if (StringUtil.isNotEmpty(applicationName)) {
+      checkExists(new Runnable() {
+        @Override
+        public void run() {
+          myCodeDeployClient.getApplication(new GetApplicationRequest().withApplicationName(applicationName));
+        }
+      }, CodeDeployMetadataCache.APPLICATION, applicationName);
+      if (StringUtil.isNotEmpty(deploymentGroupName)) {
+        checkExists(new Runnable() {
+          @Override
+          public void run() {
+            myCodeDeployClient.getDeploymentGroup(new GetDeploymentGroupRequest().withApplicationName(applicationName).withDeploymentGroupName(deploymentGroupName));
+          }
+        }, CodeDeployMetadataCache.DEPLOYMENT_GROUP, applicationName, deploymentGroupName);
+      }
+    }
+    if (StringUtil.isNotEmpty(deploymentConfigName)) {
+      checkExists(new Runnable() {
+        @Override
+        public void run() {
+          myCodeDeployClient.getDeploymentConfig(new GetDeploymentConfigRequest().withDeploymentConfigName(deploymentConfigName));
+        }
+      }, CodeDeployMetadataCache.DEPLOYMENT_CONFIG, deploymentConfigName);
+    }
+  }
+
+  private void checkExists(@NotNull final Runnable codeDeployCall, @NotNull String kind, @NotNull String... names) {
+    final Runnable check = new Runnable() {
+      @Override
+      public void run() {
+        myThrottling.call(new CodeDeployThrottling.Call<Void>() {
+          @Override
+          public Void run() {
+            codeDeployCall.run();
+            return null;
+          }
+        });
       }
-    }).iterator().next().waitForUploadResult();
+    };
+    if (myMetadataScope == null) {
+      skipIfAccessDenied(check);
+      return;
+    }
+
+    final CodeDeployMetadataCache cache = CodeDeployMetadataCache.getInstance();
+    final String key = CodeDeployMetadataCache.getKey(myMetadataScope, kind, names);
+    if (cache.isKnownToExist(key)) return;
+
+    final AmazonServiceException knownError = cache.getKnownMissingError(key);
+    if (knownError != null) throw knownError;
+
+    try {
+      skipIfAccessDenied(check);
+      cache.putExists(key);
+    } catch (AmazonServiceException e) {
+      if (CodeDeployMetadataCache.isDoesNotExistError(e)) cache.putMissing(key, e);
+      throw e;
+    }
+  }
+
+  private static void skipIfAccessDenied(@NotNull Runnable check) {
+    try {
+      check.run();
+    } catch (AmazonServiceException e) {
+      if (!isAccessDenied(e)) throw e;
+      LOG.debug("Skipping pre-flight check: " + e.getMessage());
+    }
+  }
+
+  private static boolean isAccessDenied(@NotNull AmazonServiceException e) {
+    return e.getStatusCode() == 403 || "AccessDenied".equals(e.getErrorCode()) || "AccessDeniedException".equals(e.getErrorCode());
   }
 
   @NotNull
@@ -178,15 +586,20 @@ public class AWSClient {
     return new RevisionLocation().withRevisionType(RevisionLocationType.S3).withS3Location(loc);
   }
 
-  private void doRegisterRevision(@NotNull RevisionLocation revisionLocation, @NotNull String applicationName) {
+  private void doRegisterRevision(@NotNull final RevisionLocation revisionLocation, @NotNull final String applicationName) {
     final S3Location s3Location = revisionLocation.getS3Location();
     myListener.registerRevisionStarted(applicationName, s3Location.getBucket(), s3Location.getKey(), s3Location.getBundleType(), s3Location.getVersion(), s3Location.getETag());
 
-    myCodeDeployClient.registerApplicationRevision(
-      new RegisterApplicationRevisionRequest()
-        .withRevision(revisionLocation)
-        .withApplicationName(applicationName)
-        .withDescription(getDescription("Application revision registered by ", 100)));
+    myThrottling.call(new CodeDeployThrottling.Call<RegisterApplicationRevisionResult>() {
+      @Override
+      public RegisterApplicationRevisionResult run() {
+        return myCodeDeployClient.registerApplicationRevision(
+          new RegisterApplicationRevisionRequest()
+            .withRevision(revisionLocation)
+            .withApplicationName(applicationName)
+            .withDescription(getDescription("Application revision registered by ", 100)));
+      }
+    });
 
     myListener.registerRevisionFinished(applicationName, s3Location.getBucket(), s3Location.getKey(), s3Location.getBundleType(), s3Location.getVersion(), s3Location.getETag());
   }
@@ -226,11 +639,57 @@ public class AWSClient {
       request.setAutoRollbackConfiguration(rollbackConfiguration);
     }
 
-    final String deploymentId = myCodeDeployClient.createDeployment(request).getDeploymentId();
+    // throttled requests are rejected before any deployment is created, AWS SDK client retries them with its own retry policy
+    final String deploymentId = myThrottling.call(new CodeDeployThrottling.Call<String>() {
+      @Override
+      public String run() {
+        return myCodeDeployClient.createDeployment(request).getDeploymentId();
+      }
+    });
     myListener.createDeploymentFinished(applicationName, deploymentGroupName, deploymentConfigName, deploymentId);
     return deploymentId;
   }
 
+  @Nullable
+  private RevisionLocation getLastSuccessfulRevision(@NotNull final String applicationName, @NotNull final String deploymentGroupName) {
+    final DeploymentGroupInfo deploymentGroup = myThrottling.call(new CodeDeployThrottling.Call<DeploymentGroupInfo>() {
+      @Override
+      public DeploymentGroupInfo run() {
+        return myCodeDeployClient.getDeploymentGroup(new GetDeploymentGroupRequest().withApplicationName(applicationName).withDeploymentGroupName(deploymentGroupName)).getDeploymentGroupInfo();
+      }
+    });
+    final LastDeploymentInfo lastSuccessful = deploymentGroup == null ? null : deploymentGroup.getLastSuccessfulDeployment();
+    final String deploymentId = lastSuccessful == null ? null : lastSuccessful.getDeploymentId();
+    if (StringUtil.isEmpty(deploymentId)) {
+      myListener.exception(new AWSException("Deployment group " + deploymentGroupName + " has no successful deployments to roll back to", null, AWSException.EXCEPTION_BUILD_PROBLEM_TYPE, null));
+      return null;
+    }
+
+    final DeploymentInfo deployment = myThrottling.call(new CodeDeployThrottling.Call<DeploymentInfo>() {
+      @Override
+      public DeploymentInfo run() {
+        return myCodeDeployClient.getDeployment(new GetDeploymentRequest().withDeploymentId(deploymentId)).getDeploymentInfo();
+      }
+    });
+    final RevisionLocation revisionLocation = deployment == null ? null : deployment.getRevision();
+    if (revisionLocation == null) {
+      myListener.exception(new AWSException("Revision of the last successful deployment " + deploymentId + " to deployment group " + deploymentGroupName + " is unknown", null, AWSException.EXCEPTION_BUILD_PROBLEM_TYPE, null));
+      return null;
+    }
+    myListener.rollbackRevisionFound(deploymentGroupName, deploymentId, getRevisionDescription(revisionLocation));
+    return revisionLocation;
+  }
+
+  @NotNull
+  private static String getRevisionDescription(@NotNull RevisionLocation revisionLocation) {
+    final S3Location s3Location = revisionLocation.getS3Location();
+    if (s3Location == null) return "" + revisionLocation.getRevisionType();
+
+    final StringBuilder sb = new StringBuilder(CodeDeployConstants.S3_URL_PREFIX).append(s3Location.getBucket()).append('/').append(s3Location.getKey());
+    if (StringUtil.isNotEmpty(s3Location.getVersion())) sb.append(" version ").append(s3Location.getVersion());
+    return sb.toString();
+  }
+
   @NotNull
   private Collection<EC2TagFilter> getTagFilters(@NotNull Map<String, String> ec2Tags) {
     return CollectionsUtil.convertCollection(ec2Tags.entrySet(), new Converter<EC2TagFilter, Map.Entry<String, String>>() {
@@ -241,6 +700,11 @@ public class AWSClient {
     });
   }
 
+  @NotNull
+  private AmazonS3 getS3Client() {
+    return myS3ClientProvider.getS3Client();
+  }
+
   private void processFailure(@NotNull Throwable t) {
     myListener.exception(new AWSException(t));
   }
@@ -256,7 +720,7 @@ public class AWSClient {
 
   @Contract("null -> null")
   @Nullable
-  private Listener.InstancesStatus getInstancesStatus(@Nullable DeploymentInfo dInfo) {
+  static Listener.InstancesStatus getInstancesStatus(@Nullable DeploymentInfo dInfo) {
     if (dInfo == null) return null;
     if (dInfo.getStatus() == null || dInfo.getDeploymentOverview() == null) return null;
 
@@ -278,7 +742,7 @@ public class AWSClient {
   }
 
   @NotNull
-  private String getHumanReadableStatus(@NotNull String status) {
+  private static String getHumanReadableStatus(@NotNull String status) {
     if (DeploymentStatus.Created.toString().equals(status)) return "created";
     if (DeploymentStatus.Queued.toString().equals(status)) return "queued";
     if (DeploymentStatus.InProgress.toString().equals(status)) return "in progress";
@@ -289,17 +753,17 @@ public class AWSClient {
     return StringUtil.decapitalize(status);
   }
 
-  @Contract("null -> null")
   @Nullable
-  private Listener.ErrorInfo getErrorInfo(@Nullable DeploymentInfo dInfo) {
-    if (dInfo == null) return null;
-
-    final ErrorInformation errorInformation = dInfo.getErrorInformation();
-    if (errorInformation == null) return null;
+  private Listener.ErrorInfo getErrorInfo(@Nullable DeploymentInfo dInfo, @NotNull List<Listener.TargetDiagnostics> diagnostics) {
+    final ErrorInformation errorInformation = dInfo == null ? null : dInfo.getErrorInformation();
+    if (errorInformation == null && diagnostics.isEmpty()) return null;
 
     final Listener.ErrorInfo errorInfo = new Listener.ErrorInfo();
-    errorInfo.message = removeTrailingDot(errorInformation.getMessage());
-    errorInfo.code = errorInformation.getCode();
+    if (errorInformation != null) {
+      errorInfo.message = removeTrailingDot(errorInformation.getMessage());
+      errorInfo.code = errorInformation.getCode();
+    }
+    errorInfo.diagnostics.addAll(diagnostics);
     return errorInfo;
   }
 
@@ -309,17 +773,31 @@ public class AWSClient {
     return (msg != null && msg.endsWith(".")) ? msg.substring(0, msg.length() - 1) : msg;
   }
 
+  public interface S3ClientProvider {
+    @NotNull
+    AmazonS3 getS3Client();
+  }
+
   public static class Listener {
     void uploadRevisionStarted(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {}
     void uploadRevisionFinished(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {}
+    void copyRevisionStarted(@NotNull String sourceBucketName, @NotNull String sourceObjectKey, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {}
+    void copyRevisionFinished(@NotNull String sourceBucketName, @NotNull String sourceObjectKey, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {}
     void registerRevisionStarted(@NotNull String applicationName, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String bundleType, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag) {}
     void registerRevisionFinished(@NotNull String applicationName, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @NotNull String bundleType, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag) {}
     void createDeploymentStarted(@NotNull String applicationName, @NotNull String deploymentGroupName, @Nullable String deploymentConfigName) {}
     void createDeploymentFinished(@NotNull String applicationName, @NotNull String deploymentGroupName, @Nullable String deploymentConfigName, @NotNull String deploymentId) {}
+    void deploymentsCreated(@NotNull List<String> deploymentIds) {}
     void deploymentWaitStarted(@NotNull String deploymentId) {}
+    void deploymentRequested(@NotNull String applicationName, @NotNull String deploymentGroupName, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {}
+    void rollbackRevisionFound(@NotNull String deploymentGroupName, @NotNull String deploymentId, @NotNull String revision) {}
+    void rolloutRequested(@NotNull String applicationName, @NotNull RolloutPlan plan, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {}
     void deploymentInProgress(@NotNull String deploymentId, @Nullable InstancesStatus instancesStatus) {}
     void deploymentFailed(@NotNull String deploymentId, @Nullable Integer timeoutSec, @Nullable ErrorInfo errorInfo, @Nullable InstancesStatus instancesStatus) {}
     void deploymentSucceeded(@NotNull String deploymentId, @Nullable InstancesStatus instancesStatus) {}
+    void deploymentStopped(@NotNull String deploymentId, @NotNull String reason) {}
+    void deploymentStatusUnavailable(@NotNull String deploymentId, @NotNull String reason) {}
+    void deploymentTargetUpdated(@NotNull String deploymentId, @NotNull DeploymentTargetStatus target) {}
     void exception(@NotNull AWSException exception) {}
 
     public static class InstancesStatus {
@@ -332,11 +810,46 @@ public class AWSClient {
       String status;
     }
 
+    public static class DeploymentTargetStatus {
+      @NotNull
+      String id = "";
+      @Nullable
+      String status;
+      @NotNull
+      final List<LifecycleEventInfo> events = new ArrayList<LifecycleEventInfo>();
+    }
+
+    public static class LifecycleEventInfo {
+      @Nullable
+      String name;
+      @Nullable
+      String status;
+      @Nullable
+      Long durationMs;
+    }
+
     public static class ErrorInfo {
       @Nullable
       String code;
       @Nullable
       String message;
+      @NotNull
+      final List<TargetDiagnostics> diagnostics = new ArrayList<TargetDiagnostics>();
+    }
+
+    public static class TargetDiagnostics {
+      @NotNull
+      String targetId = "";
+      @Nullable
+      String lifecycleEvent;
+      @Nullable
+      String errorCode;
+      @Nullable
+      String scriptName;
+      @Nullable
+      String message;
+      @Nullable
+      String logTail;
     }
   }
 }
\ No newline at end of file
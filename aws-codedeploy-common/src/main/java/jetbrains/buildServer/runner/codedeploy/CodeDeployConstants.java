@@ -16,13 +16,21 @@ public interface CodeDeployConstants {
   String RUNNER_DESCR = "Prepare, upload, register and deploy application revision using AWS CodeDeploy";
 
   String DEPLOYMENT_ID_BUILD_CONFIG_PARAM = "codedeploy.deployment.id";
+  String DEPLOYMENT_IDS_BUILD_CONFIG_PARAM = "codedeploy.deployment.ids";
+  String DEPLOYMENT_CREATED_BUILD_CONFIG_PARAM = "codedeploy.deployment.created";
+  String DEPLOYMENT_REQUESTED_BUILD_CONFIG_PARAM = "codedeploy.deployment.requested";
+  String ROLLOUT_REQUESTED_BUILD_CONFIG_PARAM = "codedeploy.rollout.requested";
+  String ROLLOUT_WAVE_BUILD_CONFIG_PARAM = "codedeploy.rollout.wave";
+  String S3_OBJECT_KEY_CONFIG_PARAM = "codedeploy.revision.s3.key";
   String S3_OBJECT_VERSION_CONFIG_PARAM = "codedeploy.revision.s3.version";
   String S3_OBJECT_ETAG_CONFIG_PARAM = "codedeploy.revision.s3.etag";
+  String S3_OBJECT_COUNT_CONFIG_PARAM = "codedeploy.revision.s3.count";
   String CUSTOM_APPSPEC_YML_CONFIG_PARAM = "codedeploy.custom.appspec.yml";
 
 
   String EDIT_PARAMS_HTML = "editCodeDeployParams.html";
   String VIEW_PARAMS_HTML = "viewCodeDeployParams.html";
+  String NOTIFICATIONS_HTML = "notifications.html";
   String EDIT_PARAMS_JSP = "editCodeDeployParams.jsp";
   String VIEW_PARAMS_JSP = "viewCodeDeployParams.jsp";
 
@@ -46,10 +54,23 @@ public interface CodeDeployConstants {
   String S3_BUCKET_NAME_LABEL = "S3 bucket";
   String REVISION_PATHS_NOTE = "Ant-style wildcards as well as target directories like out/**/*.zip => dist supported";
 
+  String REVISION_S3_SOURCE_PARAM = "codedeploy.revision.s3.source";
+  String REVISION_S3_SOURCE_LABEL = "Published revision";
+  String REVISION_S3_SOURCE_NOTE = "S3 location of an already published revision archive like s3://bucket/path/revision.zip";
+
+  String UPLOAD_ENGINE_PARAM = "codedeploy.upload.engine";
+  String UPLOAD_ENGINE_LABEL = "Upload engine";
+  String UPLOAD_ENGINE_TRANSFER_MANAGER = "transferManager";
+  String UPLOAD_ENGINE_PARALLEL = "parallel";
+
   String S3_OBJECT_KEY_PARAM_OLD = "codedeploy_s3_object_key";
   String S3_OBJECT_KEY_PARAM = "codedeploy.s3.object.key";
   String S3_OBJECT_KEY_LABEL = "S3 object key";
 
+  String S3_OBJECT_KEY_TEMPLATE_PARAM = "codedeploy.s3.object.key.template";
+  String S3_OBJECT_KEY_TEMPLATE_LABEL = "S3 object key template";
+  String ARCHIVE_NAME_PLACEHOLDER = "{archive}";
+
   String APP_NAME_PARAM_OLD = "codedeploy_application_name";
   String APP_NAME_PARAM = "codedeploy.application.name";
   String APP_NAME_LABEL = "Application name";
@@ -71,6 +92,20 @@ public interface CodeDeployConstants {
   String ROLLBACK_ON_ALARM_THRESHOLD_PARAM = "codedeploy.rollback.on.alarm.threshold";
   String ROLLBACK_ON_ALARM_THRESHOLD_LABEL = "Roll back when alarm thresholds are met";
 
+  String WAIT_TIMEOUT_SEC_PARAM = "codedeploy.wait.timeout.seconds";
+  String WAIT_TIMEOUT_SEC_LABEL = "Timeout (seconds)";
+  String STOP_ON_TIMEOUT_PARAM = "codedeploy.stop.on.timeout";
+  String STOP_ON_TIMEOUT_LABEL = "Stop deployment on timeout";
+
+  String COORDINATED_DEPLOYMENT_PARAM = "codedeploy.deployment.coordinated";
+  String COORDINATED_DEPLOYMENT_LABEL = "Queue deployments to the group";
+
+  String ROLLOUT_PLAN_PARAM = "codedeploy.rollout.plan";
+  String ROLLOUT_PLAN_LABEL = "Rollout plan";
+
+  String MATRIX_PARAM = "codedeploy.matrix";
+  String MATRIX_LABEL = "Deployment matrix";
+
   String GREEN_FLEET_PARAM_OLD = "codedeploy_green_fleet";
   String GREEN_FLEET_PARAM = "codedeploy.green.fleet";
   String GREEN_FLEET_LABEL = "Green fleet (replacement environment instances)";
@@ -78,6 +113,7 @@ public interface CodeDeployConstants {
   String UPLOAD_STEP = "s3uploadstep";
   String REGISTER_STEP = "registerstep";
   String DEPLOY_STEP = "deploystep";
+  String ROLLBACK_STEP = "rollbackstep";
   String STEP_SEPARATOR = "_";
 
   String UPLOAD_REGISTER_DEPLOY_STEPS = UPLOAD_STEP + STEP_SEPARATOR + REGISTER_STEP + STEP_SEPARATOR + DEPLOY_STEP;
@@ -90,7 +126,8 @@ public interface CodeDeployConstants {
     UPLOAD_REGISTER_STEPS, "Upload and register",
     UPLOAD_STEP, "Upload",
     REGISTER_STEP, "Register",
-    DEPLOY_STEP, "Deploy"
+    DEPLOY_STEP, "Deploy",
+    ROLLBACK_STEP, "Roll back to the last successful revision"
   ));
 
   Map<String, String> DEFAULTS = Collections.unmodifiableMap(CollectionsUtil.asMap(
@@ -102,4 +139,5 @@ public interface CodeDeployConstants {
   String MULTILINE_SPLIT_REGEX = " *[,\n\r] *";
   String PATH_SPLIT_REGEX = " *=> *";
   String APPSPEC_YML = "appspec.yml";
+  String S3_URL_PREFIX = "s3://";
 }
\ No newline at end of file
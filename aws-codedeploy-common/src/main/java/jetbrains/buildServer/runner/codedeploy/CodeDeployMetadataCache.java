@@ -0,0 +1,133 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.AmazonServiceException;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.util.amazon.AWSCommonParams.*;
+
+/**
+ * JVM-wide cache of CodeDeploy application, deployment group and deployment configuration existence.
+ * Existing resources are remembered for {@link #POSITIVE_TTL_MS}, missing ones together with the original error
+ * for {@link #NEGATIVE_TTL_MS}, so pre-flight checks don't add round-trips to every build.
+ */
+final class CodeDeployMetadataCache {
+  static final long POSITIVE_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+  static final long NEGATIVE_TTL_MS = TimeUnit.MINUTES.toMillis(1);
+  private static final int PRUNE_THRESHOLD = 1000;
+
+  static final String APPLICATION = "application";
+  static final String DEPLOYMENT_GROUP = "deployment group";
+  static final String DEPLOYMENT_CONFIG = "deployment configuration";
+
+  private static final Collection<String> DOES_NOT_EXIST_ERRORS = Arrays.asList(
+    "ApplicationDoesNotExistException", "DeploymentGroupDoesNotExistException", "DeploymentConfigDoesNotExistException");
+
+  @NotNull
+  private static final CodeDeployMetadataCache ourInstance = new CodeDeployMetadataCache();
+
+  @NotNull
+  private final ConcurrentMap<String, Entry> myEntries = new ConcurrentHashMap<String, Entry>();
+
+  @NotNull
+  static CodeDeployMetadataCache getInstance() {
+    return ourInstance;
+  }
+
+  /**
+   * Returns scope which distinguishes cached entries of different accounts and regions
+   */
+  @NotNull
+  static String getScope(@NotNull Map<String, String> params) {
+    return StringUtil.emptyIfNull(params.get(REGION_NAME_PARAM)) + "|" +
+      StringUtil.emptyIfNull(params.get(IAM_ROLE_ARN_PARAM)) + "|" +
+      StringUtil.emptyIfNull(params.get(ACCESS_KEY_ID_PARAM));
+  }
+
+  @NotNull
+  static String getKey(@NotNull String scope, @NotNull String kind, @NotNull String... names) {
+    final StringBuilder sb = new StringBuilder(scope).append("|").append(kind);
+    for (String name : names) sb.append("|").append(name);
+    return sb.toString();
+  }
+
+  static boolean isDoesNotExistError(@NotNull AmazonServiceException e) {
+    return DOES_NOT_EXIST_ERRORS.contains(e.getErrorCode());
+  }
+
+  /**
+   * @return true if the resource is known to exist
+   */
+  boolean isKnownToExist(@NotNull String key) {
+    final Entry entry = getEntry(key);
+    return entry != null && entry.myError == null;
+  }
+
+  /**
+   * @return the original error if the resource is known to be missing, null otherwise
+   */
+  @Nullable
+  AmazonServiceException getKnownMissingError(@NotNull String key) {
+    final Entry entry = getEntry(key);
+    return entry == null ? null : entry.myError;
+  }
+
+  void putExists(@NotNull String key) {
+    put(key, new Entry(System.currentTimeMillis() + POSITIVE_TTL_MS, null));
+  }
+
+  void putMissing(@NotNull String key, @NotNull AmazonServiceException error) {
+    put(key, new Entry(System.currentTimeMillis() + NEGATIVE_TTL_MS, error));
+  }
+
+  void clear() {
+    myEntries.clear();
+  }
+
+  @Nullable
+  private Entry getEntry(@NotNull String key) {
+    final Entry entry = myEntries.get(key);
+    if (entry == null) return null;
+    if (entry.isExpired(System.currentTimeMillis())) {
+      myEntries.remove(key, entry);
+      return null;
+    }
+    return entry;
+  }
+
+  private void put(@NotNull String key, @NotNull Entry entry) {
+    if (myEntries.size() > PRUNE_THRESHOLD) prune();
+    myEntries.put(key, entry);
+  }
+
+  private void prune() {
+    final long now = System.currentTimeMillis();
+    for (Iterator<Entry> it = myEntries.values().iterator(); it.hasNext(); ) {
+      if (it.next().isExpired(now)) it.remove();
+    }
+  }
+
+  private static final class Entry {
+    private final long myExpiresAt;
+    @Nullable
+    private final AmazonServiceException myError;
+
+    private Entry(long expiresAt, @Nullable AmazonServiceException error) {
+      myExpiresAt = expiresAt;
+      myError = error;
+    }
+
+    private boolean isExpired(long now) {
+      return now >= myExpiresAt;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side rate limiting of CodeDeploy API calls. Calls of the same account and region share a token bucket in this JVM,
+ * its rate is halved on throttling responses and grows back slowly with successful calls (AIMD).
+ * Throttled calls are not retried here: AWS SDK clients already retry them with jittered exponential backoff,
+ * a second retry layer on top would multiply the attempts made for a single call.
+ */
+final class CodeDeployThrottling {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(CodeDeployThrottling.class.getName());
+
+  static final double INITIAL_RATE = 10;
+  static final double MIN_RATE = 0.5;
+  static final double MAX_RATE = 25;
+  static final double RATE_INCREASE = 0.1;
+  static final double RATE_DECREASE_FACTOR = 0.5;
+  // concurrent calls throttled together must decrease the rate only once
+  private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private static final Collection<String> THROTTLING_ERRORS = Arrays.asList(
+    "ThrottlingException", "Throttling", "TooManyRequestsException", "RequestLimitExceeded", "RateExceeded");
+
+  /**
+   * Performs calls without client-side rate limiting
+   */
+  @NotNull
+  static final CodeDeployThrottling NO_RATE_LIMIT = new CodeDeployThrottling(null);
+
+  @NotNull
+  private static final ConcurrentMap<String, TokenBucket> ourBuckets = new ConcurrentHashMap<String, TokenBucket>();
+
+  @Nullable
+  private final TokenBucket myBucket;
+
+  private CodeDeployThrottling(@Nullable TokenBucket bucket) {
+    myBucket = bucket;
+  }
+
+  /**
+   * @param scope distinguishes accounts and regions, see {@link CodeDeployMetadataCache#getScope(java.util.Map)}
+   */
+  @NotNull
+  static CodeDeployThrottling forScope(@NotNull String scope) {
+    TokenBucket bucket = ourBuckets.get(scope);
+    if (bucket == null) {
+      final TokenBucket created = new TokenBucket(INITIAL_RATE);
+      bucket = ourBuckets.putIfAbsent(scope, created);
+      if (bucket == null) bucket = created;
+    }
+    return new CodeDeployThrottling(bucket);
+  }
+
+  @Nullable
+  TokenBucket getBucket() {
+    return myBucket;
+  }
+
+  /**
+   * Performs the call once a token is available, the rate is decreased if the call is throttled
+   */
+  <T> T call(@NotNull Call<T> call) {
+    if (myBucket != null) myBucket.acquire();
+    try {
+      final T result = call.run();
+      if (myBucket != null) myBucket.onSuccess();
+      return result;
+    } catch (AmazonServiceException e) {
+      if (isThrottling(e)) {
+        LOG.debug("CodeDeploy call throttled: " + e.getMessage());
+        if (myBucket != null) myBucket.onThrottled();
+      }
+      throw e;
+    }
+  }
+
+  static boolean isThrottling(@NotNull AmazonServiceException e) {
+    return e.getStatusCode() == 429 || THROTTLING_ERRORS.contains(e.getErrorCode());
+  }
+
+  private static void sleep(long nanos) {
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AbortedException("Interrupted while waiting for CodeDeploy rate limit", e);
+    }
+  }
+
+  interface Call<T> {
+    T run();
+  }
+
+  static final class TokenBucket {
+    private double myRate;
+    private double myTokens;
+    private long myLastRefill;
+    private long myLastDecrease;
+
+    TokenBucket(double rate) {
+      myRate = rate;
+      myTokens = rate;
+      myLastRefill = System.nanoTime();
+      myLastDecrease = myLastRefill - DECREASE_INTERVAL_NANOS;
+    }
+
+    synchronized double getRate() {
+      return myRate;
+    }
+
+    /**
+     * Reserves a token and waits until it's available, tokens go negative while reserved in advance
+     */
+    void acquire() {
+      final long waitNanos;
+      synchronized (this) {
+        refill(System.nanoTime());
+        myTokens -= 1;
+        waitNanos = myTokens >= 0 ? 0 : (long) (-myTokens / myRate * TimeUnit.SECONDS.toNanos(1));
+      }
+      if (waitNanos > 0) sleep(waitNanos);
+    }
+
+    synchronized void onSuccess() {
+      myRate = Math.min(MAX_RATE, myRate + RATE_INCREASE);
+    }
+
+    synchronized void onThrottled() {
+      final long now = System.nanoTime();
+      if (now - myLastDecrease < DECREASE_INTERVAL_NANOS) return;
+      myLastDecrease = now;
+      refill(now);
+      myRate = Math.max(MIN_RATE, myRate * RATE_DECREASE_FACTOR);
+      myTokens = Math.min(myTokens, 0);
+    }
+
+    private void refill(long now) {
+      myTokens = Math.min(Math.max(1, myRate), myTokens + (now - myLastRefill) * myRate / TimeUnit.SECONDS.toNanos(1));
+      myLastRefill = now;
+    }
+  }
+}
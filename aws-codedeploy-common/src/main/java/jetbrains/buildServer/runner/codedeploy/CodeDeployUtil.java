@@ -6,6 +6,7 @@ import com.amazonaws.services.codedeploy.model.BundleType;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.PathMappings;
 import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -30,6 +31,10 @@ final class CodeDeployUtil {
     return isStepEnabled(DEPLOY_STEP, params);
   }
 
+  static boolean isRollbackStepEnabled(@NotNull Map<String, String> params) {
+    return isStepEnabled(ROLLBACK_STEP, params);
+  }
+
   private static boolean isStepEnabled(@NotNull String step, @NotNull Map<String, String> params) {
     final String steps = getDeploymentSteps(params);
     return steps != null && steps.contains(step);
@@ -47,6 +52,26 @@ final class CodeDeployUtil {
     return null;
   }
 
+  @Nullable
+  static String getS3SourceBucket(@NotNull String s3SourceParam) {
+    final String location = removeS3UrlPrefix(s3SourceParam);
+    final int slash = location.indexOf('/');
+    return slash <= 0 ? null : location.substring(0, slash);
+  }
+
+  @Nullable
+  static String getS3SourceKey(@NotNull String s3SourceParam) {
+    final String location = removeS3UrlPrefix(s3SourceParam);
+    final int slash = location.indexOf('/');
+    return slash < 0 || slash == location.length() - 1 ? null : location.substring(slash + 1);
+  }
+
+  @NotNull
+  private static String removeS3UrlPrefix(@NotNull String s3SourceParam) {
+    final String location = s3SourceParam.trim();
+    return location.startsWith(S3_URL_PREFIX) ? location.substring(S3_URL_PREFIX.length()) : location;
+  }
+
   @NotNull
   static Map<String, String> getRevisionPathMappings(@NotNull String revisionPathsParam) {
     final String readyRevision = getReadyRevision(revisionPathsParam);
@@ -152,6 +177,15 @@ final class CodeDeployUtil {
     return getNewOrOld(params, REVISION_PATHS_PARAM, REVISION_PATHS_PARAM_OLD);
   }
 
+  @Nullable
+  public static String getRevisionS3Source(@NotNull Map<String, String> params) {
+    return params.get(REVISION_S3_SOURCE_PARAM);
+  }
+
+  public static boolean isParallelUpload(@NotNull Map<String, String> params) {
+    return UPLOAD_ENGINE_PARALLEL.equals(params.get(UPLOAD_ENGINE_PARAM));
+  }
+
   @Nullable
   public static String getS3BucketName(@NotNull Map<String, String> params) {
     return getNewOrOld(params, S3_BUCKET_NAME_PARAM, S3_BUCKET_NAME_PARAM_OLD);
@@ -162,6 +196,26 @@ final class CodeDeployUtil {
     return getNewOrOld(params, S3_OBJECT_KEY_PARAM, S3_OBJECT_KEY_PARAM_OLD);
   }
 
+  @Nullable
+  public static String getS3ObjectKeyTemplate(@NotNull Map<String, String> params) {
+    return params.get(S3_OBJECT_KEY_TEMPLATE_PARAM);
+  }
+
+  /**
+   * True if the step uploads every archive matched by the revision paths as is, see {@link #getBulkS3ObjectKey(String, String)}
+   */
+  public static boolean isBulkUpload(@NotNull Map<String, String> params) {
+    return !StringUtil.isEmptyOrSpaces(getS3ObjectKeyTemplate(params));
+  }
+
+  /**
+   * @return S3 object key of the archive uploaded in bulk, {@link CodeDeployConstants#ARCHIVE_NAME_PLACEHOLDER} is replaced with the archive name
+   */
+  @NotNull
+  public static String getBulkS3ObjectKey(@NotNull String s3ObjectKeyTemplate, @NotNull String archiveName) {
+    return s3ObjectKeyTemplate.trim().replace(ARCHIVE_NAME_PLACEHOLDER, archiveName);
+  }
+
   @Nullable
   public static String getFileExistsBehavior(@NotNull Map<String, String> params) {
     return params.get(FILE_EXISTS_BEHAVIOR_PARAM);
@@ -177,6 +231,39 @@ final class CodeDeployUtil {
     return getNewOrOld(params, DEPLOYMENT_GROUP_NAME_PARAM, DEPLOYMENT_GROUP_NAME_PARAM_OLD);
   }
 
+  /**
+   * Deployment group parameter may list several newline-separated groups, each optionally prefixed with its region: [region:]group
+   *
+   * @return runner parameters for deploying to each of the groups, the step parameters themselves for a single group in the step region
+   */
+  @NotNull
+  public static List<Map<String, String>> getDeploymentGroupParameters(@NotNull Map<String, String> params) {
+    final String deploymentGroups = getDeploymentGroupName(params);
+    if (StringUtil.isEmptyOrSpaces(deploymentGroups)) return Collections.singletonList(params);
+
+    final List<Map<String, String>> result = new ArrayList<Map<String, String>>();
+    for (String s : deploymentGroups.trim().split(MULTILINE_SPLIT_REGEX)) {
+      s = s.trim();
+      if (s.isEmpty()) continue;
+
+      final Map<String, String> groupParams = new HashMap<String, String>(params);
+      final int separator = s.indexOf(':');
+      if (separator > 0) groupParams.put(AWSCommonParams.REGION_NAME_PARAM, s.substring(0, separator).trim());
+      groupParams.put(DEPLOYMENT_GROUP_NAME_PARAM, s.substring(separator + 1).trim());
+      result.add(groupParams);
+    }
+    if (result.size() == 1 && deploymentGroups.indexOf(':') < 0) return Collections.singletonList(params);
+    return result;
+  }
+
+  /**
+   * True if the step deploys to several deployment groups or to a group in another region, see {@link #getDeploymentGroupParameters(Map)}
+   */
+  public static boolean isFanOutDeployment(@NotNull Map<String, String> params) {
+    final String deploymentGroups = getDeploymentGroupName(params);
+    return deploymentGroups != null && (deploymentGroups.indexOf(':') >= 0 || deploymentGroups.trim().split(MULTILINE_SPLIT_REGEX).length > 1);
+  }
+
   @Nullable
   public static String getDeploymentConfigName(@NotNull Map<String, String> params) {
     return getNewOrOld(params, DEPLOYMENT_CONFIG_NAME_PARAM, DEPLOYMENT_CONFIG_NAME_PARAM_OLD);
@@ -192,6 +279,33 @@ final class CodeDeployUtil {
     return getNewOrOld(params, ROLLBACK_ON_ALARM_THRESHOLD_PARAM, ROLLBACK_ON_ALARM_THRESHOLD_PARAM_OLD);
   }
 
+  @Nullable
+  public static String getWaitTimeoutSec(@NotNull Map<String, String> params) {
+    return params.get(WAIT_TIMEOUT_SEC_PARAM);
+  }
+
+  public static boolean isStopOnTimeout(@NotNull Map<String, String> params) {
+    return Boolean.parseBoolean(params.get(STOP_ON_TIMEOUT_PARAM));
+  }
+
+  public static boolean isCoordinatedDeployment(@NotNull Map<String, String> params) {
+    return Boolean.parseBoolean(params.get(COORDINATED_DEPLOYMENT_PARAM));
+  }
+
+  /**
+   * True if the step rolls the revision out in waves, see {@link RolloutPlan}
+   */
+  public static boolean isRolloutDeployment(@NotNull Map<String, String> params) {
+    return !StringUtil.isEmptyOrSpaces(params.get(ROLLOUT_PLAN_PARAM));
+  }
+
+  /**
+   * True if the step deploys several revisions, see {@link DeploymentMatrix}
+   */
+  public static boolean isMatrixDeployment(@NotNull Map<String, String> params) {
+    return !StringUtil.isEmptyOrSpaces(params.get(MATRIX_PARAM));
+  }
+
   @Nullable
   public static String getGreenFleet(@NotNull Map<String, String> params) {
     return getNewOrOld(params, GREEN_FLEET_PARAM, GREEN_FLEET_PARAM_OLD);
@@ -0,0 +1,72 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+import static jetbrains.buildServer.runner.codedeploy.CodeDeployConstants.*;
+
+/**
+ * Several revisions deployed by one step, e.g. revisions of several CodeDeploy applications built together. The matrix
+ * lists an entry per line: revision paths; S3 object key; application; deployment group. Empty fields are taken from
+ * the step settings, revision paths are comma-separated, e.g.
+ * <pre>
+ * web/dist/** => ., web/appspec.yml; web.zip; web-app; web-prod
+ * api/build/api.zip; api.zip; api-app; api-prod
+ * </pre>
+ */
+public final class DeploymentMatrix {
+  static final String FIELD_SEPARATOR = ";";
+  static final int FIELDS = 4;
+
+  @NotNull
+  private final List<Map<String, String>> myEntries;
+
+  private DeploymentMatrix(@NotNull List<Map<String, String>> entries) {
+    myEntries = entries;
+  }
+
+  /**
+   * Runner parameters of the matrix entries in the matrix order
+   */
+  @NotNull
+  public List<Map<String, String>> getEntries() {
+    return myEntries;
+  }
+
+  /**
+   * @return the matrix or null if the step has no deployment matrix
+   * @throws IllegalArgumentException with the reason if the matrix is malformed
+   */
+  @Nullable
+  public static DeploymentMatrix parse(@NotNull Map<String, String> params) {
+    final String matrix = params.get(MATRIX_PARAM);
+    if (StringUtil.isEmptyOrSpaces(matrix)) return null;
+
+    final List<Map<String, String>> entries = new ArrayList<Map<String, String>>();
+    for (String line : matrix.trim().split("[\n\r]+")) {
+      line = line.trim();
+      if (line.isEmpty()) continue;
+
+      final String[] fields = line.split(FIELD_SEPARATOR, -1);
+      if (fields.length > FIELDS) throw new IllegalArgumentException("entry " + (entries.size() + 1) + " has more than " + FIELDS + " fields");
+
+      final Map<String, String> entryParams = new HashMap<String, String>(params);
+      entryParams.remove(MATRIX_PARAM);
+      putIfNotEmpty(entryParams, REVISION_PATHS_PARAM, fields, 0);
+      putIfNotEmpty(entryParams, S3_OBJECT_KEY_PARAM, fields, 1);
+      putIfNotEmpty(entryParams, APP_NAME_PARAM, fields, 2);
+      putIfNotEmpty(entryParams, DEPLOYMENT_GROUP_NAME_PARAM, fields, 3);
+      entries.add(entryParams);
+    }
+    return new DeploymentMatrix(Collections.unmodifiableList(entries));
+  }
+
+  private static void putIfNotEmpty(@NotNull Map<String, String> params, @NotNull String name, @NotNull String[] fields, int index) {
+    if (index >= fields.length) return;
+    final String value = fields[index].trim();
+    if (!value.isEmpty()) params.put(name, value);
+  }
+}
@@ -0,0 +1,207 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.codedeploy.AmazonCodeDeployClient;
+import com.amazonaws.services.codedeploy.model.*;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Incrementally tracks targets of a single deployment: target ids are listed page by page across polls,
+ * only not yet finished targets are fetched, at most {@link #MAX_TARGETS_PER_POLL} per poll in round-robin order,
+ * and only targets updated since the previous poll are reported together with their new lifecycle events.
+ * So the cost of a poll stays bounded for deployment groups with thousands of instances.
+ */
+final class DeploymentTargetsTracker {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(DeploymentTargetsTracker.class.getName());
+
+  static final int MAX_TARGETS_PER_POLL = 100;
+  static final int MAX_LIST_PAGES_PER_POLL = 5;
+  private static final int MAX_BATCH_SIZE = 25;
+
+  private static final Collection<String> FINISHED_STATUSES = Arrays.asList(
+    TargetStatus.Succeeded.toString(), TargetStatus.Failed.toString(), TargetStatus.Skipped.toString());
+
+  @NotNull
+  private final String myDeploymentId;
+  @NotNull
+  private final List<String> myTargetIds = new ArrayList<String>();
+  @NotNull
+  private final Set<String> myFinishedTargetIds = new HashSet<String>();
+  @NotNull
+  private final Map<String, Date> myLastUpdates = new HashMap<String, Date>();
+  @NotNull
+  private final Map<String, String> myReportedEvents = new HashMap<String, String>();
+  @Nullable
+  private String myNextToken;
+  @Nullable
+  private Date myCheckpoint;
+  private boolean myListed;
+  private boolean myDisabled;
+  private int myCursor;
+
+  DeploymentTargetsTracker(@NotNull String deploymentId) {
+    myDeploymentId = deploymentId;
+  }
+
+  @NotNull
+  String getDeploymentId() {
+    return myDeploymentId;
+  }
+
+  /**
+   * Targets and lifecycle events not updated since the checkpoint are considered already reported
+   */
+  synchronized void setCheckpoint(@Nullable Date checkpoint) {
+    myCheckpoint = checkpoint;
+  }
+
+  /**
+   * @return targets updated since the previous poll with their lifecycle events changed since then
+   */
+  @NotNull
+  synchronized List<AWSClient.Listener.DeploymentTargetStatus> poll(@NotNull AmazonCodeDeployClient codeDeployClient, @NotNull CodeDeployThrottling throttling) {
+    if (myDisabled) return Collections.emptyList();
+    try {
+      listTargets(codeDeployClient, throttling);
+      return fetchTargets(codeDeployClient, throttling);
+    } catch (AmazonServiceException e) {
+      if (e.getStatusCode() != 403 && !"AccessDeniedException".equals(e.getErrorCode())) throw e;
+      LOG.info("Not allowed to get deployment " + myDeploymentId + " targets, per instance progress won't be reported: " + e.getMessage());
+      myDisabled = true;
+      return Collections.emptyList();
+    }
+  }
+
+  private void listTargets(@NotNull final AmazonCodeDeployClient codeDeployClient, @NotNull CodeDeployThrottling throttling) {
+    for (int page = 0; page < MAX_LIST_PAGES_PER_POLL && !myListed; ++page) {
+      final ListDeploymentTargetsResult result = throttling.call(new CodeDeployThrottling.Call<ListDeploymentTargetsResult>() {
+        @Override
+        public ListDeploymentTargetsResult run() {
+          return codeDeployClient.listDeploymentTargets(new ListDeploymentTargetsRequest().withDeploymentId(myDeploymentId).withNextToken(myNextToken));
+        }
+      });
+      if (result.getTargetIds() != null) {
+        for (String id : result.getTargetIds()) {
+          if (!myLastUpdates.containsKey(id)) {
+            myTargetIds.add(id);
+            myLastUpdates.put(id, null);
+          }
+        }
+      }
+      myNextToken = result.getNextToken();
+      myListed = myNextToken == null;
+    }
+  }
+
+  @NotNull
+  private List<AWSClient.Listener.DeploymentTargetStatus> fetchTargets(@NotNull final AmazonCodeDeployClient codeDeployClient, @NotNull CodeDeployThrottling throttling) {
+    final List<String> ids = new ArrayList<String>();
+    int scanned = 0;
+    for (; scanned < myTargetIds.size() && ids.size() < MAX_TARGETS_PER_POLL; ++scanned) {
+      final String id = myTargetIds.get((myCursor + scanned) % myTargetIds.size());
+      if (!myFinishedTargetIds.contains(id)) ids.add(id);
+    }
+    // finished targets are skipped, the next poll continues right after the last scanned one
+    if (!myTargetIds.isEmpty()) myCursor = (myCursor + scanned) % myTargetIds.size();
+
+    final List<AWSClient.Listener.DeploymentTargetStatus> result = new ArrayList<AWSClient.Listener.DeploymentTargetStatus>();
+    for (int i = 0; i < ids.size(); i += MAX_BATCH_SIZE) {
+      final List<String> batch = ids.subList(i, Math.min(ids.size(), i + MAX_BATCH_SIZE));
+      final List<DeploymentTarget> targets = throttling.call(new CodeDeployThrottling.Call<List<DeploymentTarget>>() {
+        @Override
+        public List<DeploymentTarget> run() {
+          return codeDeployClient.batchGetDeploymentTargets(new BatchGetDeploymentTargetsRequest().withDeploymentId(myDeploymentId).withTargetIds(batch)).getDeploymentTargets();
+        }
+      });
+      if (targets == null) continue;
+      for (DeploymentTarget target : targets) {
+        final AWSClient.Listener.DeploymentTargetStatus status = processTarget(target);
+        if (status != null) result.add(status);
+      }
+    }
+    return result;
+  }
+
+  @Nullable
+  private AWSClient.Listener.DeploymentTargetStatus processTarget(@NotNull DeploymentTarget target) {
+    final TargetInfo info = getTargetInfo(target);
+    if (info == null || info.id == null) return null;
+
+    if (info.status != null && FINISHED_STATUSES.contains(info.status)) myFinishedTargetIds.add(info.id);
+
+    final Date lastUpdate = myLastUpdates.get(info.id);
+    if (lastUpdate != null && lastUpdate.equals(info.lastUpdatedAt)) return null;
+    myLastUpdates.put(info.id, info.lastUpdatedAt);
+
+    final AWSClient.Listener.DeploymentTargetStatus status = new AWSClient.Listener.DeploymentTargetStatus();
+    status.id = info.id;
+    status.status = info.status;
+    if (info.events != null) {
+      for (LifecycleEvent event : info.events) {
+        if (event.getStatus() == null || LifecycleEventStatus.Pending.toString().equals(event.getStatus())) continue;
+
+        final String key = info.id + "/" + event.getLifecycleEventName();
+        if (event.getStatus().equals(myReportedEvents.put(key, event.getStatus()))) continue;
+        if (isBeforeCheckpoint(event.getEndTime() == null ? event.getStartTime() : event.getEndTime())) continue;
+
+        status.events.add(createEventStatus(event));
+      }
+    }
+    return status.events.isEmpty() && isBeforeCheckpoint(info.lastUpdatedAt) ? null : status;
+  }
+
+  private boolean isBeforeCheckpoint(@Nullable Date time) {
+    return myCheckpoint != null && time != null && !time.after(myCheckpoint);
+  }
+
+  @NotNull
+  private static AWSClient.Listener.LifecycleEventInfo createEventStatus(@NotNull LifecycleEvent event) {
+    final AWSClient.Listener.LifecycleEventInfo status = new AWSClient.Listener.LifecycleEventInfo();
+    status.name = event.getLifecycleEventName();
+    status.status = event.getStatus();
+    if (event.getStartTime() != null && event.getEndTime() != null) {
+      status.durationMs = event.getEndTime().getTime() - event.getStartTime().getTime();
+    }
+    return status;
+  }
+
+  @Nullable
+  private static TargetInfo getTargetInfo(@NotNull DeploymentTarget target) {
+    if (target.getInstanceTarget() != null) {
+      final InstanceTarget t = target.getInstanceTarget();
+      return new TargetInfo(t.getTargetId(), t.getStatus(), t.getLastUpdatedAt(), t.getLifecycleEvents());
+    }
+    if (target.getEcsTarget() != null) {
+      final ECSTarget t = target.getEcsTarget();
+      return new TargetInfo(t.getTargetId(), t.getStatus(), t.getLastUpdatedAt(), t.getLifecycleEvents());
+    }
+    if (target.getLambdaTarget() != null) {
+      final LambdaTarget t = target.getLambdaTarget();
+      return new TargetInfo(t.getTargetId(), t.getStatus(), t.getLastUpdatedAt(), t.getLifecycleEvents());
+    }
+    if (target.getCloudFormationTarget() != null) {
+      final CloudFormationTarget t = target.getCloudFormationTarget();
+      return new TargetInfo(t.getTargetId(), t.getStatus(), t.getLastUpdatedAt(), t.getLifecycleEvents());
+    }
+    return null;
+  }
+
+  private static final class TargetInfo {
+    @Nullable private final String id;
+    @Nullable private final String status;
+    @Nullable private final Date lastUpdatedAt;
+    @Nullable private final List<LifecycleEvent> events;
+
+    private TargetInfo(@Nullable String id, @Nullable String status, @Nullable Date lastUpdatedAt, @Nullable List<LifecycleEvent> events) {
+      this.id = id;
+      this.status = status;
+      this.lastUpdatedAt = lastUpdatedAt;
+      this.events = events;
+    }
+  }
+}
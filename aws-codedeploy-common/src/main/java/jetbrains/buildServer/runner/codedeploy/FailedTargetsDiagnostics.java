@@ -0,0 +1,138 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.services.codedeploy.AmazonCodeDeployClient;
+import com.amazonaws.services.codedeploy.model.*;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Collects lifecycle event diagnostics of failed deployment targets: at most {@link #MAX_TARGETS} failed targets
+ * are fetched in parallel batches using a small thread pool shared in this JVM, results not received
+ * within {@link #TIME_BUDGET_MS} are dropped.
+ */
+final class FailedTargetsDiagnostics {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(FailedTargetsDiagnostics.class.getName());
+
+  static final int MAX_TARGETS = 50;
+  static final long TIME_BUDGET_MS = TimeUnit.SECONDS.toMillis(20);
+  private static final int MAX_BATCH_SIZE = 25;
+  private static final int THREADS = 4;
+
+  @NotNull
+  private static final ExecutorService ourExecutor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+    new LinkedBlockingQueue<Runnable>(), new NamedDaemonThreadFactory("CodeDeploy failure diagnostics"));
+
+  static {
+    ((ThreadPoolExecutor) ourExecutor).allowCoreThreadTimeOut(true);
+  }
+
+  private FailedTargetsDiagnostics() {
+  }
+
+  @NotNull
+  static List<AWSClient.Listener.TargetDiagnostics> fetch(@NotNull final AmazonCodeDeployClient codeDeployClient, @NotNull final CodeDeployThrottling throttling, @NotNull final String deploymentId) {
+    final long deadline = System.currentTimeMillis() + TIME_BUDGET_MS;
+    final List<String> failedIds = listFailedTargets(codeDeployClient, throttling, deploymentId);
+
+    final List<Future<List<DeploymentTarget>>> batches = new ArrayList<Future<List<DeploymentTarget>>>();
+    for (int i = 0; i < failedIds.size(); i += MAX_BATCH_SIZE) {
+      final List<String> ids = failedIds.subList(i, Math.min(failedIds.size(), i + MAX_BATCH_SIZE));
+      batches.add(ourExecutor.submit(new Callable<List<DeploymentTarget>>() {
+        @Override
+        public List<DeploymentTarget> call() throws Exception {
+          return throttling.call(new CodeDeployThrottling.Call<List<DeploymentTarget>>() {
+            @Override
+            public List<DeploymentTarget> run() {
+              return codeDeployClient.batchGetDeploymentTargets(new BatchGetDeploymentTargetsRequest().withDeploymentId(deploymentId).withTargetIds(ids)).getDeploymentTargets();
+            }
+          });
+        }
+      }));
+    }
+
+    final List<AWSClient.Listener.TargetDiagnostics> result = new ArrayList<AWSClient.Listener.TargetDiagnostics>();
+    for (Future<List<DeploymentTarget>> batch : batches) {
+      try {
+        final List<DeploymentTarget> targets = batch.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        if (targets == null) continue;
+        for (DeploymentTarget target : targets) {
+          addDiagnostics(target, result);
+        }
+      } catch (TimeoutException e) {
+        batch.cancel(true);
+        LOG.info("Time budget of " + TIME_BUDGET_MS + " ms exceeded while fetching deployment " + deploymentId + " failed targets diagnostics");
+      } catch (Exception e) {
+        LOG.debug("Failed to fetch deployment " + deploymentId + " failed targets diagnostics", e);
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private static List<String> listFailedTargets(@NotNull final AmazonCodeDeployClient codeDeployClient, @NotNull CodeDeployThrottling throttling, @NotNull final String deploymentId) {
+    final List<String> ids = new ArrayList<String>();
+    String nextToken = null;
+    do {
+      final String token = nextToken;
+      final ListDeploymentTargetsResult result = throttling.call(new CodeDeployThrottling.Call<ListDeploymentTargetsResult>() {
+        @Override
+        public ListDeploymentTargetsResult run() {
+          return codeDeployClient.listDeploymentTargets(
+            new ListDeploymentTargetsRequest()
+              .withDeploymentId(deploymentId)
+              .withTargetFilters(Collections.singletonMap(TargetFilterName.TargetStatus.toString(), Collections.singletonList(TargetStatus.Failed.toString())))
+              .withNextToken(token));
+        }
+      });
+      if (result.getTargetIds() != null) ids.addAll(result.getTargetIds());
+      nextToken = result.getNextToken();
+    } while (nextToken != null && ids.size() < MAX_TARGETS);
+    return ids.size() > MAX_TARGETS ? ids.subList(0, MAX_TARGETS) : ids;
+  }
+
+  private static void addDiagnostics(@NotNull DeploymentTarget target, @NotNull List<AWSClient.Listener.TargetDiagnostics> result) {
+    final String targetId;
+    final List<LifecycleEvent> events;
+    if (target.getInstanceTarget() != null) {
+      targetId = target.getInstanceTarget().getTargetId();
+      events = target.getInstanceTarget().getLifecycleEvents();
+    } else if (target.getEcsTarget() != null) {
+      targetId = target.getEcsTarget().getTargetId();
+      events = target.getEcsTarget().getLifecycleEvents();
+    } else if (target.getLambdaTarget() != null) {
+      targetId = target.getLambdaTarget().getTargetId();
+      events = target.getLambdaTarget().getLifecycleEvents();
+    } else if (target.getCloudFormationTarget() != null) {
+      targetId = target.getCloudFormationTarget().getTargetId();
+      events = target.getCloudFormationTarget().getLifecycleEvents();
+    } else {
+      return;
+    }
+    if (targetId == null || events == null) return;
+
+    for (LifecycleEvent event : events) {
+      if (!LifecycleEventStatus.Failed.toString().equals(event.getStatus())) continue;
+      result.add(createDiagnostics(targetId, event.getLifecycleEventName(), event.getDiagnostics()));
+    }
+  }
+
+  @NotNull
+  private static AWSClient.Listener.TargetDiagnostics createDiagnostics(@NotNull String targetId, @Nullable String eventName, @Nullable Diagnostics diagnostics) {
+    final AWSClient.Listener.TargetDiagnostics result = new AWSClient.Listener.TargetDiagnostics();
+    result.targetId = targetId;
+    result.lifecycleEvent = eventName;
+    if (diagnostics != null) {
+      result.errorCode = diagnostics.getErrorCode();
+      result.scriptName = diagnostics.getScriptName();
+      result.message = diagnostics.getMessage();
+      result.logTail = diagnostics.getLogTail();
+    }
+    return result;
+  }
+}
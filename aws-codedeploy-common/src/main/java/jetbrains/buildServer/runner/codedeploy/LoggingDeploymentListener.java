@@ -13,6 +13,8 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -25,11 +27,14 @@ abstract class LoggingDeploymentListener extends AWSClient.Listener {
   static final String DEPLOY_APPLICATION = "deploy application";
   static final String REGISTER_REVISION = "register revision";
   static final String UPLOAD_REVISION = "upload revision";
+  static final String FAILED_TARGETS = "failed targets";
 
   @NotNull
   private final Map<String, String> myRunnerParameters;
   @Nullable
   private final String myCheckoutDir;
+  @NotNull
+  private final Map<String, InstancesStatus> myLastInProgress = new HashMap<String, InstancesStatus>();
 
   LoggingDeploymentListener(@NotNull Map<String, String> runnerParameters, @Nullable String checkoutDir) {
     myRunnerParameters = runnerParameters;
@@ -44,6 +49,21 @@ abstract class LoggingDeploymentListener extends AWSClient.Listener {
 
   @Override
   void uploadRevisionFinished(@NotNull File revision, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {
+    revisionUploaded("Uploaded", s3ObjectVersion, s3ObjectETag, url);
+  }
+
+  @Override
+  void copyRevisionStarted(@NotNull String sourceBucketName, @NotNull String sourceObjectKey, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {
+    open(UPLOAD_REVISION);
+    log(String.format("Copying application revision %s%s/%s to S3 bucket %s using key %s", CodeDeployConstants.S3_URL_PREFIX, sourceBucketName, sourceObjectKey, s3BucketName, s3ObjectKey));
+  }
+
+  @Override
+  void copyRevisionFinished(@NotNull String sourceBucketName, @NotNull String sourceObjectKey, @NotNull String s3BucketName, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {
+    revisionUploaded("Copied", s3ObjectVersion, s3ObjectETag, url);
+  }
+
+  private void revisionUploaded(@NotNull String action, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag, @NotNull String url) {
     final boolean hasVersion = StringUtil.isNotEmpty(s3ObjectVersion);
     final boolean hasETag = StringUtil.isNotEmpty(s3ObjectETag);
 
@@ -54,9 +74,14 @@ abstract class LoggingDeploymentListener extends AWSClient.Listener {
         (hasVersion && hasETag ? "&" : "") +
         (hasETag ? "etag=" + s3ObjectETag : "");
 
-    log("Uploaded application revision " + directUrl);
+    log(action + " application revision " + directUrl);
+    // archives uploaded in bulk are published with indexed parameters and a single status text, see archivesUploaded
+    if (CodeDeployUtil.isBulkUpload(myRunnerParameters)) {
+      close(UPLOAD_REVISION);
+      return;
+    }
     if (!CodeDeployUtil.isRegisterStepEnabled(myRunnerParameters)) {
-      statusText("Uploaded " + directUrl);
+      statusText(action + " " + directUrl);
     }
     if (hasVersion) parameter(CodeDeployConstants.S3_OBJECT_VERSION_CONFIG_PARAM, s3ObjectVersion);
     if (hasETag) parameter(CodeDeployConstants.S3_OBJECT_ETAG_CONFIG_PARAM, s3ObjectETag);
@@ -94,10 +119,179 @@ abstract class LoggingDeploymentListener extends AWSClient.Listener {
   void deploymentWaitStarted(@NotNull String deploymentId) {
   }
 
+  @Override
+  void deploymentRequested(@NotNull String applicationName, @NotNull String deploymentGroupName, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {
+    parameter(CodeDeployConstants.S3_OBJECT_KEY_CONFIG_PARAM, s3ObjectKey);
+    parameter(CodeDeployConstants.DEPLOYMENT_REQUESTED_BUILD_CONFIG_PARAM, "true");
+    log(String.format("Requested application %s deployment to deployment group %s, TeamCity server will create it once previous deployments to the group finish", applicationName, deploymentGroupName));
+    statusText("Deployment queued");
+  }
+
+  @Override
+  void rollbackRevisionFound(@NotNull String deploymentGroupName, @NotNull String deploymentId, @NotNull String revision) {
+    log(String.format("Rolling back deployment group %s to revision %s of the last successful deployment %s", deploymentGroupName, revision, deploymentId));
+  }
 
+  @Override
+  void rolloutRequested(@NotNull String applicationName, @NotNull RolloutPlan plan, @NotNull String s3BucketName, @NotNull String s3ObjectKey) {
+    parameter(CodeDeployConstants.S3_OBJECT_KEY_CONFIG_PARAM, s3ObjectKey);
+    parameter(CodeDeployConstants.ROLLOUT_REQUESTED_BUILD_CONFIG_PARAM, "true");
+    final int waves = plan.getWaves().size();
+    log(String.format("Requested application %s rollout in %d %s, TeamCity server will deploy the waves one after another", applicationName, waves, StringUtil.pluralize("wave", waves)));
+    statusText("Rollout requested");
+  }
+
+  /**
+   * Rollout state is kept by the server in memory, the wave parameter tells the rollout was started
+   */
+  void rolloutWaveStarted(int wave, int waves, @NotNull Collection<String> deploymentGroups) {
+    parameter(CodeDeployConstants.ROLLOUT_WAVE_BUILD_CONFIG_PARAM, String.valueOf(wave));
+    final StringBuilder groups = new StringBuilder();
+    for (String group : deploymentGroups) {
+      if (groups.length() > 0) groups.append(", ");
+      groups.append(group);
+    }
+    log(String.format("Rollout wave %d of %d: deploying to %s %s", wave, waves, StringUtil.pluralize("deployment group", deploymentGroups.size()), groups));
+    statusText("Rollout wave " + wave + " of " + waves);
+  }
+
+  /**
+   * @param deploymentIds all the deployments created by the rollout so far
+   */
+  void rolloutDeploymentCreated(@NotNull String deploymentGroupName, @NotNull String deploymentId, @NotNull List<String> deploymentIds) {
+    parameter(CodeDeployConstants.DEPLOYMENT_IDS_BUILD_CONFIG_PARAM, joinIds(deploymentIds));
+    log(String.format("Deployment %s to deployment group %s created", deploymentId, deploymentGroupName));
+  }
+
+  void rolloutDeploymentDelayed(@NotNull String deploymentGroupName, @NotNull String reason) {
+    log(String.format("Deployment to deployment group %s delayed: %s", deploymentGroupName, reason));
+  }
+
+  /**
+   * Problem identity doesn't depend on the deployment, so that the same failing group is reported as the same problem
+   */
+  void rolloutHalted(@NotNull String deploymentGroupName, @NotNull String reason) {
+    final String message = "Rollout halted at deployment group " + deploymentGroupName + ": " + reason;
+    err(message);
+    problem(getIdentity("rollout", deploymentGroupName), CodeDeployConstants.FAILURE_BUILD_PROBLEM_TYPE, message);
+  }
+
+  void rolloutFinished(int waves) {
+    log(String.format("Rollout finished, all %d %s succeeded", waves, StringUtil.pluralize("wave", waves)));
+    statusText("Rollout finished");
+  }
+
+  /**
+   * Deployments to several deployment groups are tracked by the build together
+   */
+  @Override
+  void deploymentsCreated(@NotNull List<String> deploymentIds) {
+    parameter(CodeDeployConstants.DEPLOYMENT_IDS_BUILD_CONFIG_PARAM, joinIds(deploymentIds));
+    statusText("Created " + deploymentIds.size() + " " + StringUtil.pluralize("deployment", deploymentIds.size()));
+  }
+
+  /**
+   * Publishes the archive uploaded in bulk as indexed build parameters, index is 1-based
+   */
+  void archiveUploaded(int index, @NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag) {
+    parameter(CodeDeployConstants.S3_OBJECT_KEY_CONFIG_PARAM + "." + index, s3ObjectKey);
+    if (StringUtil.isNotEmpty(s3ObjectVersion)) parameter(CodeDeployConstants.S3_OBJECT_VERSION_CONFIG_PARAM + "." + index, s3ObjectVersion);
+    if (StringUtil.isNotEmpty(s3ObjectETag)) parameter(CodeDeployConstants.S3_OBJECT_ETAG_CONFIG_PARAM + "." + index, s3ObjectETag);
+  }
+
+  void archivesUploaded(@NotNull String s3BucketName, int count) {
+    parameter(CodeDeployConstants.S3_OBJECT_COUNT_CONFIG_PARAM, String.valueOf(count));
+    log(String.format("Uploaded %d application revision %s to S3 bucket %s", count, StringUtil.pluralize("archive", count), s3BucketName));
+    statusText("Uploaded " + count + " application revision " + StringUtil.pluralize("archive", count));
+  }
+
+  @NotNull
+  private static String joinIds(@NotNull List<String> deploymentIds) {
+    final StringBuilder ids = new StringBuilder();
+    for (String id : deploymentIds) {
+      if (ids.length() > 0) ids.append(',');
+      ids.append(id);
+    }
+    return ids.toString();
+  }
+
+  /**
+   * Reports the summary of deployments tracked together, instances of the deployments with known status are counted
+   */
+  void deploymentsProgress(int finished, int total, @NotNull Collection<InstancesStatus> statuses) {
+    final InstancesStatus sum = new InstancesStatus();
+    for (InstancesStatus s : statuses) {
+      sum.pending += s.pending;
+      sum.inProgress += s.inProgress;
+      sum.succeeded += s.succeeded;
+      sum.failed += s.failed;
+      sum.skipped += s.skipped;
+    }
+    sum.status = finished + " of " + total + " finished";
+    statusText(appendInstancesStatus(new StringBuilder("Deployments "), sum, false).toString());
+  }
+
+  /**
+   * Instance counters last reported for the deployment, null if nothing was reported yet
+   */
+  @Nullable
+  InstancesStatus getLastInProgress(@NotNull String deploymentId) {
+    return myLastInProgress.get(deploymentId);
+  }
+
+  /**
+   * Makes progress reporting resume from the previously reported counters, e.g. after a server restart
+   */
+  void restoreInProgress(@NotNull String deploymentId, @NotNull InstancesStatus instancesStatus) {
+    myLastInProgress.put(deploymentId, instancesStatus);
+  }
+
+  /**
+   * Reports progress only if something changed since the previous call, changes are logged as compact deltas
+   */
   @Override
   void deploymentInProgress(@NotNull String deploymentId, @Nullable InstancesStatus instancesStatus) {
+    final boolean known = myLastInProgress.containsKey(deploymentId);
+    final InstancesStatus last = myLastInProgress.put(deploymentId, instancesStatus);
+    if (known && isSame(last, instancesStatus)) return;
+
     progress(deploymentDescription(instancesStatus, deploymentId, false));
+
+    if (last != null && instancesStatus != null) {
+      final String delta = deploymentDelta(last, instancesStatus);
+      if (StringUtil.isNotEmpty(delta)) log("Deployment " + deploymentId + ": " + delta);
+    }
+  }
+
+  @Override
+  void deploymentStopped(@NotNull String deploymentId, @NotNull String reason) {
+    log("Deployment " + deploymentId + " stopped: " + reason);
+  }
+
+  @Override
+  void deploymentStatusUnavailable(@NotNull String deploymentId, @NotNull String reason) {
+    log("Deployment " + deploymentId + " status is unavailable: " + reason);
+  }
+
+  /**
+   * Streams the target lifecycle events into a nested block
+   */
+  @Override
+  void deploymentTargetUpdated(@NotNull String deploymentId, @NotNull DeploymentTargetStatus target) {
+    final String block = "target " + target.id;
+    open(block);
+    if (target.events.isEmpty()) {
+      log("Target " + target.id + " " + getTargetStatus(target.status));
+    }
+    for (LifecycleEventInfo event : target.events) {
+      log(event.name + " " + getTargetStatus(event.status) + (event.durationMs == null ? "" : " in " + event.durationMs / 1000 + " sec"));
+    }
+    close(block);
+  }
+
+  @NotNull
+  private static String getTargetStatus(@Nullable String status) {
+    return StringUtil.isEmptyOrSpaces(status) ? CodeDeployConstants.STATUS_IS_UNKNOWN : StringUtil.decapitalize(status).replace("inProgress", "in progress");
   }
 
   @Override
@@ -115,11 +309,33 @@ abstract class LoggingDeploymentListener extends AWSClient.Listener {
       if (StringUtil.isNotEmpty(errorInfo.code)) {
         err("Error code: " + errorInfo.code);
       }
+      if (!errorInfo.diagnostics.isEmpty()) {
+        logDiagnostics(errorInfo.diagnostics);
+        msg += "; " + diagnosticsDescription(errorInfo.diagnostics.get(0)) +
+          (errorInfo.diagnostics.size() > 1 ? " and " + (errorInfo.diagnostics.size() - 1) + " more" : "");
+      }
     }
 
     problem(getIdentity(timeoutSec, errorInfo, instancesStatus), timeoutSec == null ? CodeDeployConstants.FAILURE_BUILD_PROBLEM_TYPE : CodeDeployConstants.TIMEOUT_BUILD_PROBLEM_TYPE, msg);
   }
 
+  private void logDiagnostics(@NotNull List<TargetDiagnostics> diagnostics) {
+    open(FAILED_TARGETS);
+    for (TargetDiagnostics d : diagnostics) {
+      err(diagnosticsDescription(d));
+      if (StringUtil.isNotEmpty(d.message)) err("Message: " + d.message);
+      if (StringUtil.isNotEmpty(d.logTail)) log("Log tail:\n" + d.logTail);
+    }
+    close(FAILED_TARGETS);
+  }
+
+  @NotNull
+  private static String diagnosticsDescription(@NotNull TargetDiagnostics d) {
+    return "target " + d.targetId + " " + (StringUtil.isEmpty(d.lifecycleEvent) ? "" : d.lifecycleEvent + " ") + "failed" +
+      (StringUtil.isEmpty(d.errorCode) ? "" : " with " + d.errorCode) +
+      (StringUtil.isEmpty(d.scriptName) ? "" : " in " + d.scriptName);
+  }
+
   @Override
   void deploymentSucceeded(@NotNull String deploymentId, @Nullable InstancesStatus instancesStatus) {
     log(deploymentDescription(instancesStatus, deploymentId, true));
@@ -155,6 +371,11 @@ abstract class LoggingDeploymentListener extends AWSClient.Listener {
       sb.append(deploymentId).append(" ");
     }
 
+    return appendInstancesStatus(sb, instancesStatus, detailed).toString();
+  }
+
+  @NotNull
+  private static StringBuilder appendInstancesStatus(@NotNull StringBuilder sb, @Nullable InstancesStatus instancesStatus, boolean detailed) {
     if (instancesStatus == null) sb.append(CodeDeployConstants.STATUS_IS_UNKNOWN);
     else {
       sb.append(StringUtil.isEmptyOrSpaces(instancesStatus.status) ? CodeDeployConstants.STATUS_IS_UNKNOWN : instancesStatus.status);
@@ -164,10 +385,35 @@ abstract class LoggingDeploymentListener extends AWSClient.Listener {
       if (instancesStatus.skipped > 0 || detailed) sb.append(", ").append(instancesStatus.skipped).append(" skipped");
       if (instancesStatus.inProgress > 0 || detailed) sb.append(", ").append(instancesStatus.inProgress).append(" in progress");
     }
+    return sb;
+  }
+
+  private static boolean isSame(@Nullable InstancesStatus s1, @Nullable InstancesStatus s2) {
+    if (s1 == null || s2 == null) return s1 == s2;
+    return s1.pending == s2.pending && s1.inProgress == s2.inProgress && s1.succeeded == s2.succeeded &&
+      s1.failed == s2.failed && s1.skipped == s2.skipped && StringUtil.areEqual(s1.status, s2.status);
+  }
+
+  @NotNull
+  private static String deploymentDelta(@NotNull InstancesStatus last, @NotNull InstancesStatus current) {
+    final StringBuilder sb = new StringBuilder();
+    if (!StringUtil.areEqual(last.status, current.status) && StringUtil.isNotEmpty(current.status)) appendDelta(sb, current.status);
+
+    final int succeeded = current.succeeded - last.succeeded;
+    if (succeeded > 0) appendDelta(sb, "+" + succeeded + " succeeded");
+    final int failed = current.failed - last.failed;
+    if (failed > 0) appendDelta(sb, failed + " new " + StringUtil.pluralize("failure", failed));
+    final int skipped = current.skipped - last.skipped;
+    if (skipped > 0) appendDelta(sb, "+" + skipped + " skipped");
 
     return sb.toString();
   }
 
+  private static void appendDelta(@NotNull StringBuilder sb, @NotNull String change) {
+    if (sb.length() > 0) sb.append(", ");
+    sb.append(change);
+  }
+
   private int getIdentity(String... parts) {
     return AWSCommonParams.calculateIdentity(myCheckoutDir, myRunnerParameters, CollectionsUtil.join(getIdentityFormingParameters(), Arrays.asList(parts)));
   }
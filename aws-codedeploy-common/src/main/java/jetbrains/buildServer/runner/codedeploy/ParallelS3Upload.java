@@ -0,0 +1,148 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Multipart S3 upload which sends parts straight from the file regions using a single bounded thread pool
+ * shared by all uploads in this JVM, so the number of threads doesn't grow with the number of concurrent uploads.
+ * Upload can be aborted from another thread, in this case already uploaded parts are released.
+ */
+final class ParallelS3Upload {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(ParallelS3Upload.class.getName());
+
+  static final long MIN_PART_SIZE = 64 * 1024 * 1024;
+  static final int MAX_PARTS = 10000;
+  private static final int THREADS = Math.min(16, Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+  @NotNull
+  private static final ExecutorService ourExecutor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+    new LinkedBlockingQueue<Runnable>(), new NamedDaemonThreadFactory("CodeDeploy S3 upload"));
+
+  static {
+    ((ThreadPoolExecutor) ourExecutor).allowCoreThreadTimeOut(true);
+  }
+
+  @NotNull
+  private final AmazonS3 myS3Client;
+  @NotNull
+  private final File myFile;
+  @NotNull
+  private final String myBucketName;
+  @NotNull
+  private final String myKey;
+  @NotNull
+  private final List<Future<PartETag>> myParts = new CopyOnWriteArrayList<Future<PartETag>>();
+  private volatile boolean myAborted;
+
+  ParallelS3Upload(@NotNull AmazonS3 s3Client, @NotNull File file, @NotNull String bucketName, @NotNull String key) {
+    myS3Client = s3Client;
+    myFile = file;
+    myBucketName = bucketName;
+    myKey = key;
+  }
+
+  @NotNull
+  UploadResult upload() throws Throwable {
+    checkAborted();
+    final long size = myFile.length();
+    final long partSize = getPartSize(size);
+    if (size <= partSize) return putObject();
+
+    final String uploadId = myS3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(myBucketName, myKey)).getUploadId();
+    try {
+      int partNumber = 1;
+      for (long offset = 0; offset < size; offset += partSize, ++partNumber) {
+        checkAborted();
+        myParts.add(ourExecutor.submit(uploadPart(uploadId, partNumber, offset, Math.min(partSize, size - offset))));
+      }
+      checkAborted();
+
+      final List<PartETag> partETags = new ArrayList<PartETag>(myParts.size());
+      for (Future<PartETag> part : myParts) {
+        partETags.add(part.get());
+      }
+      checkAborted();
+
+      final CompleteMultipartUploadResult result = myS3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(myBucketName, myKey, uploadId, partETags));
+      return createResult(result.getETag(), result.getVersionId());
+    } catch (Throwable t) {
+      cancelParts();
+      abortQuietly(uploadId);
+      throw t instanceof ExecutionException && t.getCause() != null ? t.getCause() : t;
+    }
+  }
+
+  /**
+   * Cancels parts being uploaded, the upload itself is then aborted by the uploading thread
+   */
+  void abort() {
+    myAborted = true;
+    cancelParts();
+  }
+
+  private void cancelParts() {
+    for (Future<PartETag> part : myParts) {
+      part.cancel(true);
+    }
+  }
+
+  private void checkAborted() {
+    if (myAborted) throw new CancellationException("Upload of " + myFile + " to S3 bucket " + myBucketName + " aborted");
+  }
+
+  @NotNull
+  private UploadResult putObject() {
+    final PutObjectResult result = myS3Client.putObject(new PutObjectRequest(myBucketName, myKey, myFile));
+    return createResult(result.getETag(), result.getVersionId());
+  }
+
+  @NotNull
+  private Callable<PartETag> uploadPart(@NotNull final String uploadId, final int partNumber, final long offset, final long partSize) {
+    return new Callable<PartETag>() {
+      @Override
+      public PartETag call() throws Exception {
+        return myS3Client.uploadPart(new UploadPartRequest()
+          .withBucketName(myBucketName)
+          .withKey(myKey)
+          .withUploadId(uploadId)
+          .withPartNumber(partNumber)
+          .withFile(myFile)
+          .withFileOffset(offset)
+          .withPartSize(partSize)).getPartETag();
+      }
+    };
+  }
+
+  private void abortQuietly(@NotNull String uploadId) {
+    try {
+      myS3Client.abortMultipartUpload(new AbortMultipartUploadRequest(myBucketName, myKey, uploadId));
+    } catch (Exception e) {
+      LOG.warn("Failed to abort multipart upload " + uploadId + " of " + myFile + " to S3 bucket " + myBucketName, e);
+    }
+  }
+
+  @NotNull
+  private UploadResult createResult(String eTag, String versionId) {
+    final UploadResult result = new UploadResult();
+    result.setBucketName(myBucketName);
+    result.setKey(myKey);
+    result.setETag(eTag);
+    result.setVersionId(versionId);
+    return result;
+  }
+
+  static long getPartSize(long size) {
+    return Math.max(MIN_PART_SIZE, (size + MAX_PARTS - 1) / MAX_PARTS);
+  }
+}
@@ -9,9 +9,11 @@ import jetbrains.buildServer.util.amazon.AWSCommonParams;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static jetbrains.buildServer.runner.codedeploy.CodeDeployConstants.*;
@@ -21,6 +23,10 @@ import static jetbrains.buildServer.runner.codedeploy.CodeDeployUtil.*;
  * @author vbedrosova
  */
 final class ParametersValidator {
+  // parameters set by the deployment matrix entries
+  private static final List<String> MATRIX_ENTRY_PARAMS = Arrays.asList(REVISION_PATHS_PARAM, S3_OBJECT_KEY_PARAM, APP_NAME_PARAM, DEPLOYMENT_GROUP_NAME_PARAM);
+  private static final String SINGLE_REGION_ERROR = "must list deployment groups of one region, CodeDeploy deploys revisions only from S3 buckets in the deployment group region";
+
   /**
    * Must be used for parameters validation during the build
    * Returns map from parameter name to invalidity reason
@@ -29,15 +35,81 @@ final class ParametersValidator {
   static Map<String, String> validateRuntime(@NotNull Map<String, String> runnerParams, @NotNull Map<String, String> configParams, @NotNull File checkoutDir) {
     final Map<String, String> invalids = new HashMap<String, String>(validate(runnerParams, true));
 
-    if (!invalids.containsKey(REVISION_PATHS_PARAM) && isUploadStepEnabled(runnerParams)) {
+    if (invalids.isEmpty() && isMatrixDeployment(runnerParams)) {
+      final DeploymentMatrix matrix = DeploymentMatrix.parse(runnerParams);
+      assert matrix != null;
+
+      final List<String> errors = new ArrayList<String>();
+      for (int i = 0; i < matrix.getEntries().size(); ++i) {
+        for (String error : validateRuntime(matrix.getEntries().get(i), configParams, checkoutDir).values()) {
+          errors.add("entry " + (i + 1) + ": " + error);
+        }
+      }
+      if (!errors.isEmpty()) invalids.put(MATRIX_PARAM, getMatrixError(errors));
+      return Collections.unmodifiableMap(invalids);
+    }
+
+    if (!invalids.containsKey(REVISION_PATHS_PARAM) && isUploadStepEnabled(runnerParams) && StringUtil.isEmpty(getRevisionS3Source(runnerParams))) {
       final String revisionPath = getReadyRevision(runnerParams.get(REVISION_PATHS_PARAM));
       if (revisionPath != null && !FileUtil.resolvePath(checkoutDir, revisionPath).exists()) {
         invalids.put(REVISION_PATHS_PARAM, REVISION_PATHS_LABEL + " " + revisionPath + " doesn't exist");
       }
     }
+
+    if (invalids.isEmpty()) {
+      validateKnownMissingResources(invalids, runnerParams);
+    }
     return Collections.unmodifiableMap(invalids);
   }
 
+  /**
+   * Reports resources already known to be missing from {@link CodeDeployMetadataCache}, never performs network calls
+   */
+  private static void validateKnownMissingResources(@NotNull Map<String, String> invalids, @NotNull Map<String, String> runnerParams) {
+    final boolean registerStepEnabled = isRegisterStepEnabled(runnerParams);
+    final boolean deployStepEnabled = isDeployStepEnabled(runnerParams) || isRollbackStepEnabled(runnerParams);
+    if (!registerStepEnabled && !deployStepEnabled) return;
+
+    final CodeDeployMetadataCache cache = CodeDeployMetadataCache.getInstance();
+    final String scope = CodeDeployMetadataCache.getScope(runnerParams);
+
+    final String applicationName = getAppName(runnerParams);
+    if (StringUtil.isNotEmpty(applicationName)) {
+      if (cache.getKnownMissingError(CodeDeployMetadataCache.getKey(scope, CodeDeployMetadataCache.APPLICATION, applicationName)) != null) {
+        invalids.put(APP_NAME_PARAM, APP_NAME_LABEL + " " + applicationName + " doesn't exist");
+      } else if (deployStepEnabled) {
+        for (Map<String, String> groupParams : getDeployedGroupParameters(runnerParams)) {
+          final String deploymentGroupName = getDeploymentGroupName(groupParams);
+          if (StringUtil.isNotEmpty(deploymentGroupName) && cache.getKnownMissingError(CodeDeployMetadataCache.getKey(CodeDeployMetadataCache.getScope(groupParams), CodeDeployMetadataCache.DEPLOYMENT_GROUP, applicationName, deploymentGroupName)) != null) {
+            invalids.put(DEPLOYMENT_GROUP_NAME_PARAM, DEPLOYMENT_GROUP_NAME_LABEL + " " + deploymentGroupName + " doesn't exist");
+          }
+        }
+      }
+    }
+
+    final String deploymentConfigName = getDeploymentConfigName(runnerParams);
+    if (deployStepEnabled && StringUtil.isNotEmpty(deploymentConfigName) && cache.getKnownMissingError(CodeDeployMetadataCache.getKey(scope, CodeDeployMetadataCache.DEPLOYMENT_CONFIG, deploymentConfigName)) != null) {
+      invalids.put(DEPLOYMENT_CONFIG_NAME_PARAM, DEPLOYMENT_CONFIG_NAME_LABEL + " " + deploymentConfigName + " doesn't exist");
+    }
+  }
+
+  @NotNull
+  private static List<Map<String, String>> getDeployedGroupParameters(@NotNull Map<String, String> runnerParams) {
+    final RolloutPlan plan;
+    try {
+      plan = RolloutPlan.parse(runnerParams);
+    } catch (IllegalArgumentException e) {
+      return Collections.emptyList();
+    }
+    if (plan == null) return getDeploymentGroupParameters(runnerParams);
+
+    final List<Map<String, String>> result = new ArrayList<Map<String, String>>();
+    for (RolloutPlan.Wave wave : plan.getWaves()) {
+      result.addAll(wave.getGroups());
+    }
+    return result;
+  }
+
   /**
    * Returns map from parameter name to invalidity reason
    */
@@ -54,6 +126,7 @@ final class ParametersValidator {
     boolean uploadStepEnabled = false;
     boolean registerStepEnabled = false;
     boolean deployStepEnabled = false;
+    boolean rollbackStepEnabled = false;
 
     final String deploymentSteps = getDeploymentSteps(runnerParams);
     if (StringUtil.isEmptyOrSpaces(deploymentSteps)) {
@@ -62,15 +135,31 @@ final class ParametersValidator {
       uploadStepEnabled = isUploadStepEnabled(runnerParams);
       registerStepEnabled = isRegisterStepEnabled(runnerParams);
       deployStepEnabled = isDeployStepEnabled(runnerParams);
+      rollbackStepEnabled = isRollbackStepEnabled(runnerParams);
 
-      if (!uploadStepEnabled && !registerStepEnabled && !deployStepEnabled) {
+      if (!uploadStepEnabled && !registerStepEnabled && !deployStepEnabled && !rollbackStepEnabled) {
         invalids.put(DEPLOYMENT_STEPS_PARAM, DEPLOYMENT_STEPS_LABEL + " has unexpected value " + deploymentSteps);
       }
     }
 
+    if (isMatrixDeployment(runnerParams)) {
+      validateMatrix(invalids, runnerParams, uploadStepEnabled, deployStepEnabled, rollbackStepEnabled, runtime);
+      return invalids;
+    }
+
     if (uploadStepEnabled) {
       final String revisionPaths = getRevisionPaths(runnerParams);
-      if (StringUtil.isEmptyOrSpaces(revisionPaths)) {
+      final String revisionS3Source = getRevisionS3Source(runnerParams);
+      if (StringUtil.isNotEmpty(revisionS3Source)) {
+        if (!isReference(revisionS3Source, runtime)) {
+          final String sourceKey = getS3SourceKey(revisionS3Source);
+          if (getS3SourceBucket(revisionS3Source) == null || sourceKey == null) {
+            invalids.put(REVISION_S3_SOURCE_PARAM, REVISION_S3_SOURCE_LABEL + " has unexpected value, S3 location like s3://bucket/path/revision.zip expected");
+          } else if (null == getBundleType(sourceKey)) {
+            invalids.put(REVISION_S3_SOURCE_PARAM, REVISION_S3_SOURCE_LABEL + " provides invalid bundle type, supported bundle types are .zip, .tar and .tar.gz");
+          }
+        }
+      } else if (StringUtil.isEmptyOrSpaces(revisionPaths)) {
         invalids.put(REVISION_PATHS_PARAM, REVISION_PATHS_LABEL + " must not be empty");
       } else if (!isReference(revisionPaths, runtime)) {
         final String readyRevision = getReadyRevision(revisionPaths);
@@ -82,6 +171,17 @@ final class ParametersValidator {
       }
     }
 
+    if (uploadStepEnabled) {
+      final String uploadEngine = runnerParams.get(UPLOAD_ENGINE_PARAM);
+      if (StringUtil.isNotEmpty(uploadEngine) && !isReference(uploadEngine, runtime) && !UPLOAD_ENGINE_TRANSFER_MANAGER.equals(uploadEngine) && !UPLOAD_ENGINE_PARALLEL.equals(uploadEngine)) {
+        invalids.put(UPLOAD_ENGINE_PARAM, UPLOAD_ENGINE_LABEL + " has unexpected value " + uploadEngine);
+      }
+    }
+
+    if (isBulkUpload(runnerParams)) {
+      validateBulkUpload(invalids, runnerParams, uploadStepEnabled && !registerStepEnabled && !deployStepEnabled && !rollbackStepEnabled, runtime);
+    }
+
     if (uploadStepEnabled || registerStepEnabled || deployStepEnabled) {
       final String s3BucketName = getS3BucketName(runnerParams);
       if (StringUtil.isEmptyOrSpaces(s3BucketName)) {
@@ -103,15 +203,61 @@ final class ParametersValidator {
       }
     }
 
-    if (registerStepEnabled || deployStepEnabled) {
+    if (registerStepEnabled || deployStepEnabled || rollbackStepEnabled) {
       if (StringUtil.isEmptyOrSpaces(getAppName(runnerParams))) {
         invalids.put(APP_NAME_PARAM, APP_NAME_LABEL + " must not be empty");
       }
     }
 
     if (deployStepEnabled) {
-      if (StringUtil.isEmptyOrSpaces(getDeploymentGroupName(runnerParams))) {
+      final String deploymentGroupName = getDeploymentGroupName(runnerParams);
+      final String rolloutPlan = runnerParams.get(ROLLOUT_PLAN_PARAM);
+      if (isRolloutDeployment(runnerParams)) {
+        if (StringUtil.isNotEmpty(deploymentGroupName)) {
+          invalids.put(DEPLOYMENT_GROUP_NAME_PARAM, DEPLOYMENT_GROUP_NAME_LABEL + " must be empty when " + ROLLOUT_PLAN_LABEL + " is specified");
+        } else if (!isReference(rolloutPlan, runtime)) {
+          try {
+            final RolloutPlan plan = RolloutPlan.parse(runnerParams);
+            if (plan != null && !isSingleRegion(getDeployedGroupParameters(runnerParams), runtime)) {
+              invalids.put(ROLLOUT_PLAN_PARAM, ROLLOUT_PLAN_LABEL + " " + SINGLE_REGION_ERROR);
+            }
+          } catch (IllegalArgumentException e) {
+            invalids.put(ROLLOUT_PLAN_PARAM, ROLLOUT_PLAN_LABEL + " has unexpected value: " + e.getMessage());
+          }
+        }
+        if (isCoordinatedDeployment(runnerParams)) {
+          invalids.put(COORDINATED_DEPLOYMENT_PARAM, COORDINATED_DEPLOYMENT_LABEL + " is not supported together with " + ROLLOUT_PLAN_LABEL);
+        }
+      } else if (StringUtil.isEmptyOrSpaces(deploymentGroupName)) {
         invalids.put(DEPLOYMENT_GROUP_NAME_PARAM, DEPLOYMENT_GROUP_NAME_LABEL + " must not be empty");
+      } else if (!isReference(deploymentGroupName, runtime)) {
+        for (Map<String, String> groupParams : getDeploymentGroupParameters(runnerParams)) {
+          if (StringUtil.isEmptyOrSpaces(getDeploymentGroupName(groupParams))) {
+            invalids.put(DEPLOYMENT_GROUP_NAME_PARAM, DEPLOYMENT_GROUP_NAME_LABEL + " has unexpected value, newline-separated [region:]group list expected");
+          }
+        }
+        if (!isSingleRegion(getDeploymentGroupParameters(runnerParams), runtime)) {
+          invalids.put(DEPLOYMENT_GROUP_NAME_PARAM, DEPLOYMENT_GROUP_NAME_LABEL + " " + SINGLE_REGION_ERROR);
+        }
+        if (isFanOutDeployment(runnerParams) && isCoordinatedDeployment(runnerParams)) {
+          invalids.put(COORDINATED_DEPLOYMENT_PARAM, COORDINATED_DEPLOYMENT_LABEL + " is supported for a single deployment group only");
+        }
+      }
+    }
+
+    if (rollbackStepEnabled) {
+      final String deploymentGroupName = getDeploymentGroupName(runnerParams);
+      if (StringUtil.isEmptyOrSpaces(deploymentGroupName)) {
+        invalids.put(DEPLOYMENT_GROUP_NAME_PARAM, DEPLOYMENT_GROUP_NAME_LABEL + " must not be empty");
+      } else if (!isReference(deploymentGroupName, runtime) && isFanOutDeployment(runnerParams)) {
+        invalids.put(DEPLOYMENT_GROUP_NAME_PARAM, DEPLOYMENT_GROUP_NAME_LABEL + " must be a single deployment group for rollback");
+      }
+    }
+
+    if (deployStepEnabled || rollbackStepEnabled) {
+      final String waitTimeoutSec = getWaitTimeoutSec(runnerParams);
+      if (StringUtil.isNotEmpty(waitTimeoutSec)) {
+        validatePositiveInteger(invalids, waitTimeoutSec, WAIT_TIMEOUT_SEC_PARAM, WAIT_TIMEOUT_SEC_LABEL, runtime);
       }
 
       final String fileExistsParam = getFileExistsBehavior(runnerParams);
@@ -122,6 +268,104 @@ final class ParametersValidator {
     return invalids;
   }
 
+  /**
+   * Validates each of the matrix entries as a separate step, errors of the entry-specific parameters are reported for the matrix
+   */
+  private static void validateMatrix(@NotNull Map<String, String> invalids, @NotNull Map<String, String> runnerParams,
+                                     boolean uploadStepEnabled, boolean deployStepEnabled, boolean rollbackStepEnabled, boolean runtime) {
+    if (rollbackStepEnabled) {
+      invalids.put(MATRIX_PARAM, MATRIX_LABEL + " is not supported by the rollback step");
+      return;
+    }
+    if (isRolloutDeployment(runnerParams)) {
+      invalids.put(ROLLOUT_PLAN_PARAM, ROLLOUT_PLAN_LABEL + " is not supported together with " + MATRIX_LABEL);
+    }
+    if (isCoordinatedDeployment(runnerParams)) {
+      invalids.put(COORDINATED_DEPLOYMENT_PARAM, COORDINATED_DEPLOYMENT_LABEL + " is not supported together with " + MATRIX_LABEL);
+    }
+    if (StringUtil.isNotEmpty(getRevisionS3Source(runnerParams))) {
+      invalids.put(REVISION_S3_SOURCE_PARAM, REVISION_S3_SOURCE_LABEL + " is not supported together with " + MATRIX_LABEL);
+    }
+    if (isBulkUpload(runnerParams)) {
+      invalids.put(S3_OBJECT_KEY_TEMPLATE_PARAM, S3_OBJECT_KEY_TEMPLATE_LABEL + " is not supported together with " + MATRIX_LABEL);
+    }
+
+    final String matrixParam = runnerParams.get(MATRIX_PARAM);
+    if (isReference(matrixParam, runtime)) return;
+
+    final DeploymentMatrix matrix;
+    try {
+      matrix = DeploymentMatrix.parse(runnerParams);
+    } catch (IllegalArgumentException e) {
+      invalids.put(MATRIX_PARAM, MATRIX_LABEL + " has unexpected value: " + e.getMessage());
+      return;
+    }
+    assert matrix != null;
+
+    final List<String> errors = new ArrayList<String>();
+    final Map<String, Integer> s3ObjectKeys = new HashMap<String, Integer>();
+    for (int i = 0; i < matrix.getEntries().size(); ++i) {
+      final Map<String, String> entryParams = matrix.getEntries().get(i);
+      final String entry = "entry " + (i + 1);
+
+      for (Map.Entry<String, String> e : validate(entryParams, runtime).entrySet()) {
+        if (MATRIX_ENTRY_PARAMS.contains(e.getKey())) {
+          errors.add(entry + ": " + e.getValue());
+        } else if (!invalids.containsKey(e.getKey())) {
+          invalids.put(e.getKey(), e.getValue());
+        }
+      }
+
+      final String s3ObjectKey = getS3ObjectKey(entryParams);
+      if (StringUtil.isEmptyOrSpaces(s3ObjectKey)) {
+        // archive name can't be used as a key, revisions would overwrite each other
+        if (uploadStepEnabled) errors.add(entry + ": " + S3_OBJECT_KEY_LABEL + " must not be empty");
+      } else {
+        final Integer sameKeyEntry = s3ObjectKeys.put(s3ObjectKey, i + 1);
+        if (sameKeyEntry != null) errors.add(entry + ": " + S3_OBJECT_KEY_LABEL + " " + s3ObjectKey + " is already used by entry " + sameKeyEntry);
+      }
+
+      if (deployStepEnabled && isFanOutDeployment(entryParams)) {
+        errors.add(entry + ": " + DEPLOYMENT_GROUP_NAME_LABEL + " must be a single deployment group");
+      }
+    }
+    if (!errors.isEmpty()) invalids.put(MATRIX_PARAM, getMatrixError(errors));
+  }
+
+  /**
+   * Bulk upload publishes the archives only, registering or deploying several revisions is up to {@link DeploymentMatrix}
+   */
+  private static void validateBulkUpload(@NotNull Map<String, String> invalids, @NotNull Map<String, String> runnerParams, boolean uploadStepOnly, boolean runtime) {
+    if (!uploadStepOnly) {
+      invalids.put(S3_OBJECT_KEY_TEMPLATE_PARAM, S3_OBJECT_KEY_TEMPLATE_LABEL + " is supported by the upload step only");
+    }
+    if (StringUtil.isNotEmpty(getS3ObjectKey(runnerParams))) {
+      invalids.put(S3_OBJECT_KEY_PARAM, S3_OBJECT_KEY_LABEL + " must be empty when " + S3_OBJECT_KEY_TEMPLATE_LABEL + " is specified");
+    }
+    if (StringUtil.isNotEmpty(getRevisionS3Source(runnerParams))) {
+      invalids.put(REVISION_S3_SOURCE_PARAM, REVISION_S3_SOURCE_LABEL + " is not supported together with " + S3_OBJECT_KEY_TEMPLATE_LABEL);
+    }
+
+    final String s3ObjectKeyTemplate = "" + getS3ObjectKeyTemplate(runnerParams);
+    if (!invalids.containsKey(S3_OBJECT_KEY_TEMPLATE_PARAM) && !isReference(s3ObjectKeyTemplate, runtime)) {
+      if (!s3ObjectKeyTemplate.contains(ARCHIVE_NAME_PLACEHOLDER)) {
+        invalids.put(S3_OBJECT_KEY_TEMPLATE_PARAM, S3_OBJECT_KEY_TEMPLATE_LABEL + " must contain " + ARCHIVE_NAME_PLACEHOLDER + " placeholder, otherwise the archives overwrite each other");
+      } else {
+        validateS3Key(invalids, getBulkS3ObjectKey(s3ObjectKeyTemplate, "revision.zip"), S3_OBJECT_KEY_TEMPLATE_PARAM, S3_OBJECT_KEY_TEMPLATE_LABEL, runtime);
+      }
+    }
+  }
+
+  @NotNull
+  private static String getMatrixError(@NotNull List<String> errors) {
+    final StringBuilder sb = new StringBuilder(MATRIX_LABEL).append(" has invalid entries: ");
+    for (int i = 0; i < errors.size(); ++i) {
+      if (i > 0) sb.append("; ");
+      sb.append(errors.get(i));
+    }
+    return sb.toString();
+  }
+
   private static void validatePositiveInteger(@NotNull Map<String, String> invalids, @NotNull String param, @NotNull String key, @NotNull String name, boolean runtime) {
     if (!isReference(param, runtime)) {
       try {
@@ -160,6 +404,20 @@ final class ParametersValidator {
     }
   }
 
+  /**
+   * All the groups are deployed from the step S3 bucket, so they must share the bucket region
+   */
+  private static boolean isSingleRegion(@NotNull List<Map<String, String>> deploymentGroups, boolean runtime) {
+    String region = null;
+    for (Map<String, String> groupParams : deploymentGroups) {
+      final String groupRegion = groupParams.get(AWSCommonParams.REGION_NAME_PARAM);
+      if (StringUtil.isEmptyOrSpaces(groupRegion) || isReference(groupRegion, runtime)) continue;
+      if (region == null) region = groupRegion;
+      else if (!region.equals(groupRegion)) return false;
+    }
+    return true;
+  }
+
   private static boolean isReference(@NotNull String param, boolean runtime) {
     return ReferencesResolverUtil.containsReference(param, new String[]{}, true) && !runtime;
   }
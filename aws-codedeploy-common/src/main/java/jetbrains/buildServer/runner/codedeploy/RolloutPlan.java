@@ -0,0 +1,104 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+import static jetbrains.buildServer.runner.codedeploy.CodeDeployConstants.*;
+
+/**
+ * Progressive rollout of the revision across deployment groups. Waves are deployed one after another, a wave starts
+ * only once all the deployments of the previous wave succeed. The plan lists a wave per line: comma-separated
+ * [region:]group list optionally followed by | and the max number of concurrent deployments in the wave, e.g.
+ * <pre>
+ * canary
+ * us-east-1:prod-east, eu-west-1:prod-eu, prod-1, prod-2 | 2
+ * </pre>
+ */
+public final class RolloutPlan {
+  static final String CONCURRENCY_SEPARATOR = "|";
+
+  @NotNull
+  private final List<Wave> myWaves;
+
+  private RolloutPlan(@NotNull List<Wave> waves) {
+    myWaves = waves;
+  }
+
+  @NotNull
+  public List<Wave> getWaves() {
+    return myWaves;
+  }
+
+  /**
+   * @return the plan or null if the step has no rollout plan
+   * @throws IllegalArgumentException with the reason if the plan is malformed
+   */
+  @Nullable
+  public static RolloutPlan parse(@NotNull Map<String, String> params) {
+    final String plan = params.get(ROLLOUT_PLAN_PARAM);
+    if (StringUtil.isEmptyOrSpaces(plan)) return null;
+
+    final List<Wave> waves = new ArrayList<Wave>();
+    for (String line : plan.trim().split("[\n\r]+")) {
+      line = line.trim();
+      if (line.isEmpty()) continue;
+
+      int maxConcurrent = 0;
+      final int separator = line.lastIndexOf(CONCURRENCY_SEPARATOR);
+      if (separator >= 0) {
+        final String concurrency = line.substring(separator + 1).trim();
+        try {
+          maxConcurrent = Integer.parseInt(concurrency);
+        } catch (NumberFormatException ignored) {
+        }
+        if (maxConcurrent <= 0) throw new IllegalArgumentException("wave " + (waves.size() + 1) + " concurrency must be a positive integer value, got " + concurrency);
+        line = line.substring(0, separator).trim();
+      }
+
+      final List<Map<String, String>> groups = new ArrayList<Map<String, String>>();
+      for (String group : line.split(MULTILINE_SPLIT_REGEX)) {
+        group = group.trim();
+        if (group.isEmpty()) throw new IllegalArgumentException("wave " + (waves.size() + 1) + " has an empty deployment group");
+
+        final Map<String, String> groupParams = new HashMap<String, String>(params);
+        groupParams.remove(ROLLOUT_PLAN_PARAM);
+        final int regionSeparator = group.indexOf(':');
+        if (regionSeparator > 0) groupParams.put(AWSCommonParams.REGION_NAME_PARAM, group.substring(0, regionSeparator).trim());
+        groupParams.put(DEPLOYMENT_GROUP_NAME_PARAM, group.substring(regionSeparator + 1).trim());
+        groups.add(groupParams);
+      }
+      waves.add(new Wave(groups, maxConcurrent == 0 ? groups.size() : Math.min(maxConcurrent, groups.size())));
+    }
+    return new RolloutPlan(Collections.unmodifiableList(waves));
+  }
+
+  public static final class Wave {
+    @NotNull
+    private final List<Map<String, String>> myGroups;
+    private final int myMaxConcurrent;
+
+    private Wave(@NotNull List<Map<String, String>> groups, int maxConcurrent) {
+      myGroups = Collections.unmodifiableList(groups);
+      myMaxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Runner parameters of the wave deployment groups, see {@link CodeDeployUtil#getDeploymentGroupParameters(Map)}
+     */
+    @NotNull
+    public List<Map<String, String>> getGroups() {
+      return myGroups;
+    }
+
+    /**
+     * The max number of the wave deployments in progress at once
+     */
+    public int getMaxConcurrent() {
+      return myMaxConcurrent;
+    }
+  }
+}
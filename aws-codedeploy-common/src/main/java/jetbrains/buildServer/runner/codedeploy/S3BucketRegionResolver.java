@@ -0,0 +1,150 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.amazon.AWSClients;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves S3 bucket regions and remembers them in a persistent cache,
+ * so that S3 clients are created for the bucket region right away instead of following redirects on every call.
+ */
+class S3BucketRegionResolver {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(S3BucketRegionResolver.class.getName());
+
+  static final String CACHE_FILE_NAME = "s3-bucket-regions.properties";
+  private static final Collection<String> WRONG_REGION_ERRORS = Arrays.asList("PermanentRedirect", "AuthorizationHeaderMalformed");
+
+  @Nullable
+  private final File myCacheFile;
+  @NotNull
+  private final ConcurrentMap<String, String> myRegions = new ConcurrentHashMap<String, String>();
+
+  S3BucketRegionResolver(@Nullable File cacheDir) {
+    myCacheFile = cacheDir == null ? null : new File(cacheDir, CACHE_FILE_NAME);
+    load();
+  }
+
+  /**
+   * Creates S3 client for the region of the provided bucket, falls back to the client for the configured region
+   * if bucket region can't be resolved
+   */
+  @NotNull
+  AmazonS3 createS3Client(@NotNull AWSClients clients, @NotNull Map<String, String> params, @Nullable String s3BucketName) {
+    final AmazonS3 s3Client = clients.createS3Client();
+    if (StringUtil.isEmptyOrSpaces(s3BucketName)) return s3Client;
+
+    final String bucketRegion = resolveRegion(s3Client, s3BucketName);
+    if (bucketRegion == null || bucketRegion.equals(params.get(AWSCommonParams.REGION_NAME_PARAM))) return s3Client;
+
+    return AWSCommonParams.withAWSClients(withRegion(params, bucketRegion), new AWSCommonParams.WithAWSClients<AmazonS3, RuntimeException>() {
+      @NotNull
+      @Override
+      public AmazonS3 run(@NotNull AWSClients regionClients) {
+        return regionClients.createS3Client();
+      }
+    });
+  }
+
+  @Nullable
+  String getCachedRegion(@NotNull String s3BucketName) {
+    return myRegions.get(s3BucketName);
+  }
+
+  @Nullable
+  String resolveRegion(@NotNull AmazonS3 s3Client, @NotNull String s3BucketName) {
+    final String cached = getCachedRegion(s3BucketName);
+    if (cached != null) return cached;
+
+    try {
+      final String region = normalizeRegion(s3Client.getBucketLocation(s3BucketName));
+      if (myRegions.put(s3BucketName, region) == null) save();
+      return region;
+    } catch (Exception e) {
+      LOG.debug("Failed to resolve region of S3 bucket " + s3BucketName + ", will use the configured one", e);
+      return null;
+    }
+  }
+
+  void invalidate(@NotNull String s3BucketName) {
+    if (myRegions.remove(s3BucketName) != null) save();
+  }
+
+  /**
+   * @return true if S3 refused the request because it was sent to another region than the bucket one,
+   * e.g. the bucket was re-created in another region after its region got cached
+   */
+  static boolean isWrongRegionError(@NotNull Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof AmazonServiceException) {
+        final AmazonServiceException se = (AmazonServiceException) t;
+        return se.getStatusCode() == 301 || WRONG_REGION_ERRORS.contains(se.getErrorCode());
+      }
+    }
+    return false;
+  }
+
+  @NotNull
+  static String normalizeRegion(@Nullable String bucketLocation) {
+    if (StringUtil.isEmptyOrSpaces(bucketLocation) || "US".equals(bucketLocation)) return "us-east-1";
+    if ("EU".equals(bucketLocation)) return "eu-west-1";
+    return bucketLocation;
+  }
+
+  @NotNull
+  private static Map<String, String> withRegion(@NotNull Map<String, String> params, @NotNull String region) {
+    final Map<String, String> result = new HashMap<String, String>(params);
+    result.put(AWSCommonParams.REGION_NAME_PARAM, region);
+    return result;
+  }
+
+  private void load() {
+    if (myCacheFile == null || !myCacheFile.isFile()) return;
+
+    InputStream input = null;
+    try {
+      input = new BufferedInputStream(new FileInputStream(myCacheFile));
+      final Properties properties = new Properties();
+      properties.load(input);
+      for (String bucket : properties.stringPropertyNames()) {
+        myRegions.put(bucket, properties.getProperty(bucket));
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to load S3 bucket regions from " + myCacheFile, e);
+    } finally {
+      FileUtil.close(input);
+    }
+  }
+
+  private synchronized void save() {
+    if (myCacheFile == null) return;
+
+    OutputStream output = null;
+    try {
+      FileUtil.createParentDirs(myCacheFile);
+      final Properties properties = new Properties();
+      properties.putAll(myRegions);
+      output = new BufferedOutputStream(new FileOutputStream(myCacheFile));
+      properties.store(output, null);
+    } catch (IOException e) {
+      LOG.warn("Failed to save S3 bucket regions to " + myCacheFile, e);
+    } finally {
+      FileUtil.close(output);
+    }
+  }
+}
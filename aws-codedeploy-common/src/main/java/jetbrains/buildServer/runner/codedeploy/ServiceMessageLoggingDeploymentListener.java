@@ -2,16 +2,51 @@
 
 package jetbrains.buildServer.runner.codedeploy;
 
+import jetbrains.buildServer.util.amazon.AWSException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Map;
 
 public abstract class ServiceMessageLoggingDeploymentListener extends LoggingDeploymentListener {
+  private volatile boolean myRetryOnWrongRegion;
+  private volatile boolean myWrongRegion;
+
   ServiceMessageLoggingDeploymentListener(@NotNull Map<String, String> runnerParameters, @Nullable String checkoutDir) {
     super(runnerParameters, checkoutDir);
   }
 
+  /**
+   * The next S3 request failure caused by a stale cached bucket region won't be reported as a build problem,
+   * the caller must check {@link #takeWrongRegion()} and retry the request in the bucket region
+   */
+  void retryOnWrongRegion() {
+    myWrongRegion = false;
+    myRetryOnWrongRegion = true;
+  }
+
+  /**
+   * @return true if the request failure was not reported because the request must be retried in the bucket region
+   */
+  boolean takeWrongRegion() {
+    myRetryOnWrongRegion = false;
+    final boolean wrongRegion = myWrongRegion;
+    myWrongRegion = false;
+    return wrongRegion;
+  }
+
+  @Override
+  void exception(@NotNull AWSException e) {
+    if (myRetryOnWrongRegion && S3BucketRegionResolver.isWrongRegionError(e)) {
+      myRetryOnWrongRegion = false;
+      myWrongRegion = true;
+      log("S3 bucket is not in the cached region anymore, retrying in the bucket region: " + e.getMessage());
+      close(UPLOAD_REVISION);
+      return;
+    }
+    super.exception(e);
+  }
+
   protected void err(@NotNull String message) {
     log(String.format("##teamcity[message text='%s' tc:tags='tc:internal' status='error']", escape(message)));
   }
@@ -33,7 +68,7 @@ public abstract class ServiceMessageLoggingDeploymentListener extends LoggingDep
   }
 
   protected void parameter(@NotNull String name, @NotNull String value) {
-    log(String.format("##teamcity[setParameter name='%s' value='%s' tc:tags='tc:internal']", name, value));
+    log(String.format("##teamcity[setParameter name='%s' value='%s' tc:tags='tc:internal']", name, escape(value)));
   }
 
   protected void statusText(@NotNull String text) {
@@ -0,0 +1,84 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.AmazonServiceException;
+import org.assertj.core.api.ThrowableAssert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.BDDAssertions.then;
+import static org.assertj.core.api.BDDAssertions.thenThrownBy;
+
+public class CodeDeployThrottlingTest {
+  @Test
+  public void throttled_call_decreases_rate() {
+    final CodeDeployThrottling throttling = CodeDeployThrottling.forScope("throttled_call_decreases_rate");
+    final AtomicInteger calls = new AtomicInteger();
+
+    thenThrownBy(new ThrowableAssert.ThrowingCallable() {
+      @Override
+      public void call() throws Throwable {
+        throttling.call(new CodeDeployThrottling.Call<String>() {
+          @Override
+          public String run() {
+            calls.incrementAndGet();
+            throw createException("ThrottlingException", 400);
+          }
+        });
+      }
+    }).isInstanceOf(AmazonServiceException.class).hasMessageContaining("ThrottlingException");
+
+    // AWS SDK client retries throttled calls itself
+    then(calls.get()).isEqualTo(1);
+    then(throttling.getBucket().getRate()).isLessThan(CodeDeployThrottling.INITIAL_RATE);
+  }
+
+  @Test
+  public void other_errors_keep_rate() {
+    final CodeDeployThrottling throttling = CodeDeployThrottling.forScope("other_errors_keep_rate");
+    final AtomicInteger calls = new AtomicInteger();
+    thenThrownBy(new ThrowableAssert.ThrowingCallable() {
+      @Override
+      public void call() throws Throwable {
+        throttling.call(new CodeDeployThrottling.Call<String>() {
+          @Override
+          public String run() {
+            calls.incrementAndGet();
+            throw createException("DeploymentDoesNotExistException", 400);
+          }
+        });
+      }
+    }).isInstanceOf(AmazonServiceException.class).hasMessageContaining("DeploymentDoesNotExistException");
+    then(calls.get()).isEqualTo(1);
+    then(throttling.getBucket().getRate()).isEqualTo(CodeDeployThrottling.INITIAL_RATE);
+  }
+
+  @Test
+  public void rate_adjusted() {
+    final CodeDeployThrottling.TokenBucket bucket = new CodeDeployThrottling.TokenBucket(CodeDeployThrottling.INITIAL_RATE);
+
+    bucket.onThrottled();
+    then(bucket.getRate()).isEqualTo(CodeDeployThrottling.INITIAL_RATE * CodeDeployThrottling.RATE_DECREASE_FACTOR);
+
+    // simultaneous throttling responses decrease the rate once
+    bucket.onThrottled();
+    then(bucket.getRate()).isEqualTo(CodeDeployThrottling.INITIAL_RATE * CodeDeployThrottling.RATE_DECREASE_FACTOR);
+
+    for (int i = 0; i < 1000; ++i) bucket.onSuccess();
+    then(bucket.getRate()).isEqualTo(CodeDeployThrottling.MAX_RATE);
+  }
+
+  @Test
+  public void throttling_errors() {
+    then(CodeDeployThrottling.isThrottling(createException("ThrottlingException", 400))).isTrue();
+    then(CodeDeployThrottling.isThrottling(createException("SomethingElse", 429))).isTrue();
+    then(CodeDeployThrottling.isThrottling(createException("AccessDeniedException", 403))).isFalse();
+  }
+
+  private static AmazonServiceException createException(String errorCode, int statusCode) {
+    final AmazonServiceException e = new AmazonServiceException(errorCode);
+    e.setErrorCode(errorCode);
+    e.setStatusCode(statusCode);
+    return e;
+  }
+}
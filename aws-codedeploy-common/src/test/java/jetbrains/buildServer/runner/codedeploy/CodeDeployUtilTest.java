@@ -2,10 +2,16 @@
 
 package jetbrains.buildServer.runner.codedeploy;
 
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
 import org.testng.annotations.Test;
 
-import static jetbrains.buildServer.runner.codedeploy.CodeDeployUtil.getReadyRevision;
-import static jetbrains.buildServer.runner.codedeploy.CodeDeployUtil.getRevisionPathMappings;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static jetbrains.buildServer.runner.codedeploy.CodeDeployConstants.*;
+import static jetbrains.buildServer.runner.codedeploy.CodeDeployUtil.*;
 import static org.assertj.core.api.BDDAssertions.*;
 
 /**
@@ -26,6 +32,18 @@ public class CodeDeployUtilTest {
     then(getReadyRevision("ready_revision\\")).isNull();
   }
 
+  @Test
+  public void revision_s3_source() {
+    then(getS3SourceBucket("s3://artifacts/project/revision.zip")).isEqualTo("artifacts");
+    then(getS3SourceKey("s3://artifacts/project/revision.zip")).isEqualTo("project/revision.zip");
+    then(getS3SourceBucket(" artifacts/revision.zip ")).isEqualTo("artifacts");
+    then(getS3SourceKey(" artifacts/revision.zip ")).isEqualTo("revision.zip");
+
+    then(getS3SourceBucket("s3://artifacts")).isNull();
+    then(getS3SourceKey("s3://artifacts/")).isNull();
+    then(getS3SourceBucket("/revision.zip")).isNull();
+  }
+
   @Test
   public void revision_path_mappings() {
     then(getRevisionPathMappings("ready_revision/")).hasSize(1).containsEntry("ready_revision/", "");
@@ -53,4 +71,104 @@ public class CodeDeployUtilTest {
     then(getRevisionPathMappings(".=>.")).hasSize(1).containsEntry("**", "");
 //    then(getRevisionPathMappings("=>")).hasSize(1).containsEntry("**", "");
   }
+
+  @Test
+  public void deployment_group_parameters() {
+    final Map<String, String> single = groupParams("Fleet");
+    then(getDeploymentGroupParameters(single)).containsExactly(single);
+    then(isFanOutDeployment(single)).isFalse();
+
+    final Map<String, String> several = groupParams("Fleet\n eu-west-1:Fleet EU \n\nus-west-2: Fleet US");
+    final List<Map<String, String>> groups = getDeploymentGroupParameters(several);
+    then(isFanOutDeployment(several)).isTrue();
+    then(groups).hasSize(3);
+    then(groups.get(0)).containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "Fleet").containsEntry(AWSCommonParams.REGION_NAME_PARAM, "us-east-1");
+    then(groups.get(1)).containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "Fleet EU").containsEntry(AWSCommonParams.REGION_NAME_PARAM, "eu-west-1");
+    then(groups.get(2)).containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "Fleet US").containsEntry(AWSCommonParams.REGION_NAME_PARAM, "us-west-2");
+
+    final Map<String, String> otherRegion = groupParams("eu-west-1:Fleet");
+    then(isFanOutDeployment(otherRegion)).isTrue();
+    then(getDeploymentGroupParameters(otherRegion)).hasSize(1);
+    then(getDeploymentGroupParameters(otherRegion).get(0)).containsEntry(AWSCommonParams.REGION_NAME_PARAM, "eu-west-1");
+
+    then(getDeploymentGroupParameters(Collections.<String, String>emptyMap())).hasSize(1);
+  }
+
+  @Test
+  public void rollout_plan() {
+    then(RolloutPlan.parse(groupParams("Fleet"))).isNull();
+
+    final Map<String, String> params = groupParams("");
+    params.put(ROLLOUT_PLAN_PARAM, "canary\n\n eu-west-1:Fleet EU, Fleet 1, Fleet 2 | 2 \nFleet 3 | 5");
+    final RolloutPlan plan = RolloutPlan.parse(params);
+    then(plan).isNotNull();
+
+    final List<RolloutPlan.Wave> waves = plan.getWaves();
+    then(waves).hasSize(3);
+    then(waves.get(0).getGroups()).hasSize(1);
+    then(waves.get(0).getMaxConcurrent()).isEqualTo(1);
+    then(waves.get(0).getGroups().get(0)).containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "canary").doesNotContainKey(ROLLOUT_PLAN_PARAM);
+    then(waves.get(1).getGroups()).hasSize(3);
+    then(waves.get(1).getMaxConcurrent()).isEqualTo(2);
+    then(waves.get(1).getGroups().get(0)).containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "Fleet EU").containsEntry(AWSCommonParams.REGION_NAME_PARAM, "eu-west-1");
+    then(waves.get(1).getGroups().get(2)).containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "Fleet 2").containsEntry(AWSCommonParams.REGION_NAME_PARAM, "us-east-1");
+    then(waves.get(2).getMaxConcurrent()).as("Concurrency is limited by the wave size").isEqualTo(1);
+  }
+
+  @Test
+  public void rollout_plan_empty_group() {
+    final Map<String, String> params = groupParams("");
+    params.put(ROLLOUT_PLAN_PARAM, "canary\nFleet 1,,Fleet 2");
+    try {
+      RolloutPlan.parse(params);
+      fail("Must detect empty deployment group");
+    } catch (IllegalArgumentException e) {
+      then(e.getMessage()).isEqualTo("wave 2 has an empty deployment group");
+    }
+  }
+
+  @Test
+  public void bulk_s3_object_key() {
+    then(getBulkS3ObjectKey(" builds/42/{archive} ", "web.zip")).isEqualTo("builds/42/web.zip");
+    then(getBulkS3ObjectKey("{archive}", "api.tar.gz")).isEqualTo("api.tar.gz");
+  }
+
+  @Test
+  public void deployment_matrix() {
+    then(DeploymentMatrix.parse(groupParams("Fleet"))).isNull();
+
+    final Map<String, String> params = groupParams("Fleet");
+    params.put(APP_NAME_PARAM, "App");
+    params.put(MATRIX_PARAM, "web/** => ., appspec.yml; web.zip; Web App; Web Fleet\n\n api.zip ; api.zip;;\n");
+    final DeploymentMatrix matrix = DeploymentMatrix.parse(params);
+    then(matrix).isNotNull();
+
+    final List<Map<String, String>> entries = matrix.getEntries();
+    then(entries).hasSize(2);
+    then(entries.get(0)).
+      containsEntry(REVISION_PATHS_PARAM, "web/** => ., appspec.yml").containsEntry(S3_OBJECT_KEY_PARAM, "web.zip").
+      containsEntry(APP_NAME_PARAM, "Web App").containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "Web Fleet").doesNotContainKey(MATRIX_PARAM);
+    then(entries.get(1)).as("Empty fields are taken from the step").
+      containsEntry(REVISION_PATHS_PARAM, "api.zip").containsEntry(S3_OBJECT_KEY_PARAM, "api.zip").
+      containsEntry(APP_NAME_PARAM, "App").containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "Fleet");
+  }
+
+  @Test
+  public void deployment_matrix_too_many_fields() {
+    final Map<String, String> params = groupParams("");
+    params.put(MATRIX_PARAM, "web.zip; web.zip; Web App; Web Fleet; extra");
+    try {
+      DeploymentMatrix.parse(params);
+      fail("Must detect extra fields");
+    } catch (IllegalArgumentException e) {
+      then(e.getMessage()).isEqualTo("entry 1 has more than 4 fields");
+    }
+  }
+
+  private static Map<String, String> groupParams(String deploymentGroups) {
+    final Map<String, String> params = new HashMap<String, String>();
+    params.put(AWSCommonParams.REGION_NAME_PARAM, "us-east-1");
+    params.put(DEPLOYMENT_GROUP_NAME_PARAM, deploymentGroups);
+    return params;
+  }
 }
\ No newline at end of file
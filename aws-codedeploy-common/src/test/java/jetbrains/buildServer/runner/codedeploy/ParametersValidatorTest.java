@@ -2,6 +2,7 @@
 
 package jetbrains.buildServer.runner.codedeploy;
 
+import com.amazonaws.AmazonServiceException;
 import jetbrains.buildServer.BaseTestCase;
 import jetbrains.buildServer.util.CollectionsUtil;
 import org.jetbrains.annotations.NotNull;
@@ -70,6 +71,19 @@ public class ParametersValidatorTest extends BaseTestCase {
       containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "Deployment group must not be empty");
   }
 
+  @Test
+  public void rollback_mandatory_params() {
+    then(validate(DEPLOYMENT_STEPS_PARAM, ROLLBACK_STEP)).as("Must detect empty params").hasSize(6).
+      containsEntry(REGION_NAME_PARAM, "AWS region must not be empty").
+      containsEntry(CREDENTIALS_TYPE_PARAM, "Credentials type must not be empty").
+      containsEntry(ACCESS_KEY_ID_PARAM, "Access key ID must not be empty").
+      containsEntry(SECURE_SECRET_ACCESS_KEY_PARAM, "Secret access key must not be empty").
+      containsEntry(APP_NAME_PARAM, "Application name must not be empty").
+      containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "Deployment group must not be empty");
+    then(validate(DEPLOYMENT_STEPS_PARAM, ROLLBACK_STEP, DEPLOYMENT_GROUP_NAME_PARAM, "prod-1, prod-2")).as("Must detect several deployment groups").
+      containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "Deployment group must be a single deployment group for rollback");
+  }
+
   @Test
   public void deploy_params_with_references() {
     then(validate(
@@ -106,6 +120,86 @@ public class ParametersValidatorTest extends BaseTestCase {
       containsEntry(REVISION_PATHS_PARAM, "Application revision has unexpected value, Ant-style wildcards as well as target directories like out/**/*.zip => dist supported");
   }
 
+  @Test
+  public void revision_s3_source_instead_of_paths() {
+    then(validate(DEPLOYMENT_STEPS_PARAM, UPLOAD_STEP, REVISION_S3_SOURCE_PARAM, "s3://artifacts/project/build/revision.zip")).as("Must accept published revision instead of revision paths").
+      doesNotContainKey(REVISION_PATHS_PARAM).doesNotContainKey(REVISION_S3_SOURCE_PARAM);
+  }
+
+  @Test
+  public void unexpected_revision_s3_source() {
+    then(validate(DEPLOYMENT_STEPS_PARAM, UPLOAD_STEP, REVISION_S3_SOURCE_PARAM, "s3://artifacts")).as("Must detect missing key in published revision").
+      containsEntry(REVISION_S3_SOURCE_PARAM, "Published revision has unexpected value, S3 location like s3://bucket/path/revision.zip expected");
+    then(validate(DEPLOYMENT_STEPS_PARAM, UPLOAD_STEP, REVISION_S3_SOURCE_PARAM, "artifacts/revision.jar")).as("Must detect unexpected bundle type in published revision").
+      containsEntry(REVISION_S3_SOURCE_PARAM, "Published revision provides invalid bundle type, supported bundle types are .zip, .tar and .tar.gz");
+  }
+
+  @Test
+  public void unexpected_upload_engine() {
+    then(validate(DEPLOYMENT_STEPS_PARAM, UPLOAD_STEP, UPLOAD_ENGINE_PARAM, "crt")).as("Must detect unexpected upload engine").
+      containsEntry(UPLOAD_ENGINE_PARAM, "Upload engine has unexpected value crt");
+    then(validate(DEPLOYMENT_STEPS_PARAM, UPLOAD_STEP, UPLOAD_ENGINE_PARAM, UPLOAD_ENGINE_PARALLEL)).as("Must accept parallel upload engine").
+      doesNotContainKey(UPLOAD_ENGINE_PARAM);
+  }
+
+  @Test
+  public void unexpected_wait_timeout() {
+    then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, WAIT_TIMEOUT_SEC_PARAM, "-5")).as("Must detect negative timeout").
+      containsEntry(WAIT_TIMEOUT_SEC_PARAM, "Timeout (seconds) must be a positive integer value");
+    then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, WAIT_TIMEOUT_SEC_PARAM, "ten")).as("Must detect non-numeric timeout").
+      containsEntry(WAIT_TIMEOUT_SEC_PARAM, "Timeout (seconds) must be a positive integer value");
+    then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, WAIT_TIMEOUT_SEC_PARAM, "%wait.timeout%")).as("Must respect param refs").
+      doesNotContainKey(WAIT_TIMEOUT_SEC_PARAM);
+  }
+
+  @Test
+  public void unexpected_rollout_plan() {
+    then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, ROLLOUT_PLAN_PARAM, "canary\nprod-1, prod-2 | 2")).as("Must accept rollout plan instead of deployment group").
+      doesNotContainKey(DEPLOYMENT_GROUP_NAME_PARAM).doesNotContainKey(ROLLOUT_PLAN_PARAM);
+    then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, ROLLOUT_PLAN_PARAM, "canary\nprod-1, prod-2 | all")).as("Must detect unexpected wave concurrency").
+      containsEntry(ROLLOUT_PLAN_PARAM, "Rollout plan has unexpected value: wave 2 concurrency must be a positive integer value, got all");
+    then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, ROLLOUT_PLAN_PARAM, "canary", DEPLOYMENT_GROUP_NAME_PARAM, "prod")).as("Must detect both deployment group and rollout plan").
+      containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "Deployment group must be empty when Rollout plan is specified");
+    then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, ROLLOUT_PLAN_PARAM, "canary", COORDINATED_DEPLOYMENT_PARAM, "true")).as("Must detect coordinated rollout").
+      containsEntry(COORDINATED_DEPLOYMENT_PARAM, "Queue deployments to the group is not supported together with Rollout plan");
+  }
+
+  @Test
+  public void deployment_groups_of_several_regions() {
+    then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, REGION_NAME_PARAM, "us-east-1", DEPLOYMENT_GROUP_NAME_PARAM, "prod-1\neu-west-1:prod-eu")).as("Must detect groups of several regions").
+      containsEntry(DEPLOYMENT_GROUP_NAME_PARAM, "Deployment group must list deployment groups of one region, CodeDeploy deploys revisions only from S3 buckets in the deployment group region");
+    then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, REGION_NAME_PARAM, "us-east-1", DEPLOYMENT_GROUP_NAME_PARAM, "eu-west-1:prod-1\neu-west-1:prod-2")).as("Must accept groups of another region").
+      doesNotContainKey(DEPLOYMENT_GROUP_NAME_PARAM);
+    then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, REGION_NAME_PARAM, "us-east-1", ROLLOUT_PLAN_PARAM, "canary\neu-west-1:prod-eu, prod-1")).as("Must detect rollout to several regions").
+      containsEntry(ROLLOUT_PLAN_PARAM, "Rollout plan must list deployment groups of one region, CodeDeploy deploys revisions only from S3 buckets in the deployment group region");
+  }
+
+  @Test
+  public void unexpected_s3_object_key_template() {
+    then(validate(DEPLOYMENT_STEPS_PARAM, UPLOAD_STEP, REVISION_PATHS_PARAM, "dist/*.zip", S3_OBJECT_KEY_TEMPLATE_PARAM, "builds/{archive}")).as("Must accept key template").
+      doesNotContainKey(S3_OBJECT_KEY_TEMPLATE_PARAM).doesNotContainKey(REVISION_PATHS_PARAM);
+    then(validate(DEPLOYMENT_STEPS_PARAM, UPLOAD_STEP, REVISION_PATHS_PARAM, "dist/*.zip", S3_OBJECT_KEY_TEMPLATE_PARAM, "builds/revision.zip")).as("Must detect missing placeholder").
+      containsEntry(S3_OBJECT_KEY_TEMPLATE_PARAM, "S3 object key template must contain {archive} placeholder, otherwise the archives overwrite each other");
+    then(validate(DEPLOYMENT_STEPS_PARAM, UPLOAD_REGISTER_STEPS, REVISION_PATHS_PARAM, "dist/*.zip", S3_OBJECT_KEY_TEMPLATE_PARAM, "{archive}")).as("Must detect register step").
+      containsEntry(S3_OBJECT_KEY_TEMPLATE_PARAM, "S3 object key template is supported by the upload step only");
+    then(validate(DEPLOYMENT_STEPS_PARAM, UPLOAD_STEP, REVISION_PATHS_PARAM, "dist/*.zip", S3_OBJECT_KEY_TEMPLATE_PARAM, "{archive}", S3_OBJECT_KEY_PARAM, "revision.zip")).as("Must detect both key and key template").
+      containsEntry(S3_OBJECT_KEY_PARAM, "S3 object key must be empty when S3 object key template is specified");
+  }
+
+  @Test
+  public void unexpected_deployment_matrix() {
+    then(validate(DEPLOYMENT_STEPS_PARAM, UPLOAD_REGISTER_DEPLOY_STEPS, S3_BUCKET_NAME_PARAM, "bucket",
+      MATRIX_PARAM, "web.zip; web.zip; web-app; web-prod\napi.zip; api.zip; api-app; api-prod")).as("Must accept matrix instead of revision, key, application and group").
+      doesNotContainKey(MATRIX_PARAM).doesNotContainKey(REVISION_PATHS_PARAM).doesNotContainKey(APP_NAME_PARAM).doesNotContainKey(DEPLOYMENT_GROUP_NAME_PARAM);
+    then(validate(DEPLOYMENT_STEPS_PARAM, UPLOAD_REGISTER_DEPLOY_STEPS, S3_BUCKET_NAME_PARAM, "bucket",
+      MATRIX_PARAM, "web.zip; ; web-app; web-prod\napi.zip; api.zip;; api-prod\napi-v2.zip; api.zip; api-app; api-prod")).as("Must detect invalid entries").
+      containsEntry(MATRIX_PARAM, "Deployment matrix has invalid entries: entry 1: S3 object key must not be empty; entry 2: Application name must not be empty; entry 3: S3 object key api.zip is already used by entry 2");
+    then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, S3_BUCKET_NAME_PARAM, "bucket", MATRIX_PARAM, "; web.zip; web-app; web-prod\n; api.zip; api-app; prod-1, prod-2")).as("Must detect fan-out entry").
+      containsEntry(MATRIX_PARAM, "Deployment matrix has invalid entries: entry 2: Deployment group must be a single deployment group");
+    then(validate(DEPLOYMENT_STEPS_PARAM, DEPLOY_STEP, MATRIX_PARAM, "; web.zip; web-app; web-prod; extra")).as("Must detect unexpected fields").
+      containsEntry(MATRIX_PARAM, "Deployment matrix has unexpected value: entry 1 has more than 4 fields");
+  }
+
   @Test
   public void s3_bucket_slashes() {
     then(validate(DEPLOYMENT_STEPS_PARAM, UPLOAD_STEP, S3_BUCKET_NAME_PARAM, "abra/kadabra")).as("Must detect slashes in s3 bucket name").
@@ -133,6 +227,33 @@ public class ParametersValidatorTest extends BaseTestCase {
       containsEntry(REVISION_PATHS_PARAM, "Application revision ready_revision.zip doesn't exist");
   }
 
+  @Test
+  public void application_known_to_be_missing() throws Exception {
+    final Map<String, String> runnerParams = params(
+      DEPLOYMENT_STEPS_PARAM, REGISTER_STEP,
+      REGION_NAME_PARAM, "us-east-1",
+      CREDENTIALS_TYPE_PARAM, ACCESS_KEYS_OPTION,
+      ACCESS_KEY_ID_PARAM, "access.key.id",
+      SECURE_SECRET_ACCESS_KEY_PARAM, "secret.access.key.id",
+      S3_BUCKET_NAME_PARAM, "bucket",
+      S3_OBJECT_KEY_PARAM, "revision.zip",
+      APP_NAME_PARAM, "Misspelled App");
+
+    final CodeDeployMetadataCache cache = CodeDeployMetadataCache.getInstance();
+    try {
+      then(validateRuntime(runnerParams, params())).as("Must not report unknown application").isEmpty();
+
+      final AmazonServiceException error = new AmazonServiceException("No application found for name: Misspelled App");
+      error.setErrorCode("ApplicationDoesNotExistException");
+      cache.putMissing(CodeDeployMetadataCache.getKey(CodeDeployMetadataCache.getScope(runnerParams), CodeDeployMetadataCache.APPLICATION, "Misspelled App"), error);
+
+      then(validateRuntime(runnerParams, params())).as("Must report application known to be missing").
+        containsEntry(APP_NAME_PARAM, "Application name Misspelled App doesn't exist");
+    } finally {
+      cache.clear();
+    }
+  }
+
   @NotNull
   private Map<String, String> validate(String... pairs) {
     return ParametersValidator.validateSettings(params(pairs));
@@ -0,0 +1,53 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.AmazonServiceException;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class S3BucketRegionResolverTest extends BaseTestCase {
+  @Test
+  public void normalize_region() {
+    then(S3BucketRegionResolver.normalizeRegion(null)).isEqualTo("us-east-1");
+    then(S3BucketRegionResolver.normalizeRegion("")).isEqualTo("us-east-1");
+    then(S3BucketRegionResolver.normalizeRegion("US")).isEqualTo("us-east-1");
+    then(S3BucketRegionResolver.normalizeRegion("EU")).isEqualTo("eu-west-1");
+    then(S3BucketRegionResolver.normalizeRegion("ap-southeast-2")).isEqualTo("ap-southeast-2");
+  }
+
+  @Test
+  public void persistent_cache() throws Exception {
+    final File cacheDir = createTempDir();
+    FileUtil.writeFile(new File(cacheDir, S3BucketRegionResolver.CACHE_FILE_NAME), "revisions-bucket=eu-central-1\n", "UTF-8");
+
+    final S3BucketRegionResolver resolver = new S3BucketRegionResolver(cacheDir);
+    then(resolver.getCachedRegion("revisions-bucket")).isEqualTo("eu-central-1");
+    then(resolver.getCachedRegion("unknown-bucket")).isNull();
+
+    resolver.invalidate("revisions-bucket");
+    then(resolver.getCachedRegion("revisions-bucket")).isNull();
+    then(new S3BucketRegionResolver(cacheDir).getCachedRegion("revisions-bucket")).isNull();
+  }
+
+  @Test
+  public void wrong_region_errors() {
+    then(S3BucketRegionResolver.isWrongRegionError(createException("PermanentRedirect", 301))).isTrue();
+    then(S3BucketRegionResolver.isWrongRegionError(createException("AuthorizationHeaderMalformed", 400))).isTrue();
+    then(S3BucketRegionResolver.isWrongRegionError(new RuntimeException(createException("Moved Permanently", 301)))).isTrue();
+
+    then(S3BucketRegionResolver.isWrongRegionError(createException("AccessDenied", 403))).isFalse();
+    then(S3BucketRegionResolver.isWrongRegionError(createException("InternalError", 500))).isFalse();
+    then(S3BucketRegionResolver.isWrongRegionError(new RuntimeException("Connection reset"))).isFalse();
+  }
+
+  private static AmazonServiceException createException(String errorCode, int statusCode) {
+    final AmazonServiceException e = new AmazonServiceException(errorCode);
+    e.setErrorCode(errorCode);
+    e.setStatusCode(statusCode);
+    return e;
+  }
+}
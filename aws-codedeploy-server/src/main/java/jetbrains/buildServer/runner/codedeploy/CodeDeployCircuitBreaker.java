@@ -0,0 +1,114 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+/**
+ * Circuit breaker of deployments status polling for a single account and region. Opens once the error rate of the recent
+ * polls reaches the configured threshold and suspends polling, then lets a single probe poll through every open interval
+ * and closes once the probe succeeds.
+ */
+class CodeDeployCircuitBreaker {
+  static final String ERROR_RATE_PERCENT_PROPERTY = "teamcity.codeDeploy.circuitBreaker.errorRatePercent";
+  static final String MIN_POLLS_PROPERTY = "teamcity.codeDeploy.circuitBreaker.minPolls";
+  static final String OPEN_SECONDS_PROPERTY = "teamcity.codeDeploy.circuitBreaker.openSeconds";
+  static final int WINDOW_SIZE = 20;
+
+  enum State {CLOSED, OPEN, HALF_OPEN}
+
+  private final int myErrorRatePercent;
+  private final int myMinPolls;
+  private final long myOpenMs;
+  // outcomes of the recent polls, true for failures
+  private final boolean[] myWindow = new boolean[WINDOW_SIZE];
+  private int myPolls;
+  private int myFailures;
+  private int myNext;
+  private State myState = State.CLOSED;
+  private long myOpenUntil;
+
+  CodeDeployCircuitBreaker() {
+    this(TeamCityProperties.getInteger(ERROR_RATE_PERCENT_PROPERTY, 50),
+      TeamCityProperties.getInteger(MIN_POLLS_PROPERTY, 5),
+      TeamCityProperties.getInteger(OPEN_SECONDS_PROPERTY, 60) * 1000L);
+  }
+
+  CodeDeployCircuitBreaker(int errorRatePercent, int minPolls, long openMs) {
+    myErrorRatePercent = Math.max(1, Math.min(100, errorRatePercent));
+    myMinPolls = Math.max(1, Math.min(WINDOW_SIZE, minPolls));
+    myOpenMs = openMs;
+  }
+
+  synchronized State getState() {
+    return myState;
+  }
+
+  long getOpenMs() {
+    return myOpenMs;
+  }
+
+  /**
+   * @return true if the poll may be performed, in the half-open state only the first poll is a probe
+   */
+  synchronized boolean allowPoll(long now) {
+    switch (myState) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (now < myOpenUntil) return false;
+        myState = State.HALF_OPEN;
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return true if the breaker closed after a successful probe
+   */
+  synchronized boolean pollSucceeded() {
+    if (myState == State.HALF_OPEN) {
+      myState = State.CLOSED;
+      reset();
+      return true;
+    }
+    if (myState == State.CLOSED) record(false);
+    return false;
+  }
+
+  /**
+   * @return true if the breaker opened because of this failure
+   */
+  synchronized boolean pollFailed(long now) {
+    if (myState == State.HALF_OPEN) {
+      myState = State.OPEN;
+      myOpenUntil = now + myOpenMs;
+      return false;
+    }
+    if (myState == State.OPEN) return false;
+
+    record(true);
+    if (myPolls < myMinPolls || myFailures * 100 < myErrorRatePercent * myPolls) return false;
+
+    myState = State.OPEN;
+    myOpenUntil = now + myOpenMs;
+    reset();
+    return true;
+  }
+
+  private void record(boolean failure) {
+    if (myPolls == WINDOW_SIZE) {
+      if (myWindow[myNext]) --myFailures;
+    } else {
+      ++myPolls;
+    }
+    myWindow[myNext] = failure;
+    if (failure) ++myFailures;
+    myNext = (myNext + 1) % WINDOW_SIZE;
+  }
+
+  private void reset() {
+    myPolls = 0;
+    myFailures = 0;
+    myNext = 0;
+  }
+}
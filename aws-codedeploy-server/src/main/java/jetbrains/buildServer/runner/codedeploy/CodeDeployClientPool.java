@@ -0,0 +1,211 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.codedeploy.AmazonCodeDeployClient;
+import com.amazonaws.services.s3.AmazonS3;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.amazon.AWSClients;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-side pool of AWS clients keyed by credentials and region identity.
+ * Clients not used for {@link #IDLE_TIMEOUT_MS} are evicted, all clients are re-created after {@link #MAX_AGE_MS}
+ * so that temporary credentials obtained for them never expire while in use.
+ * Evicted clients are shut down once no acquired usage holds them.
+ */
+public class CodeDeployClientPool {
+  static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+  static final long MAX_AGE_MS = TimeUnit.MINUTES.toMillis(30);
+  private static final Collection<String> CREDENTIALS_ERRORS = Arrays.asList(
+    "ExpiredToken", "ExpiredTokenException", "RequestExpired", "InvalidClientTokenId", "UnrecognizedClientException",
+    "InvalidSignatureException", "SignatureDoesNotMatch", "IncompleteSignature", "MissingAuthenticationToken", "AuthFailure");
+
+  @NotNull
+  private final ConcurrentMap<String, PooledClients> myClients = new ConcurrentHashMap<>();
+  @NotNull
+  private final S3BucketRegionResolver myRegionResolver;
+
+  public CodeDeployClientPool(@NotNull ServerPaths serverPaths) {
+    this(new File(serverPaths.getPluginDataDirectory(), CodeDeployConstants.RUNNER_TYPE));
+  }
+
+  CodeDeployClientPool(@NotNull File cacheDir) {
+    myRegionResolver = new S3BucketRegionResolver(cacheDir);
+  }
+
+  /**
+   * Clients are not shut down while acquired, every acquired clients must be released with {@link PooledClients#release()}
+   */
+  @NotNull
+  PooledClients acquire(@NotNull Map<String, String> runnerParameters) {
+    final long now = System.currentTimeMillis();
+    evictExpired(now);
+
+    final String key = getKey(runnerParameters);
+    while (true) {
+      final PooledClients clients = myClients.computeIfAbsent(key, k -> new PooledClients(runnerParameters, now));
+      // clients evicted concurrently are already removed from the pool
+      if (clients.acquire(now)) return clients;
+    }
+  }
+
+  /**
+   * Must be called when pooled clients fail with credentials related errors, see {@link #isCredentialsError(Throwable)}
+   */
+  void invalidate(@NotNull Map<String, String> runnerParameters) {
+    final PooledClients clients = myClients.remove(getKey(runnerParameters));
+    if (clients != null) clients.retire();
+  }
+
+  public void dispose() {
+    for (PooledClients clients : myClients.values()) clients.retire();
+    myClients.clear();
+  }
+
+  /**
+   * @return true if the error means the clients credentials are expired or not accepted anymore, so that re-creating clients may help
+   */
+  static boolean isCredentialsError(@NotNull Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof AmazonServiceException) {
+        final AmazonServiceException se = (AmazonServiceException) t;
+        return se.getStatusCode() == 401 || CREDENTIALS_ERRORS.contains(se.getErrorCode());
+      }
+    }
+    return false;
+  }
+
+  private void evictExpired(long now) {
+    for (Map.Entry<String, PooledClients> e : myClients.entrySet()) {
+      final PooledClients c = e.getValue();
+      if (now - c.myLastUsed <= IDLE_TIMEOUT_MS && now - c.myCreated <= MAX_AGE_MS) continue;
+      if (myClients.remove(e.getKey(), c)) c.retire();
+    }
+  }
+
+  /**
+   * All parameters except the CodeDeploy specific ones form the key: those are AWS credentials and region settings,
+   * secret values are hashed so that the pool doesn't keep them in plain text.
+   * S3 bucket is also a part of the key as S3 client is created for the bucket region
+   */
+  @NotNull
+  static String getKey(@NotNull Map<String, String> runnerParameters) {
+    final StringBuilder sb = new StringBuilder(String.valueOf(CodeDeployUtil.getS3BucketName(runnerParameters)));
+    for (Map.Entry<String, String> e : new TreeMap<>(runnerParameters).entrySet()) {
+      if (e.getKey().startsWith("codedeploy")) continue;
+      sb.append('\n').append(e.getKey()).append('=').append(isSecret(e.getKey()) ? hash(e.getValue()) : e.getValue());
+    }
+    return sb.toString();
+  }
+
+  private static boolean isSecret(@NotNull String name) {
+    return name.startsWith("secure:") || name.toLowerCase(Locale.ENGLISH).contains("secret");
+  }
+
+  @NotNull
+  private static String hash(@Nullable String value) {
+    try {
+      return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(String.valueOf(value).getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  final class PooledClients implements AWSClient.S3ClientProvider {
+    @NotNull
+    private final Map<String, String> myRunnerParameters;
+    @NotNull
+    private final AWSClients myAWSClients;
+    @NotNull
+    private final AmazonCodeDeployClient myCodeDeployClient;
+    private volatile AmazonS3 myS3Client;
+    private final long myCreated;
+    private volatile long myLastUsed;
+    private int myUsages;
+    private boolean myRetired;
+
+    private PooledClients(@NotNull Map<String, String> runnerParameters, long created) {
+      myRunnerParameters = runnerParameters;
+      myAWSClients = AWSCommonParams.withAWSClients(runnerParameters, clients -> clients);
+      myCodeDeployClient = myAWSClients.createCodeDeployClient();
+      myCreated = created;
+      myLastUsed = created;
+    }
+
+    private synchronized boolean acquire(long now) {
+      if (myRetired) return false;
+      ++myUsages;
+      myLastUsed = now;
+      return true;
+    }
+
+    /**
+     * Keeps the acquired clients for one more user, e.g. a background task, the task must release them
+     */
+    synchronized void retain() {
+      if (myUsages <= 0) throw new IllegalStateException("Clients must be acquired to be retained");
+      ++myUsages;
+    }
+
+    /**
+     * Clients must not be used once released, they may get shut down
+     */
+    synchronized void release() {
+      if (--myUsages == 0 && myRetired) shutdown();
+    }
+
+    /**
+     * Clients removed from the pool are shut down once the last in-flight call releases them,
+     * otherwise SDK connection pools of the evicted clients would never be closed
+     */
+    private synchronized void retire() {
+      myRetired = true;
+      if (myUsages == 0) shutdown();
+    }
+
+    private void shutdown() {
+      myCodeDeployClient.shutdown();
+      final AmazonS3 s3Client = myS3Client;
+      if (s3Client != null) s3Client.shutdown();
+    }
+
+    @NotNull
+    AmazonCodeDeployClient getCodeDeployClient() {
+      return myCodeDeployClient;
+    }
+
+    /**
+     * Creates AWSClient sharing CodeDeploy rate limit with all clients of the same account and region
+     */
+    @NotNull
+    AWSClient createAWSClient() {
+      return new AWSClient(this, myCodeDeployClient).withRateLimit(CodeDeployMetadataCache.getScope(myRunnerParameters));
+    }
+
+    @NotNull
+    @Override
+    public AmazonS3 getS3Client() {
+      AmazonS3 s3Client = myS3Client;
+      if (s3Client == null) {
+        synchronized (this) {
+          s3Client = myS3Client;
+          if (s3Client == null) {
+            myS3Client = s3Client = myRegionResolver.createS3Client(myAWSClients, myRunnerParameters, CodeDeployUtil.getS3BucketName(myRunnerParameters));
+          }
+        }
+      }
+      return s3Client;
+    }
+  }
+}
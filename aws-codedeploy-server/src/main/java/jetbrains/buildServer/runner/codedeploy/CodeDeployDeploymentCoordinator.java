@@ -0,0 +1,211 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import jetbrains.buildServer.util.amazon.AWSException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.runner.codedeploy.CodeDeployUtil.*;
+
+/**
+ * Creates deployments requested by agents, one at a time per application and deployment group.
+ * A request waits until the build of the previous deployment to the group finishes, a waiting request
+ * is superseded by a newer one, so only the newest queued revision is deployed.
+ */
+public class CodeDeployDeploymentCoordinator {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(CodeDeployDeploymentCoordinator.class.getName());
+
+  static final long BUSY_GROUP_RETRY_MS = TimeUnit.SECONDS.toMillis(30);
+
+  enum State {QUEUED, CREATING, CREATED, SUPERSEDED, FAILED}
+
+  @NotNull
+  private final CodeDeployDeploymentCreator myCreator;
+  @NotNull
+  private final CodeDeployDeploymentPoller myPoller;
+  @NotNull
+  private final Map<String, GroupQueue> myGroups = new HashMap<>();
+  @NotNull
+  private final Map<Long, Request> myRequests = new HashMap<>();
+  @NotNull
+  private final ExecutorService myExecutor = Executors.newSingleThreadExecutor(new NamedDaemonThreadFactory("CodeDeploy deployment coordinator"));
+
+  public CodeDeployDeploymentCoordinator(@NotNull EventDispatcher<BuildServerListener> events, @NotNull CodeDeployDeploymentCreator creator, @NotNull CodeDeployDeploymentPoller poller) {
+    myCreator = creator;
+    myPoller = poller;
+    events.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildFinished(@NotNull SRunningBuild build) {
+        release(build.getBuildId());
+      }
+
+      @Override
+      public void buildInterrupted(@NotNull SRunningBuild build) {
+        release(build.getBuildId());
+      }
+    });
+  }
+
+  /**
+   * Queues the deployment request of the build if it's not queued yet
+   *
+   * @return the build request, its state tells whether the deployment is already created
+   */
+  @NotNull
+  synchronized Request submit(@NotNull SRunningBuild build, @NotNull Map<String, String> runnerParameters, @NotNull CodeDeployDeploymentCreator.Revision revision) {
+    final Request existing = myRequests.get(build.getBuildId());
+    if (existing != null) {
+      if (existing.myState == State.QUEUED && existing.myRetryTime <= System.currentTimeMillis()) start(existing);
+      return existing;
+    }
+
+    final Request request = new Request(build, runnerParameters, revision);
+    myRequests.put(request.myBuildId, request);
+
+    final GroupQueue queue = myGroups.computeIfAbsent(request.myGroupKey, k -> new GroupQueue());
+    if (queue.myActive == null) {
+      queue.myActive = request;
+      start(request);
+    } else {
+      final Request superseded = queue.myQueued;
+      if (superseded != null) {
+        superseded.myState = State.SUPERSEDED;
+        superseded.myMessage = "superseded by " + request.myBuildDescription;
+      }
+      queue.myQueued = request;
+      request.myMessage = "waiting for " + queue.myActive.myBuildDescription;
+    }
+    return request;
+  }
+
+  public void dispose() {
+    myExecutor.shutdownNow();
+  }
+
+  private synchronized void release(long buildId) {
+    final Request request = myRequests.remove(buildId);
+    if (request == null) return;
+
+    final GroupQueue queue = myGroups.get(request.myGroupKey);
+    if (queue == null) return;
+    if (queue.myQueued == request) queue.myQueued = null;
+    if (queue.myActive == request) {
+      queue.myActive = queue.myQueued;
+      queue.myQueued = null;
+      if (queue.myActive != null) start(queue.myActive);
+    }
+    if (queue.myActive == null) myGroups.remove(request.myGroupKey);
+  }
+
+  private void start(@NotNull Request request) {
+    request.myState = State.CREATING;
+    request.myMessage = null;
+    myExecutor.submit(() -> create(request));
+  }
+
+  private void create(@NotNull Request request) {
+    try {
+      final CodeDeployDeploymentCreator.CreatedDeployment deployment = myCreator.createDeployment(request.myRunnerParameters, request.myRevision, request.myBuildDescription);
+      synchronized (this) {
+        if (myRequests.get(request.myBuildId) == request) {
+          request.myDeployment = deployment;
+          request.myState = State.CREATED;
+          return;
+        }
+      }
+      // the build finished or got interrupted while the deployment was being created, nobody is going to wait for it
+      LOG.info("Stopping CodeDeploy deployment " + deployment.getDeploymentId() + " created for the finished " + request.myBuildDescription);
+      myPoller.stopDeployment(request.myRunnerParameters, deployment.getDeploymentId());
+    } catch (AWSException e) {
+      synchronized (this) {
+        if (CodeDeployDeploymentCreator.isGroupBusy(e)) {
+          // deployed by somebody else
+          request.myState = State.QUEUED;
+          request.myRetryTime = System.currentTimeMillis() + BUSY_GROUP_RETRY_MS;
+          request.myMessage = "deployment group is busy with another deployment, will retry in " + TimeUnit.MILLISECONDS.toSeconds(BUSY_GROUP_RETRY_MS) + " sec";
+        } else {
+          LOG.warn("Failed to create CodeDeploy deployment for " + request.myBuildDescription, e);
+          request.myState = State.FAILED;
+          request.myMessage = e.getMessage();
+        }
+      }
+    }
+  }
+
+  private static final class GroupQueue {
+    @Nullable
+    private Request myActive;
+    @Nullable
+    private Request myQueued;
+  }
+
+  static final class Request {
+    private final long myBuildId;
+    @NotNull
+    private final String myBuildDescription;
+    @NotNull
+    private final String myGroupKey;
+    @NotNull
+    private final Map<String, String> myRunnerParameters;
+    @NotNull
+    private final CodeDeployDeploymentCreator.Revision myRevision;
+    private volatile State myState = State.QUEUED;
+    @Nullable
+    private volatile CodeDeployDeploymentCreator.CreatedDeployment myDeployment;
+    @Nullable
+    private volatile String myMessage;
+    private volatile long myRetryTime;
+    @Nullable
+    private State myReportedState;
+
+    private Request(@NotNull SRunningBuild build, @NotNull Map<String, String> runnerParameters, @NotNull CodeDeployDeploymentCreator.Revision revision) {
+      myBuildId = build.getBuildId();
+      myBuildDescription = CodeDeployDeploymentCreator.getBuildDescription(build);
+      myGroupKey = CodeDeployMetadataCache.getScope(runnerParameters) + "|" + getAppName(runnerParameters) + "|" + getDeploymentGroupName(runnerParameters);
+      myRunnerParameters = runnerParameters;
+      myRevision = revision;
+    }
+
+    @NotNull
+    State getState() {
+      return myState;
+    }
+
+    /**
+     * Not null once the deployment is created
+     */
+    @Nullable
+    CodeDeployDeploymentCreator.CreatedDeployment getDeployment() {
+      return myDeployment;
+    }
+
+    /**
+     * Describes why the request is waiting, superseded or failed
+     */
+    @Nullable
+    String getMessage() {
+      return myMessage;
+    }
+
+    /**
+     * @return true if the current state wasn't reported to the build before
+     */
+    synchronized boolean markReported() {
+      if (myReportedState == myState) return false;
+      myReportedState = myState;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.AmazonServiceException;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.amazon.AWSException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static jetbrains.buildServer.runner.codedeploy.CodeDeployUtil.*;
+
+/**
+ * Creates deployments of the revisions uploaded and registered by build agents on the server side
+ */
+public class CodeDeployDeploymentCreator {
+  static final int THREADS = 4;
+
+  @NotNull
+  private final CodeDeployClientPool myClientPool;
+  @NotNull
+  private final ExecutorService myExecutor = Executors.newFixedThreadPool(THREADS, new NamedDaemonThreadFactory("CodeDeploy deployment creation"));
+
+  public CodeDeployDeploymentCreator(@NotNull CodeDeployClientPool clientPool) {
+    myClientPool = clientPool;
+  }
+
+  public void dispose() {
+    myExecutor.shutdownNow();
+  }
+
+  /**
+   * Reads the revision reported by the build agent, see {@link CodeDeployConstants#S3_OBJECT_KEY_CONFIG_PARAM}
+   *
+   * @return null if the agent didn't report the revision S3 object key
+   */
+  @Nullable
+  static Revision getRevision(@NotNull SRunningBuild build) {
+    final String s3ObjectKey = build.getParametersProvider().get(CodeDeployConstants.S3_OBJECT_KEY_CONFIG_PARAM);
+    if (StringUtil.isEmptyOrSpaces(s3ObjectKey)) return null;
+    return new Revision(s3ObjectKey,
+      build.getParametersProvider().get(CodeDeployConstants.S3_OBJECT_VERSION_CONFIG_PARAM),
+      build.getParametersProvider().get(CodeDeployConstants.S3_OBJECT_ETAG_CONFIG_PARAM));
+  }
+
+  @NotNull
+  static String getBuildDescription(@NotNull SRunningBuild build) {
+    return "\"" + build.getBuildTypeName() + "\" #" + build.getBuildNumber();
+  }
+
+  /**
+   * Creates the deployment to the deployment group of the runner parameters, blocks until CodeDeploy responds
+   *
+   * @return the created deployment
+   */
+  @NotNull
+  CreatedDeployment createDeployment(@NotNull Map<String, String> params, @NotNull Revision revision, @NotNull String buildDescription) throws AWSException {
+    final String[] deploymentId = new String[1];
+    final AWSException[] error = new AWSException[1];
+    try {
+      final CodeDeployClientPool.PooledClients clients = myClientPool.acquire(params);
+      try {
+        clients.createAWSClient().withDescription("TeamCity build " + buildDescription).withListener(new AWSClient.Listener() {
+          @Override
+          void createDeploymentFinished(@NotNull String applicationName, @NotNull String deploymentGroupName, @Nullable String deploymentConfigName, @NotNull String id) {
+            deploymentId[0] = id;
+          }
+
+          @Override
+          void exception(@NotNull AWSException exception) {
+            error[0] = exception;
+          }
+        }).deployRevision(
+          "" + getS3BucketName(params), revision.getS3ObjectKey(), "" + getBundleType(revision.getS3ObjectKey()), revision.getS3ObjectVersion(), revision.getS3ObjectETag(),
+          "" + getAppName(params), "" + getDeploymentGroupName(params),
+          getEC2Tags(params), getAutoScalingGroups(params),
+          getDeploymentConfigName(params),
+          Boolean.parseBoolean(getRollbackOnFailure(params)),
+          Boolean.parseBoolean(getRollbackOnAlarmThreshold(params)),
+          getFileExistsBehavior(params));
+      } finally {
+        clients.release();
+      }
+    } catch (Exception e) {
+      throw new AWSException(e);
+    }
+
+    if (deploymentId[0] != null) return new CreatedDeployment(deploymentId[0], System.currentTimeMillis());
+    throw error[0] == null ? new AWSException("Deployment was not created", null, AWSException.EXCEPTION_BUILD_PROBLEM_TYPE, null) : error[0];
+  }
+
+  /**
+   * Creates the deployment asynchronously, the future fails with {@link AWSException}
+   */
+  @NotNull
+  CompletableFuture<CreatedDeployment> submitDeployment(@NotNull Map<String, String> params, @NotNull Revision revision, @NotNull String buildDescription) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return createDeployment(params, revision, buildDescription);
+      } catch (AWSException e) {
+        throw new CompletionException(e);
+      }
+    }, myExecutor);
+  }
+
+  /**
+   * True if CodeDeploy refused the deployment because the deployment group is busy with another one
+   */
+  static boolean isGroupBusy(@NotNull AWSException e) {
+    final Throwable cause = e.getCause();
+    return cause instanceof AmazonServiceException && "DeploymentLimitExceededException".equals(((AmazonServiceException) cause).getErrorCode());
+  }
+
+  static final class CreatedDeployment {
+    @NotNull
+    private final String myDeploymentId;
+    private final long myCreatedTime;
+
+    CreatedDeployment(@NotNull String deploymentId, long createdTime) {
+      myDeploymentId = deploymentId;
+      myCreatedTime = createdTime;
+    }
+
+    @NotNull
+    String getDeploymentId() {
+      return myDeploymentId;
+    }
+
+    /**
+     * Deployment wait timeout is counted from this time
+     */
+    long getCreatedTime() {
+      return myCreatedTime;
+    }
+  }
+
+  static final class Revision {
+    @NotNull
+    private final String myS3ObjectKey;
+    @Nullable
+    private final String myS3ObjectVersion;
+    @Nullable
+    private final String myS3ObjectETag;
+
+    Revision(@NotNull String s3ObjectKey, @Nullable String s3ObjectVersion, @Nullable String s3ObjectETag) {
+      myS3ObjectKey = s3ObjectKey;
+      myS3ObjectVersion = s3ObjectVersion;
+      myS3ObjectETag = s3ObjectETag;
+    }
+
+    @NotNull
+    String getS3ObjectKey() {
+      return myS3ObjectKey;
+    }
+
+    @Nullable
+    String getS3ObjectVersion() {
+      return myS3ObjectVersion;
+    }
+
+    @Nullable
+    String getS3ObjectETag() {
+      return myS3ObjectETag;
+    }
+  }
+}
@@ -0,0 +1,549 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.services.codedeploy.model.DeploymentInfo;
+import com.amazonaws.services.codedeploy.model.DeploymentOverview;
+import com.amazonaws.services.codedeploy.model.DeploymentStatus;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Polls in-flight deployments in background and keeps the latest status snapshot per deployment,
+ * so that detached builds are updated without network calls.
+ * Each deployment is polled when {@link CodeDeployPollScheduler} says it's due, due deployments of the same account
+ * and region are fetched with a single BatchGetDeployments call per 25 ids.
+ * Deployments not finished by their deadline are not polled anymore and optionally stopped.
+ * Polling of an account and region is suspended while {@link CodeDeployCircuitBreaker} is open.
+ * Deployments restored from {@link CodeDeployTrackingState} after a server restart have their first polls spread in time.
+ */
+public class CodeDeployDeploymentPoller {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(CodeDeployDeploymentPoller.class.getName());
+
+  static final long TICK_MS = TimeUnit.SECONDS.toMillis(1);
+  static final long TRACKING_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+  static final long RESTORE_SPREAD_MS = TimeUnit.SECONDS.toMillis(30);
+  private static final int THREADS = 4;
+
+  @NotNull
+  private final CodeDeployClientPool myClientPool;
+  @NotNull
+  private final CodeDeployTrackingState myTrackingState;
+  @NotNull
+  private final CodeDeployPollScheduler myPollScheduler = new CodeDeployPollScheduler();
+  @NotNull
+  private final ConcurrentMap<String, TrackedDeployment> myDeployments = new ConcurrentHashMap<>();
+  @NotNull
+  private final ConcurrentMap<String, CodeDeployCircuitBreaker> myBreakers = new ConcurrentHashMap<>();
+  @NotNull
+  private final Set<String> myGroupsInProgress = ConcurrentHashMap.newKeySet();
+  @NotNull
+  private final AtomicLong myLastWakeUp = new AtomicLong();
+  @NotNull
+  private final ScheduledExecutorService myScheduler = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("CodeDeploy deployment poller"));
+  @NotNull
+  private final ExecutorService myExecutor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new NamedDaemonThreadFactory("CodeDeploy deployment status"));
+
+  public CodeDeployDeploymentPoller(@NotNull CodeDeployClientPool clientPool, @NotNull CodeDeployTrackingState trackingState) {
+    myClientPool = clientPool;
+    myTrackingState = trackingState;
+    ((ThreadPoolExecutor) myExecutor).allowCoreThreadTimeOut(true);
+    myScheduler.scheduleWithFixedDelay(this::pollAll, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts tracking the deployment if it's not tracked yet, never blocks on the network
+   *
+   * @param startTime deployment wait timeout, if configured, is counted from this time
+   * @return status snapshot not returned before or null if there is no new one
+   */
+  @Nullable
+  Snapshot getUpdate(@NotNull Map<String, String> runnerParameters, @NotNull String deploymentId, long startTime) {
+    final TrackedDeployment deployment = myDeployments.computeIfAbsent(deploymentId, id -> createDeployment(id, runnerParameters, startTime));
+    deployment.myLastRequested = System.currentTimeMillis();
+    return deployment.takeUpdate();
+  }
+
+  /**
+   * @return time the deployment is going to be polled next, 0 if it's not tracked
+   */
+  long getNextPollTime(@NotNull String deploymentId) {
+    final TrackedDeployment deployment = myDeployments.get(deploymentId);
+    return deployment == null ? 0 : deployment.myNextPollTime;
+  }
+
+  /**
+   * Makes the deployment polled right away, its application and deployment group are remembered
+   * to poll their deployments less often. Notifications of not tracked deployments or naming another
+   * application or deployment group than the tracked one are ignored
+   *
+   * @return true if the deployment is tracked
+   */
+  boolean notificationReceived(@NotNull String deploymentId, @Nullable String applicationName, @Nullable String deploymentGroupName) {
+    final TrackedDeployment deployment = myDeployments.get(deploymentId);
+    if (deployment == null) return false;
+    if (!deployment.isOf(applicationName, deploymentGroupName)) return false;
+
+    myPollScheduler.notificationReceived(applicationName, deploymentGroupName);
+    if (deployment.myNextPollTime != Long.MAX_VALUE) {
+      deployment.myNextPollTime = 0;
+      // a notifications burst must not make the poller spin, due deployments are picked up by the next tick anyway
+      final long now = System.currentTimeMillis();
+      final long lastWakeUp = myLastWakeUp.get();
+      if (now - lastWakeUp >= TICK_MS && myLastWakeUp.compareAndSet(lastWakeUp, now)) {
+        myScheduler.execute(this::pollAll);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return message about suspended polling of the deployment not returned before or null
+   */
+  @Nullable
+  String takeOutageNotice(@NotNull String deploymentId) {
+    final TrackedDeployment deployment = myDeployments.get(deploymentId);
+    return deployment == null ? null : deployment.myOutageNotice.getAndSet(null);
+  }
+
+  /**
+   * Must be called once the deployment is no more tracked
+   */
+  void forget(@NotNull String deploymentId) {
+    myDeployments.remove(deploymentId);
+    myTrackingState.remove(deploymentId);
+  }
+
+  /**
+   * Stops the deployment of the interrupted build in background using pooled clients, the deployment is no more tracked
+   */
+  void stopDeployment(@NotNull Map<String, String> runnerParameters, @NotNull String deploymentId) {
+    forget(deploymentId);
+    myExecutor.submit(() -> {
+      try {
+        final CodeDeployClientPool.PooledClients clients = myClientPool.acquire(runnerParameters);
+        try {
+          clients.createAWSClient().stopInterruptedDeployment(deploymentId);
+        } finally {
+          clients.release();
+        }
+      } catch (Exception e) {
+        LOG.warn("Failed to stop CodeDeploy deployment " + deploymentId + " of the interrupted build", e);
+      }
+    });
+  }
+
+  public void dispose() {
+    myScheduler.shutdownNow();
+    myExecutor.shutdownNow();
+  }
+
+  private void pollAll() {
+    try {
+      final long now = System.currentTimeMillis();
+      myDeployments.values().removeIf(d -> now - d.myLastRequested > TRACKING_TTL_MS);
+
+      for (TrackedDeployment d : myDeployments.values()) {
+        if (d.myDeadline > now || d.myTimedOut || d.myComplete) continue;
+        d.myTimedOut = true;
+        d.myNextPollTime = Long.MAX_VALUE;
+        myExecutor.submit(() -> timeOut(d));
+      }
+
+      final Map<String, List<TrackedDeployment>> groups = new HashMap<>();
+      for (TrackedDeployment d : myDeployments.values()) {
+        if (d.myNextPollTime > now) continue;
+        // deployments of the same account and region are fetched together whatever S3 bucket or other settings their steps have
+        groups.computeIfAbsent(CodeDeployMetadataCache.getScope(d.myRunnerParameters), k -> new ArrayList<>()).add(d);
+      }
+      for (Map.Entry<String, List<TrackedDeployment>> e : groups.entrySet()) {
+        // a hanging endpoint must not pile up requests for the same account and region
+        if (!myGroupsInProgress.add(e.getKey())) continue;
+        if (!getBreaker(e.getValue().get(0).myRunnerParameters).allowPoll(now)) {
+          myGroupsInProgress.remove(e.getKey());
+          continue;
+        }
+        myExecutor.submit(() -> {
+          try {
+            poll(e.getValue());
+          } finally {
+            myGroupsInProgress.remove(e.getKey());
+          }
+        });
+      }
+    } catch (Throwable t) {
+      LOG.warn("Unexpected error while scheduling CodeDeploy deployments polling", t);
+    }
+  }
+
+  /**
+   * Polls deployments of the same account and region with the pooled clients of any of them
+   */
+  private void poll(@NotNull List<TrackedDeployment> deployments) {
+    final Map<String, String> runnerParameters = deployments.get(0).myRunnerParameters;
+    final CodeDeployCircuitBreaker breaker = getBreaker(runnerParameters);
+    final CodeDeployClientPool.PooledClients clients;
+    try {
+      clients = myClientPool.acquire(runnerParameters);
+    } catch (Exception e) {
+      pollFailed(deployments, breaker, e);
+      return;
+    }
+    try {
+      final List<String> ids = new ArrayList<>(deployments.size());
+      for (TrackedDeployment d : deployments) ids.add(d.myDeploymentId);
+
+      final AWSClient awsClient = clients.createAWSClient();
+      final Map<String, DeploymentInfo> infos = awsClient.getDeployments(ids);
+      final long now = System.currentTimeMillis();
+      for (TrackedDeployment d : deployments) {
+        if (d.myTimedOut) continue;
+        final DeploymentInfo info = infos.get(d.myDeploymentId);
+        if (info == null) {
+          // BatchGetDeployments leaves unknown deployments out of a successful response, they are not going to appear later
+          d.myNextPollTime = Long.MAX_VALUE;
+          d.myComplete = true;
+          d.setLatest(new Snapshot(clients, null, Collections.emptyList(), Collections.emptyList(), null, false, true));
+          continue;
+        }
+        // targets can't have changed if the deployment overview counters didn't
+        final List<AWSClient.Listener.DeploymentTargetStatus> targets = d.isChanged(info) ? getUpdatedTargets(awsClient, d, info) : Collections.emptyList();
+        if (info.getCompleteTime() == null) {
+          d.myNextPollTime = now + myPollScheduler.getNextPollDelay(info, now);
+          d.setLatest(new Snapshot(clients, info, targets, Collections.emptyList(), null, false));
+          continue;
+        }
+
+        // finished deployments don't change, the build picks the last snapshot up and forgets the deployment
+        myPollScheduler.deploymentFinished(info);
+        d.myNextPollTime = Long.MAX_VALUE;
+        d.myComplete = true;
+        if (DeploymentStatus.Failed.toString().equals(info.getStatus())) {
+          // diagnostics take several calls per failed target, they must not hold the account and region polling
+          clients.retain();
+          myExecutor.submit(() -> diagnose(clients, d, info, targets));
+        } else {
+          d.setLatest(new Snapshot(clients, info, targets, Collections.emptyList(), null, false));
+        }
+      }
+      if (breaker.pollSucceeded()) LOG.info("CodeDeploy deployments " + deployments + " status polled successfully, polling resumed");
+    } catch (Exception e) {
+      pollFailed(deployments, breaker, e);
+    } finally {
+      clients.release();
+    }
+  }
+
+  private void pollFailed(@NotNull List<TrackedDeployment> deployments, @NotNull CodeDeployCircuitBreaker breaker, @NotNull Exception e) {
+    final Map<String, String> runnerParameters = deployments.get(0).myRunnerParameters;
+    final long now = System.currentTimeMillis();
+    if (breaker.pollFailed(now)) {
+      suspendPolling(CodeDeployMetadataCache.getScope(runnerParameters), breaker.getOpenMs(), e);
+    } else if (breaker.getState() == CodeDeployCircuitBreaker.State.CLOSED) {
+      LOG.warn("Failed to get status of CodeDeploy deployments " + deployments + ", will retry in " + CodeDeployPollScheduler.DEFAULT_INTERVAL_MS + " ms", e);
+    } else {
+      LOG.debug("Failed to get status of CodeDeploy deployments " + deployments + " while polling is suspended", e);
+    }
+    final long retryTime = now + CodeDeployPollScheduler.DEFAULT_INTERVAL_MS;
+    for (TrackedDeployment d : deployments) {
+      if (!d.myTimedOut) d.myNextPollTime = retryTime;
+    }
+    // re-creating clients on every failure would defeat pooling during API outages
+    if (CodeDeployClientPool.isCredentialsError(e)) myClientPool.invalidate(runnerParameters);
+  }
+
+  /**
+   * Sets the failed deployment snapshot with diagnostics, releases the clients
+   */
+  private void diagnose(@NotNull CodeDeployClientPool.PooledClients clients, @NotNull TrackedDeployment deployment,
+                        @NotNull DeploymentInfo info, @NotNull List<AWSClient.Listener.DeploymentTargetStatus> targets) {
+    try {
+      deployment.setLatest(new Snapshot(clients, info, targets, getFailureDiagnostics(clients.createAWSClient(), deployment, info), null, false));
+    } finally {
+      clients.release();
+    }
+  }
+
+  @NotNull
+  private TrackedDeployment createDeployment(@NotNull String deploymentId, @NotNull Map<String, String> runnerParameters, long startTime) {
+    final TrackedDeployment deployment = new TrackedDeployment(deploymentId, runnerParameters, startTime);
+    final CodeDeployTrackingState.Checkpoint checkpoint = myTrackingState.getCheckpoint(deploymentId);
+    if (checkpoint == null) return deployment;
+
+    // all deployments are restored at once after a restart, their first polls must not hit the API together
+    final long now = System.currentTimeMillis();
+    final long jittered = now + (long) (ThreadLocalRandom.current().nextDouble() * RESTORE_SPREAD_MS);
+    final long saved = checkpoint.getNextPollTime() == Long.MAX_VALUE ? 0 : Math.min(checkpoint.getNextPollTime(), now + CodeDeployPollScheduler.SAFETY_NET_INTERVAL_MS);
+    deployment.myNextPollTime = Math.max(saved, jittered);
+    deployment.myTargetsTracker.setCheckpoint(new Date(checkpoint.getTime()));
+    return deployment;
+  }
+
+  @NotNull
+  private CodeDeployCircuitBreaker getBreaker(@NotNull Map<String, String> runnerParameters) {
+    return myBreakers.computeIfAbsent(CodeDeployMetadataCache.getScope(runnerParameters), k -> new CodeDeployCircuitBreaker());
+  }
+
+  /**
+   * Posts a single notice to each affected deployment instead of reporting every failed poll
+   */
+  private void suspendPolling(@NotNull String scope, long openMs, @NotNull Exception e) {
+    final String notice = "CodeDeploy API calls are failing (" + e.getMessage() + "), status polling is suspended for " +
+                          TimeUnit.MILLISECONDS.toSeconds(openMs) + " sec and will be resumed once the API recovers";
+    LOG.warn("Too many CodeDeploy API calls failed for scope " + scope + ", " + notice, e);
+    for (TrackedDeployment d : myDeployments.values()) {
+      if (scope.equals(CodeDeployMetadataCache.getScope(d.myRunnerParameters))) d.myOutageNotice.set(notice);
+    }
+  }
+
+  private void timeOut(@NotNull TrackedDeployment deployment) {
+    // the deployment might have finished while the timeout was waiting for its turn
+    if (deployment.myComplete) return;
+    final Snapshot last = deployment.myLatest;
+
+    final CodeDeployClientPool.PooledClients clients;
+    try {
+      clients = myClientPool.acquire(deployment.myRunnerParameters);
+    } catch (Exception e) {
+      LOG.warn("Failed to create AWS clients for CodeDeploy deployment " + deployment + " timeout processing, will retry", e);
+      deployment.myTimedOut = false;
+      return;
+    }
+
+    boolean stopped = false;
+    if (CodeDeployUtil.isStopOnTimeout(deployment.myRunnerParameters)) {
+      try {
+        clients.createAWSClient().stopDeployment(deployment.myDeploymentId);
+        stopped = true;
+      } catch (Exception e) {
+        LOG.warn("Failed to stop CodeDeploy deployment " + deployment + " after timeout", e);
+      } finally {
+        clients.release();
+      }
+    } else {
+      clients.release();
+    }
+    deployment.setLatest(new Snapshot(clients, last == null ? null : last.myInfo, Collections.emptyList(), Collections.emptyList(), deployment.myTimeoutSec, stopped));
+  }
+
+  @NotNull
+  private static List<AWSClient.Listener.DeploymentTargetStatus> getUpdatedTargets(@NotNull AWSClient awsClient, @NotNull TrackedDeployment deployment, @Nullable DeploymentInfo info) {
+    if (info == null || DeploymentStatus.Created.toString().equals(info.getStatus()) || DeploymentStatus.Queued.toString().equals(info.getStatus())) {
+      return Collections.emptyList();
+    }
+    try {
+      return awsClient.getUpdatedDeploymentTargets(deployment.myTargetsTracker);
+    } catch (Exception e) {
+      // targets are reported on the best effort basis, they must not break status polling
+      LOG.debug("Failed to get CodeDeploy deployment " + deployment + " targets", e);
+      return Collections.emptyList();
+    }
+  }
+
+  @NotNull
+  private static List<AWSClient.Listener.TargetDiagnostics> getFailureDiagnostics(@NotNull AWSClient awsClient, @NotNull TrackedDeployment deployment, @NotNull DeploymentInfo info) {
+    try {
+      return awsClient.getFailedTargetsDiagnostics(deployment.myDeploymentId);
+    } catch (Exception e) {
+      LOG.debug("Failed to get CodeDeploy deployment " + deployment + " failure diagnostics", e);
+      return Collections.emptyList();
+    }
+  }
+
+  static final class Snapshot {
+    @NotNull
+    private final CodeDeployClientPool.PooledClients myClients;
+    @Nullable
+    private final DeploymentInfo myInfo;
+    @NotNull
+    private final List<AWSClient.Listener.DeploymentTargetStatus> myTargets;
+    @NotNull
+    private final List<AWSClient.Listener.TargetDiagnostics> myDiagnostics;
+    @Nullable
+    private final Integer myTimeoutSec;
+    private final boolean myStopped;
+    private final boolean myMissing;
+
+    private Snapshot(@NotNull CodeDeployClientPool.PooledClients clients,
+                     @Nullable DeploymentInfo info,
+                     @NotNull List<AWSClient.Listener.DeploymentTargetStatus> targets,
+                     @NotNull List<AWSClient.Listener.TargetDiagnostics> diagnostics,
+                     @Nullable Integer timeoutSec,
+                     boolean stopped) {
+      this(clients, info, targets, diagnostics, timeoutSec, stopped, false);
+    }
+
+    private Snapshot(@NotNull CodeDeployClientPool.PooledClients clients,
+                     @Nullable DeploymentInfo info,
+                     @NotNull List<AWSClient.Listener.DeploymentTargetStatus> targets,
+                     @NotNull List<AWSClient.Listener.TargetDiagnostics> diagnostics,
+                     @Nullable Integer timeoutSec,
+                     boolean stopped,
+                     boolean missing) {
+      myClients = clients;
+      myInfo = info;
+      myTargets = targets;
+      myDiagnostics = diagnostics;
+      myTimeoutSec = timeoutSec;
+      myStopped = stopped;
+      myMissing = missing;
+    }
+
+    /**
+     * Clients the snapshot was fetched with, only for processing the snapshot: they are released and may be shut down
+     */
+    @NotNull
+    CodeDeployClientPool.PooledClients getClients() {
+      return myClients;
+    }
+
+    /**
+     * Null if the deployment is missing or wasn't fetched before the timeout
+     */
+    @Nullable
+    DeploymentInfo getInfo() {
+      return myInfo;
+    }
+
+    /**
+     * Targets updated since the previously taken snapshot
+     */
+    @NotNull
+    List<AWSClient.Listener.DeploymentTargetStatus> getTargets() {
+      return myTargets;
+    }
+
+    /**
+     * Failed targets diagnostics, fetched only for failed deployments
+     */
+    @NotNull
+    List<AWSClient.Listener.TargetDiagnostics> getDiagnostics() {
+      return myDiagnostics;
+    }
+
+    /**
+     * Not null if the deployment didn't finish in time, {@link #getInfo()} is the last known state then
+     */
+    @Nullable
+    Integer getTimeoutSec() {
+      return myTimeoutSec;
+    }
+
+    /**
+     * True if the deployment was stopped because of the timeout
+     */
+    boolean isStopped() {
+      return myStopped;
+    }
+
+    /**
+     * True if AWS doesn't know the deployment, e.g. its id is malformed or the deployment was deleted
+     */
+    boolean isMissing() {
+      return myMissing;
+    }
+  }
+
+  private static final class TrackedDeployment {
+    @NotNull
+    private final String myDeploymentId;
+    @NotNull
+    private final Map<String, String> myRunnerParameters;
+    @NotNull
+    private final DeploymentTargetsTracker myTargetsTracker;
+    @Nullable
+    private final Integer myTimeoutSec;
+    private final long myDeadline;
+    private volatile boolean myTimedOut;
+    private volatile boolean myComplete;
+    @NotNull
+    private final AtomicReference<String> myOutageNotice = new AtomicReference<>();
+    @Nullable
+    private volatile Snapshot myLatest;
+    @Nullable
+    private Snapshot myTaken;
+    private volatile long myLastRequested;
+    private volatile long myNextPollTime;
+    @Nullable
+    private String myLastStatus;
+    @Nullable
+    private DeploymentOverview myLastOverview;
+
+    private TrackedDeployment(@NotNull String deploymentId, @NotNull Map<String, String> runnerParameters, long startTime) {
+      myDeploymentId = deploymentId;
+      myRunnerParameters = runnerParameters;
+      myTargetsTracker = new DeploymentTargetsTracker(deploymentId);
+      myTimeoutSec = getTimeoutSec(runnerParameters);
+      myDeadline = myTimeoutSec == null ? Long.MAX_VALUE : startTime + TimeUnit.SECONDS.toMillis(myTimeoutSec);
+      myLastRequested = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if the deployment was created for the provided application and deployment group
+     */
+    private boolean isOf(@Nullable String applicationName, @Nullable String deploymentGroupName) {
+      return applicationName != null && applicationName.equals(CodeDeployUtil.getAppName(myRunnerParameters)) &&
+             deploymentGroupName != null && deploymentGroupName.equals(CodeDeployUtil.getDeploymentGroupName(myRunnerParameters));
+    }
+
+    /**
+     * Target updates of the snapshot not taken yet are preserved in the new one
+     */
+    private synchronized void setLatest(@NotNull Snapshot snapshot) {
+      final Snapshot latest = myLatest;
+      if (latest != null && latest.myTimeoutSec != null) return;
+      // a finished deployment can't time out anymore
+      if (myComplete && snapshot.myTimeoutSec != null) return;
+      if (latest != null && latest != myTaken && !latest.myTargets.isEmpty()) {
+        final List<AWSClient.Listener.DeploymentTargetStatus> targets = new ArrayList<>(latest.myTargets);
+        targets.addAll(snapshot.myTargets);
+        snapshot = new Snapshot(snapshot.myClients, snapshot.myInfo, targets, snapshot.myDiagnostics, snapshot.myTimeoutSec, snapshot.myStopped, snapshot.myMissing);
+      }
+      myLatest = snapshot;
+    }
+
+    /**
+     * @return true if the deployment status or instance counters changed since the previous call, called by the polling thread only
+     */
+    private boolean isChanged(@Nullable DeploymentInfo info) {
+      final String status = info == null ? null : info.getStatus();
+      final DeploymentOverview overview = info == null ? null : info.getDeploymentOverview();
+      final boolean changed = !Objects.equals(status, myLastStatus) || !Objects.equals(overview, myLastOverview);
+      myLastStatus = status;
+      myLastOverview = overview;
+      return changed;
+    }
+
+    @Nullable
+    private static Integer getTimeoutSec(@NotNull Map<String, String> runnerParameters) {
+      final String timeout = CodeDeployUtil.getWaitTimeoutSec(runnerParameters);
+      if (StringUtil.isEmptyOrSpaces(timeout)) return null;
+      try {
+        final int timeoutSec = Integer.parseInt(timeout.trim());
+        return timeoutSec > 0 ? timeoutSec : null;
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    @Nullable
+    private synchronized Snapshot takeUpdate() {
+      final Snapshot latest = myLatest;
+      if (latest == null || latest == myTaken) return null;
+      myTaken = latest;
+      return latest;
+    }
+
+    @Override
+    public String toString() {
+      return myDeploymentId;
+    }
+  }
+}
@@ -2,25 +2,41 @@
 
 package jetbrains.buildServer.runner.codedeploy;
 
-import com.amazonaws.services.codedeploy.AmazonCodeDeployClient;
-import com.amazonaws.services.s3.AmazonS3;
 import jetbrains.buildServer.BuildProblemData;
 import jetbrains.buildServer.messages.Status;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.agentless.DetachedBuildStatusProvider;
 import jetbrains.buildServer.util.StringUtil;
-import jetbrains.buildServer.util.amazon.AWSCommonParams;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Collections;
-import java.util.Date;
-import java.util.Map;
+import java.util.*;
 
 import static jetbrains.buildServer.serverSide.buildLog.MessageAttrs.DEFAULT_FLOW_ID;
 import static jetbrains.buildServer.serverSide.buildLog.MessageAttrs.attrs;
 
 public class CodeDeployDeploymentStatusProvider implements DetachedBuildStatusProvider {
+  @NotNull
+  private final CodeDeployDeploymentPoller myPoller;
+  @NotNull
+  private final CodeDeployTrackedBuilds myTrackedBuilds;
+  @NotNull
+  private final CodeDeployTrackingState myTrackingState;
+  @NotNull
+  private final CodeDeployDeploymentCoordinator myCoordinator;
+  @NotNull
+  private final CodeDeployDeploymentCreator myCreator;
+
+  public CodeDeployDeploymentStatusProvider(@NotNull CodeDeployDeploymentPoller poller, @NotNull CodeDeployTrackedBuilds trackedBuilds,
+                                            @NotNull CodeDeployTrackingState trackingState, @NotNull CodeDeployDeploymentCoordinator coordinator,
+                                            @NotNull CodeDeployDeploymentCreator creator) {
+    myPoller = poller;
+    myTrackedBuilds = trackedBuilds;
+    myTrackingState = trackingState;
+    myCoordinator = coordinator;
+    myCreator = creator;
+  }
+
   @NotNull
   @Override
   public String getDescription() {
@@ -29,22 +45,241 @@ public class CodeDeployDeploymentStatusProvider implements DetachedBuildStatusPr
 
   @Override
   public boolean accepts(@NotNull SRunningBuild runningBuild, @Nullable String trackingInfo) {
-    return getDeploymentInfo(runningBuild) != null;
+    return myTrackedBuilds.get(runningBuild) != null || getDeploymentIds(runningBuild) != null || isDeploymentRequested(runningBuild) || isRolloutRequested(runningBuild);
+  }
+
+  private boolean isDeploymentRequested(@NotNull SRunningBuild sRunningBuild) {
+    return Boolean.parseBoolean(sRunningBuild.getParametersProvider().get(CodeDeployConstants.DEPLOYMENT_REQUESTED_BUILD_CONFIG_PARAM));
   }
 
+  private boolean isRolloutRequested(@NotNull SRunningBuild sRunningBuild) {
+    return Boolean.parseBoolean(sRunningBuild.getParametersProvider().get(CodeDeployConstants.ROLLOUT_REQUESTED_BUILD_CONFIG_PARAM));
+  }
+
+  /**
+   * @return ids of the deployments created by the build agent or by the coordinator, null if there are none yet
+   */
   @Nullable
-  private String getDeploymentInfo(@NotNull SRunningBuild sRunningBuild) {
-    return sRunningBuild.getParametersProvider().get(CodeDeployConstants.DEPLOYMENT_ID_BUILD_CONFIG_PARAM);
+  private List<String> getDeploymentIds(@NotNull SRunningBuild sRunningBuild) {
+    final String ids = sRunningBuild.getParametersProvider().get(CodeDeployConstants.DEPLOYMENT_IDS_BUILD_CONFIG_PARAM);
+    if (StringUtil.isNotEmpty(ids)) return StringUtil.split(ids, ",");
+
+    final String id = sRunningBuild.getParametersProvider().get(CodeDeployConstants.DEPLOYMENT_ID_BUILD_CONFIG_PARAM);
+    return id == null ? null : Collections.singletonList(id);
   }
 
   @Override
   public void updateBuild(@NotNull SRunningBuild runningBuild, @Nullable String trackingInfo) {
-    final String deploymentId = getDeploymentInfo(runningBuild);
-    assert deploymentId != null;
+    CodeDeployTrackedBuilds.TrackedBuild tracked = myTrackedBuilds.get(runningBuild);
+    if (tracked == null && isRolloutRequested(runningBuild)) {
+      tracked = getRolloutBuild(runningBuild);
+      if (tracked == null) return;
+    } else if (tracked == null) {
+      List<String> deploymentIds = getDeploymentIds(runningBuild);
+      Long createdTime = getCreatedTime(runningBuild);
+      if (deploymentIds == null) {
+        final CodeDeployDeploymentCreator.CreatedDeployment created = getCoordinatedDeployment(runningBuild);
+        if (created == null) return;
+        deploymentIds = Collections.singletonList(created.getDeploymentId());
+        createdTime = created.getCreatedTime();
+      }
+      final List<String> ids = deploymentIds;
+      final Long created = createdTime;
+      tracked = myTrackedBuilds.getOrCreate(runningBuild, b -> createTrackedBuild(b, ids, created, null));
+    }
+
+    final List<CodeDeployTrackedBuilds.BuildDeployment> deployments = tracked.getDeployments();
+    boolean updated = false;
+    int finished = 0;
+    for (CodeDeployTrackedBuilds.BuildDeployment d : deployments) {
+      if (d.getFinishDate() == null) updated |= updateDeployment(runningBuild, tracked, d);
+      if (d.getFinishDate() != null) ++finished;
+    }
+    if (updated && deployments.size() > 1) {
+      final List<AWSClient.Listener.InstancesStatus> statuses = new ArrayList<>();
+      for (CodeDeployTrackedBuilds.BuildDeployment d : deployments) {
+        if (d.getInstancesStatus() != null) statuses.add(d.getInstancesStatus());
+      }
+      tracked.getListener().deploymentsProgress(finished, deployments.size(), statuses);
+    }
+
+    final CodeDeployRollout rollout = tracked.getRollout();
+    if (rollout != null && !rollout.advance(tracked)) return;
+
+    // rollout might have been halted before any deployment got created
+    final Date finishDate = deployments.isEmpty() ? new Date() : tracked.getFinishDate();
+    if (finishDate != null) runningBuild.finish(finishDate);
+  }
+
+  /**
+   * Processes a new status snapshot of the deployment if there is one
+   *
+   * @return true if the snapshot was processed
+   */
+  private boolean updateDeployment(@NotNull SRunningBuild runningBuild, @NotNull CodeDeployTrackedBuilds.TrackedBuild tracked, @NotNull CodeDeployTrackedBuilds.BuildDeployment deployment) {
+    final String deploymentId = deployment.getDeploymentId();
+
+    final String outageNotice = myPoller.takeOutageNotice(deploymentId);
+    if (outageNotice != null) tracked.getListener().deploymentStatusUnavailable(deploymentId, outageNotice);
+
+    final CodeDeployDeploymentPoller.Snapshot snapshot = myPoller.getUpdate(deployment.getRunnerParameters(), deploymentId, getStartTime(runningBuild, deployment));
+    if (snapshot == null) return false;
+
+    final AWSClient awsClient = tracked.getAWSClient(listener -> createAWSClient(snapshot.getClients(), runningBuild).withListener(listener));
+    awsClient.processDeploymentTargets(deploymentId, snapshot.getTargets());
+
+    final Integer timeoutSec = snapshot.getTimeoutSec();
+    if (timeoutSec != null) {
+      awsClient.processDeploymentTimeout(deploymentId, timeoutSec, snapshot.getInfo(), snapshot.isStopped());
+      myPoller.forget(deploymentId);
+      deployment.setFinishDate(new Date());
+      return true;
+    }
+    if (snapshot.isMissing()) {
+      awsClient.processDeploymentMissing(deploymentId);
+      myPoller.forget(deploymentId);
+      deployment.setFinishDate(new Date());
+      return true;
+    }
+    final Date finishDate = awsClient.processDeploymentInfo(deploymentId, snapshot.getInfo(), snapshot.getDiagnostics());
+    if (snapshot.getInfo() != null) {
+      deployment.setLastStatus(snapshot.getInfo().getStatus());
+      deployment.setInstancesStatus(AWSClient.getInstancesStatus(snapshot.getInfo()));
+    }
+    if (finishDate == null) {
+      myTrackingState.checkpoint(deploymentId, new CodeDeployTrackingState.Checkpoint(System.currentTimeMillis(), myPoller.getNextPollTime(deploymentId),
+        deployment.getLastStatus(), tracked.getListener().getLastInProgress(deploymentId)));
+      return true;
+    }
+    myPoller.forget(deploymentId);
+    deployment.setFinishDate(finishDate);
+    return true;
+  }
+
+  /**
+   * Deployments created by the server may wait in the queue for long, their wait timeout is counted from their creation,
+   * the timeout of the deployments created by the build agent is counted from the build detach
+   */
+  private static long getStartTime(@NotNull SRunningBuild runningBuild, @NotNull CodeDeployTrackedBuilds.BuildDeployment deployment) {
+    final Long createdTime = deployment.getCreatedTime();
+    if (createdTime != null) return createdTime;
+    final Date finishOnAgentDate = runningBuild.getFinishOnAgentDate();
+    return finishOnAgentDate == null ? runningBuild.getStartDate().getTime() : finishOnAgentDate.getTime();
+  }
+
+  /**
+   * @return creation time of the deployment created by the coordinator before the server restart, null if there is none
+   */
+  @Nullable
+  private static Long getCreatedTime(@NotNull SRunningBuild runningBuild) {
+    final String created = runningBuild.getParametersProvider().get(CodeDeployConstants.DEPLOYMENT_CREATED_BUILD_CONFIG_PARAM);
+    if (StringUtil.isEmptyOrSpaces(created)) return null;
+    try {
+      return Long.parseLong(created.trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return the deployment created by the coordinator, null while the deployment is not created yet
+   * or if it won't be created at all, in the latter case the build is finished
+   */
+  @Nullable
+  private CodeDeployDeploymentCreator.CreatedDeployment getCoordinatedDeployment(@NotNull SRunningBuild runningBuild) {
+    final CodeDeployDeploymentCreator.Revision revision = CodeDeployDeploymentCreator.getRevision(runningBuild);
+    if (revision == null) {
+      failBuild(runningBuild, "Requested CodeDeploy deployment has no revision S3 object key");
+      return null;
+    }
+
+    final CodeDeployDeploymentCoordinator.Request request = myCoordinator.submit(runningBuild, getParameters(runningBuild), revision);
+    final boolean changed = request.markReported();
+    switch (request.getState()) {
+      case CREATED:
+        final CodeDeployDeploymentCreator.CreatedDeployment deployment = request.getDeployment();
+        assert deployment != null;
+        // so that the deployment is not requested again after a server restart
+        setCustomParameter(runningBuild, CodeDeployConstants.DEPLOYMENT_CREATED_BUILD_CONFIG_PARAM, String.valueOf(deployment.getCreatedTime()));
+        setCustomParameter(runningBuild, CodeDeployConstants.DEPLOYMENT_ID_BUILD_CONFIG_PARAM, deployment.getDeploymentId());
+        return deployment;
+      case SUPERSEDED:
+        runningBuild.getBuildLog().message("Requested deployment won't be created: " + request.getMessage(), Status.WARNING, attrs());
+        ((RunningBuildEx) runningBuild).setCustomStatusText("Deployment superseded");
+        runningBuild.finish(new Date());
+        return null;
+      case FAILED:
+        failBuild(runningBuild, "Failed to create requested deployment: " + request.getMessage());
+        return null;
+      default:
+        if (changed && request.getMessage() != null) runningBuild.getBuildLog().message("Deployment is queued: " + request.getMessage(), Status.NORMAL, attrs());
+        return null;
+    }
+  }
+
+  /**
+   * @return the build tracking the rollout, null if the rollout won't be executed, in the latter case the build is finished
+   */
+  @Nullable
+  private CodeDeployTrackedBuilds.TrackedBuild getRolloutBuild(@NotNull SRunningBuild runningBuild) {
+    final ParametersProvider params = runningBuild.getParametersProvider();
+    final String wave = params.get(CodeDeployConstants.ROLLOUT_WAVE_BUILD_CONFIG_PARAM);
+    if (wave != null) {
+      // rollout state is kept in memory only, it's not known which deployment groups are already deployed
+      failBuild(runningBuild, "CodeDeploy rollout state was lost on server restart at wave " + wave + ", created deployments: " + params.get(CodeDeployConstants.DEPLOYMENT_IDS_BUILD_CONFIG_PARAM));
+      return null;
+    }
+
+    final CodeDeployDeploymentCreator.Revision revision = CodeDeployDeploymentCreator.getRevision(runningBuild);
+    if (revision == null) {
+      failBuild(runningBuild, "Requested CodeDeploy rollout has no revision S3 object key");
+      return null;
+    }
+
+    final Map<String, String> runnerParameters = getParameters(runningBuild);
+    RolloutPlan plan;
+    try {
+      plan = RolloutPlan.parse(runnerParameters);
+    } catch (IllegalArgumentException e) {
+      plan = null;
+    }
+    if (plan == null) {
+      failBuild(runningBuild, "Requested CodeDeploy rollout has no valid " + CodeDeployConstants.ROLLOUT_PLAN_LABEL);
+      return null;
+    }
 
+    final CodeDeployRollout rollout = new CodeDeployRollout(myCreator, myPoller, plan, revision, CodeDeployDeploymentCreator.getBuildDescription(runningBuild));
+    return myTrackedBuilds.getOrCreate(runningBuild, b -> createTrackedBuild(b, Collections.emptyList(), null, rollout));
+  }
+
+  private static void failBuild(@NotNull SRunningBuild runningBuild, @NotNull String description) {
+    runningBuild.addBuildProblem(BuildProblemData.createBuildProblem("codedeploy.requested", CodeDeployConstants.FAILURE_BUILD_PROBLEM_TYPE, description));
+    runningBuild.finish(new Date());
+  }
+
+  /**
+   * Custom parameters are replaced as a whole, so the ones already reported are preserved
+   */
+  private static void setCustomParameter(@NotNull SRunningBuild runningBuild, @NotNull String name, @NotNull String value) {
+    final BuildPromotionEx buildPromotion = (BuildPromotionEx) runningBuild.getBuildPromotion();
+    final Map<String, String> customParameters = new HashMap<>(buildPromotion.getCustomParameters());
+    customParameters.put(name, value);
+    buildPromotion.setCustomParameters(customParameters);
+  }
+
+  @NotNull
+  private CodeDeployTrackedBuilds.TrackedBuild createTrackedBuild(@NotNull SRunningBuild runningBuild, @NotNull List<String> deploymentIds, @Nullable Long createdTime,
+                                                                   @Nullable CodeDeployRollout rollout) {
     final Map<String, String> runnerParameters = getParameters(runningBuild);
-    final Date finishDate = AWSCommonParams.withAWSClients(runnerParameters, clients -> {
-      final AWSClient awsClient = createAWSClient(clients.createS3Client(), clients.createCodeDeployClient(), runningBuild).withListener(new LoggingDeploymentListener(runnerParameters, StringUtil.EMPTY) {
+
+    // deployments are listed in the deployment groups or matrix entries order
+    final List<Map<String, String>> groups = getDeploymentParameters(runnerParameters);
+    final List<CodeDeployTrackedBuilds.BuildDeployment> deployments = new ArrayList<>();
+    for (int i = 0; i < deploymentIds.size(); ++i) {
+      deployments.add(new CodeDeployTrackedBuilds.BuildDeployment(deploymentIds.get(i), groups.size() == deploymentIds.size() ? groups.get(i) : runnerParameters, createdTime));
+    }
+
+    final CodeDeployTrackedBuilds.TrackedBuild tracked = new CodeDeployTrackedBuilds.TrackedBuild(deployments, new LoggingDeploymentListener(runnerParameters, StringUtil.EMPTY) {
         private void log(@NotNull String message, @NotNull Status status) {
           runningBuild.getBuildLog().message(message, status, attrs());
         }
@@ -81,23 +316,35 @@ public class CodeDeployDeploymentStatusProvider implements DetachedBuildStatusPr
 
         @Override
         protected void parameter(@NotNull String name, @NotNull String value) {
-          ((RunningBuildEx) runningBuild).getBuildPromotion().setCustomParameters(Collections.singletonMap(name, value));
+          setCustomParameter(runningBuild, name, value);
         }
 
         @Override
         protected void statusText(@NotNull String text) {
           ((RunningBuildEx) runningBuild).setCustomStatusText(text);
         }
-      });
+      }, rollout);
 
-      try {
-        return IOGuard.allowNetworkCall(() -> awsClient.checkDeploymentStatus(deploymentId, runningBuild.getFinishOnAgentDate()));
-      } catch (Exception e) {
-        throw new RuntimeException(e);
-      }
-    });
-    if (finishDate == null) return;
-    runningBuild.finish(finishDate);
+    // the server was restarted while the deployments were in progress
+    for (CodeDeployTrackedBuilds.BuildDeployment d : deployments) {
+      final CodeDeployTrackingState.Checkpoint checkpoint = myTrackingState.getCheckpoint(d.getDeploymentId());
+      if (checkpoint == null) continue;
+      d.setLastStatus(checkpoint.getLastStatus());
+      d.setInstancesStatus(checkpoint.getInstancesStatus());
+      if (checkpoint.getInstancesStatus() != null) tracked.getListener().restoreInProgress(d.getDeploymentId(), checkpoint.getInstancesStatus());
+    }
+    return tracked;
+  }
+
+  @NotNull
+  private static List<Map<String, String>> getDeploymentParameters(@NotNull Map<String, String> runnerParameters) {
+    DeploymentMatrix matrix;
+    try {
+      matrix = DeploymentMatrix.parse(runnerParameters);
+    } catch (IllegalArgumentException e) {
+      matrix = null;
+    }
+    return matrix == null ? CodeDeployUtil.getDeploymentGroupParameters(runnerParameters) : matrix.getEntries();
   }
 
   @NotNull
@@ -111,7 +358,7 @@ public class CodeDeployDeploymentStatusProvider implements DetachedBuildStatusPr
   }
 
   @NotNull
-  private AWSClient createAWSClient(@NotNull final AmazonS3 s3Client, @NotNull final AmazonCodeDeployClient codeDeployClient, @NotNull final SRunningBuild runningBuild) {
-    return new AWSClient(s3Client, codeDeployClient).withDescription("TeamCity build \"" + runningBuild.getBuildTypeName() + "\" #" + runningBuild.getBuildNumber());
+  private AWSClient createAWSClient(@NotNull final CodeDeployClientPool.PooledClients clients, @NotNull final SRunningBuild runningBuild) {
+    return clients.createAWSClient().withDescription("TeamCity build \"" + runningBuild.getBuildTypeName() + "\" #" + runningBuild.getBuildNumber());
   }
 }
\ No newline at end of file
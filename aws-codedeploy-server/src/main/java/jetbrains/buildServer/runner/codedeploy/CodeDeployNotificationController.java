@@ -0,0 +1,184 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Accepts CodeDeploy deployment state-change notifications delivered by Amazon SNS (deployment group triggers)
+ * or by EventBridge API destinations and makes {@link CodeDeployDeploymentPoller} poll the deployment right away.
+ * SNS deliveries are verified by signature and accepted only from topics listed in the {@link #TOPIC_ARNS_PROPERTY}
+ * internal property, other ones must provide the secret configured with the {@link #SECRET_PROPERTY} internal property
+ * in the {@link #SECRET_HEADER} header.
+ * Notification contents are never trusted for deployment status, it's always fetched from CodeDeploy.
+ */
+class CodeDeployNotificationController extends BaseController {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(CodeDeployNotificationController.class.getName());
+
+  static final String SECRET_PROPERTY = "teamcity.codeDeploy.notifications.secret";
+  static final String TOPIC_ARNS_PROPERTY = "teamcity.codeDeploy.notifications.topicArns";
+  static final String SECRET_HEADER = "X-TeamCity-CodeDeploy-Secret";
+  private static final String SNS_MESSAGE_TYPE_HEADER = "x-amz-sns-message-type";
+  private static final int MAX_BODY_SIZE = 256 * 1024;
+
+  @NotNull
+  private final ObjectMapper myObjectMapper = new ObjectMapper();
+  @NotNull
+  private final NotificationListener myListener;
+  @NotNull
+  private final SnsMessageVerifier mySnsVerifier;
+
+  CodeDeployNotificationController(@NotNull CodeDeployDeploymentPoller poller) {
+    this(poller::notificationReceived, new SnsMessageVerifier());
+  }
+
+  CodeDeployNotificationController(@NotNull NotificationListener listener, @NotNull SnsMessageVerifier snsVerifier) {
+    myListener = listener;
+    mySnsVerifier = snsVerifier;
+  }
+
+  @Nullable
+  @Override
+  protected ModelAndView doHandle(@NotNull HttpServletRequest request, @NotNull HttpServletResponse response) throws Exception {
+    if (!isPost(request)) {
+      response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+      return null;
+    }
+
+    String body;
+    try {
+      body = readBody(request);
+    } catch (IOException e) {
+      body = null;
+    }
+    final int status = body == null
+                       ? HttpServletResponse.SC_BAD_REQUEST
+                       : handle(request.getHeader(SNS_MESSAGE_TYPE_HEADER), request.getHeader(SECRET_HEADER), body, request.getRemoteAddr());
+    if (status == HttpServletResponse.SC_OK) {
+      response.setStatus(status);
+    } else {
+      response.sendError(status);
+    }
+    return null;
+  }
+
+  /**
+   * @param snsMessageType SNS message type header, null for deliveries not made by SNS
+   * @param secret         secret header provided with the delivery
+   * @return HTTP status to respond with
+   */
+  int handle(@Nullable String snsMessageType, @Nullable String secret, @NotNull String body, @NotNull String origin) throws Exception {
+    final JsonNode message;
+    try {
+      message = myObjectMapper.readTree(body);
+    } catch (IOException e) {
+      return HttpServletResponse.SC_BAD_REQUEST;
+    }
+    if (message == null || !message.isObject()) return HttpServletResponse.SC_BAD_REQUEST;
+
+    if (snsMessageType != null) return handleSnsMessage(message);
+    if (isSecretValid(secret)) return handleNotification(message);
+
+    LOG.warn("Rejected CodeDeploy notification from " + origin + ": no valid secret provided");
+    return HttpServletResponse.SC_FORBIDDEN;
+  }
+
+  private int handleSnsMessage(@NotNull JsonNode message) throws Exception {
+    // any AWS account can sign messages of its own topics, so only the configured ones are trusted
+    final String topicArn = SnsMessageVerifier.getText(message, "TopicArn");
+    if (!isTopicAllowed(topicArn)) {
+      LOG.warn("Rejected SNS message " + SnsMessageVerifier.getText(message, "MessageId") + " from not allowed topic " + topicArn);
+      return HttpServletResponse.SC_FORBIDDEN;
+    }
+
+    final String error = mySnsVerifier.verify(message);
+    if (error != null) {
+      LOG.warn("Rejected SNS message " + SnsMessageVerifier.getText(message, "MessageId") + ": " + error);
+      return HttpServletResponse.SC_FORBIDDEN;
+    }
+
+    final String type = SnsMessageVerifier.getText(message, "Type");
+    if ("SubscriptionConfirmation".equals(type)) {
+      final String subscribeUrl = SnsMessageVerifier.getText(message, "SubscribeURL");
+      if (!mySnsVerifier.isTrustedUrl(subscribeUrl)) return HttpServletResponse.SC_BAD_REQUEST;
+
+      SnsMessageVerifier.confirmSubscription(subscribeUrl);
+      LOG.info("Confirmed SNS subscription to " + topicArn);
+    } else if ("Notification".equals(type)) {
+      final String payload = SnsMessageVerifier.getText(message, "Message");
+      JsonNode notification = null;
+      try {
+        notification = payload == null ? null : myObjectMapper.readTree(payload);
+      } catch (IOException e) {
+        LOG.debug("Ignoring SNS notification with non-JSON message " + SnsMessageVerifier.getText(message, "MessageId"), e);
+      }
+      if (notification != null && notification.isObject()) return handleNotification(notification);
+    }
+    return HttpServletResponse.SC_OK;
+  }
+
+  private int handleNotification(@NotNull JsonNode notification) {
+    // EventBridge events carry deployment details under "detail", CodeDeploy triggers on the top level
+    final JsonNode detail = notification.has("detail") ? notification.get("detail") : notification;
+    final String deploymentId = SnsMessageVerifier.getText(detail, "deploymentId");
+    if (StringUtil.isEmptyOrSpaces(deploymentId)) return HttpServletResponse.SC_OK;
+
+    final boolean tracked = myListener.notificationReceived(deploymentId,
+      SnsMessageVerifier.getText(detail, detail.has("application") ? "application" : "applicationName"),
+      SnsMessageVerifier.getText(detail, detail.has("deploymentGroup") ? "deploymentGroup" : "deploymentGroupName"));
+    LOG.debug("Received notification for " + (tracked ? "" : "not tracked ") + "CodeDeploy deployment " + deploymentId);
+    return HttpServletResponse.SC_OK;
+  }
+
+  private static boolean isTopicAllowed(@Nullable String topicArn) {
+    if (StringUtil.isEmptyOrSpaces(topicArn)) return false;
+    final String allowed = TeamCityProperties.getPropertyOrNull(TOPIC_ARNS_PROPERTY);
+    if (StringUtil.isEmptyOrSpaces(allowed)) return false;
+    for (String arn : allowed.split("[,\\s]+")) {
+      if (topicArn.equals(arn)) return true;
+    }
+    return false;
+  }
+
+  private static boolean isSecretValid(@Nullable String provided) {
+    final String secret = TeamCityProperties.getPropertyOrNull(SECRET_PROPERTY);
+    if (StringUtil.isEmpty(secret) || provided == null) return false;
+    return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), provided.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @NotNull
+  private static String readBody(@NotNull HttpServletRequest request) throws IOException {
+    if (request.getContentLength() > MAX_BODY_SIZE) throw new IOException("Notification is too large");
+
+    final InputStream input = request.getInputStream();
+    final byte[] buffer = new byte[MAX_BODY_SIZE + 1];
+    int size = 0;
+    int read;
+    while (size < buffer.length && (read = input.read(buffer, size, buffer.length - size)) > 0) {
+      size += read;
+    }
+    if (size > MAX_BODY_SIZE) throw new IOException("Notification is too large");
+    return new String(buffer, 0, size, StandardCharsets.UTF_8);
+  }
+
+  interface NotificationListener {
+    /**
+     * @return true if the notified deployment is tracked
+     */
+    boolean notificationReceived(@NotNull String deploymentId, @Nullable String applicationName, @Nullable String deploymentGroupName);
+  }
+}
@@ -0,0 +1,106 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.services.codedeploy.model.DeploymentInfo;
+import com.amazonaws.services.codedeploy.model.DeploymentOverview;
+import com.amazonaws.services.codedeploy.model.DeploymentStatus;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a deployment should be polled next: fast while it's created or queued and when it's nearly done,
+ * backing off during long in-progress phases. Durations of finished deployments of the same deployment group
+ * are averaged to predict when the current one is going to finish.
+ * Deployment groups which deliver state-change notifications are polled only as a safety net.
+ */
+class CodeDeployPollScheduler {
+  static final long MIN_INTERVAL_MS = TimeUnit.SECONDS.toMillis(2);
+  static final long DEFAULT_INTERVAL_MS = TimeUnit.SECONDS.toMillis(5);
+  static final long MAX_INTERVAL_MS = TimeUnit.SECONDS.toMillis(60);
+  static final long SAFETY_NET_INTERVAL_MS = TimeUnit.MINUTES.toMillis(2);
+  static final long NOTIFICATIONS_TTL_MS = TimeUnit.HOURS.toMillis(1);
+  private static final double HISTORY_WEIGHT = 0.3;
+
+  @NotNull
+  private final ConcurrentMap<String, Long> myAverageDurations = new ConcurrentHashMap<>();
+  @NotNull
+  private final ConcurrentMap<String, Long> myLastNotifications = new ConcurrentHashMap<>();
+
+  /**
+   * @return delay before the next poll of a deployment in the provided state
+   */
+  long getNextPollDelay(@Nullable DeploymentInfo info, long now) {
+    if (info == null || info.getStatus() == null) return DEFAULT_INTERVAL_MS;
+    if (isNotified(getHistoryKey(info), now)) return SAFETY_NET_INTERVAL_MS;
+
+    final String status = info.getStatus();
+    if (DeploymentStatus.Created.toString().equals(status) || DeploymentStatus.Queued.toString().equals(status)) return MIN_INTERVAL_MS;
+    if (isNearlyDone(info.getDeploymentOverview())) return MIN_INTERVAL_MS;
+
+    final Date started = getStartTime(info);
+    if (started == null) return DEFAULT_INTERVAL_MS;
+    final long elapsed = now - started.getTime();
+
+    final Long average = myAverageDurations.get(getHistoryKey(info));
+    if (average != null && average > elapsed) {
+      // poll more often as the predicted finish approaches
+      return clamp((average - elapsed) / 4);
+    }
+    return clamp(elapsed / 10);
+  }
+
+  /**
+   * Remembers duration of the finished deployment for its deployment group
+   */
+  void deploymentFinished(@NotNull DeploymentInfo info) {
+    if (!DeploymentStatus.Succeeded.toString().equals(info.getStatus())) return;
+
+    final Date started = getStartTime(info);
+    final Date completed = info.getCompleteTime();
+    if (started == null || completed == null) return;
+
+    final long duration = Math.max(0, completed.getTime() - started.getTime());
+    myAverageDurations.merge(getHistoryKey(info), duration, (average, d) -> Math.round(average * (1 - HISTORY_WEIGHT) + d * HISTORY_WEIGHT));
+  }
+
+  /**
+   * Remembers that the deployment group delivers state-change notifications
+   */
+  void notificationReceived(@NotNull String applicationName, @NotNull String deploymentGroupName) {
+    myLastNotifications.put(applicationName + "/" + deploymentGroupName, System.currentTimeMillis());
+  }
+
+  private boolean isNotified(@NotNull String key, long now) {
+    final Long last = myLastNotifications.get(key);
+    return last != null && now - last < NOTIFICATIONS_TTL_MS;
+  }
+
+  private static boolean isNearlyDone(@Nullable DeploymentOverview overview) {
+    if (overview == null) return false;
+    final long remaining = getLong(overview.getPending()) + getLong(overview.getInProgress());
+    final long total = remaining + getLong(overview.getSucceeded()) + getLong(overview.getFailed()) + getLong(overview.getSkipped()) + getLong(overview.getReady());
+    return total > 0 && remaining <= Math.max(1, total / 10);
+  }
+
+  @Nullable
+  private static Date getStartTime(@NotNull DeploymentInfo info) {
+    return info.getStartTime() == null ? info.getCreateTime() : info.getStartTime();
+  }
+
+  @NotNull
+  private static String getHistoryKey(@NotNull DeploymentInfo info) {
+    return info.getApplicationName() + "/" + info.getDeploymentGroupName();
+  }
+
+  private static long clamp(long interval) {
+    return Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, interval));
+  }
+
+  private static long getLong(@Nullable Long l) {
+    return l == null ? 0 : l;
+  }
+}
@@ -0,0 +1,192 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.services.codedeploy.model.DeploymentStatus;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.amazon.AWSException;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.runner.codedeploy.CodeDeployUtil.getDeploymentGroupName;
+
+/**
+ * Server side execution of the build {@link RolloutPlan}. Deployments of a wave are created once all the deployments
+ * of the previous wave succeed, at most the wave concurrency of them are in progress at once. A deployment which
+ * doesn't succeed halts the rollout: no more deployments are created, those already in progress are waited for.
+ * Rollout state is kept in memory only.
+ */
+final class CodeDeployRollout {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(CodeDeployRollout.class.getName());
+
+  @NotNull
+  private final CodeDeployDeploymentCreator myCreator;
+  @NotNull
+  private final CodeDeployDeploymentPoller myPoller;
+  @NotNull
+  private final List<RolloutPlan.Wave> myWaves;
+  @NotNull
+  private final CodeDeployDeploymentCreator.Revision myRevision;
+  @NotNull
+  private final String myBuildDescription;
+  // deployment groups of the current wave without deployments yet
+  @NotNull
+  private final Deque<Map<String, String>> myPendingGroups = new ArrayDeque<>();
+  @NotNull
+  private final List<Creation> myCreations = new ArrayList<>();
+  @NotNull
+  private final List<CodeDeployTrackedBuilds.BuildDeployment> myWaveDeployments = new ArrayList<>();
+  @NotNull
+  private final List<String> myDeploymentIds = new ArrayList<>();
+  private int myWave = -1;
+  private long myRetryTime;
+  private boolean myHalted;
+  private boolean myFinished;
+  private boolean myCancelled;
+
+  CodeDeployRollout(@NotNull CodeDeployDeploymentCreator creator, @NotNull CodeDeployDeploymentPoller poller, @NotNull RolloutPlan plan,
+                    @NotNull CodeDeployDeploymentCreator.Revision revision, @NotNull String buildDescription) {
+    myCreator = creator;
+    myPoller = poller;
+    myWaves = plan.getWaves();
+    myRevision = revision;
+    myBuildDescription = buildDescription;
+  }
+
+  /**
+   * Moves the rollout forward, called on every build update after the tracked deployments are updated
+   *
+   * @return true once the rollout is over: all the waves succeeded or the rollout is halted and no deployments are being created
+   */
+  boolean advance(@NotNull CodeDeployTrackedBuilds.TrackedBuild tracked) {
+    return advance(tracked, System.currentTimeMillis());
+  }
+
+  synchronized boolean advance(@NotNull CodeDeployTrackedBuilds.TrackedBuild tracked, long now) {
+    final LoggingDeploymentListener listener = tracked.getListener();
+    collectCreated(tracked, now);
+
+    if (!myHalted) {
+      for (CodeDeployTrackedBuilds.BuildDeployment d : myWaveDeployments) {
+        if (d.getFinishDate() == null || DeploymentStatus.Succeeded.toString().equals(d.getLastStatus())) continue;
+        halt(listener, d.getRunnerParameters(), "deployment " + d.getDeploymentId() + " didn't succeed" + (d.getLastStatus() == null ? "" : ", status: " + d.getLastStatus()));
+        break;
+      }
+    }
+
+    if (!myHalted && !myFinished && !myCancelled) {
+      if (myWave < 0 || isWaveSucceeded()) startNextWave(listener);
+      if (!myFinished) createDeployments(now);
+    }
+    return (myHalted || myFinished || myCancelled) && myCreations.isEmpty();
+  }
+
+  /**
+   * Called when the build is interrupted, deployments created afterwards are stopped right away
+   */
+  synchronized void cancel() {
+    myCancelled = true;
+    for (Creation c : myCreations) {
+      c.myFuture.thenAccept(created -> myPoller.stopDeployment(c.myGroupParameters, created.getDeploymentId()));
+    }
+    myCreations.clear();
+  }
+
+  private void collectCreated(@NotNull CodeDeployTrackedBuilds.TrackedBuild tracked, long now) {
+    final LoggingDeploymentListener listener = tracked.getListener();
+    for (Iterator<Creation> it = myCreations.iterator(); it.hasNext(); ) {
+      final Creation c = it.next();
+      if (!c.myFuture.isDone()) continue;
+      it.remove();
+
+      final String deploymentGroupName = "" + getDeploymentGroupName(c.myGroupParameters);
+      try {
+        final CodeDeployDeploymentCreator.CreatedDeployment created = c.myFuture.get();
+        final String deploymentId = created.getDeploymentId();
+        final CodeDeployTrackedBuilds.BuildDeployment deployment = new CodeDeployTrackedBuilds.BuildDeployment(deploymentId, c.myGroupParameters, created.getCreatedTime());
+        tracked.addDeployment(deployment);
+        myWaveDeployments.add(deployment);
+        myDeploymentIds.add(deploymentId);
+        listener.rolloutDeploymentCreated(deploymentGroupName, deploymentId, myDeploymentIds);
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof AWSException && CodeDeployDeploymentCreator.isGroupBusy((AWSException) cause) && !myHalted) {
+          // deployed by somebody else
+          myPendingGroups.addFirst(c.myGroupParameters);
+          myRetryTime = now + CodeDeployDeploymentCoordinator.BUSY_GROUP_RETRY_MS;
+          listener.rolloutDeploymentDelayed(deploymentGroupName, "deployment group is busy with another deployment, will retry in " +
+            TimeUnit.MILLISECONDS.toSeconds(CodeDeployDeploymentCoordinator.BUSY_GROUP_RETRY_MS) + " sec");
+        } else {
+          LOG.warn("Failed to create CodeDeploy deployment to deployment group " + deploymentGroupName + " for " + myBuildDescription, cause);
+          if (!myHalted) halt(listener, c.myGroupParameters, "failed to create deployment: " + cause.getMessage());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private boolean isWaveSucceeded() {
+    if (!myPendingGroups.isEmpty() || !myCreations.isEmpty()) return false;
+    for (CodeDeployTrackedBuilds.BuildDeployment d : myWaveDeployments) {
+      if (d.getFinishDate() == null || !DeploymentStatus.Succeeded.toString().equals(d.getLastStatus())) return false;
+    }
+    return true;
+  }
+
+  private void startNextWave(@NotNull LoggingDeploymentListener listener) {
+    if (++myWave == myWaves.size()) {
+      myFinished = true;
+      listener.rolloutFinished(myWaves.size());
+      return;
+    }
+
+    final RolloutPlan.Wave wave = myWaves.get(myWave);
+    myWaveDeployments.clear();
+    myPendingGroups.addAll(wave.getGroups());
+
+    final List<String> deploymentGroups = new ArrayList<>();
+    for (Map<String, String> groupParameters : wave.getGroups()) {
+      deploymentGroups.add("" + getDeploymentGroupName(groupParameters));
+    }
+    listener.rolloutWaveStarted(myWave + 1, myWaves.size(), deploymentGroups);
+  }
+
+  private void createDeployments(long now) {
+    if (myRetryTime > now) return;
+
+    int inProgress = myCreations.size();
+    for (CodeDeployTrackedBuilds.BuildDeployment d : myWaveDeployments) {
+      if (d.getFinishDate() == null) ++inProgress;
+    }
+    final int maxConcurrent = myWaves.get(myWave).getMaxConcurrent();
+    while (!myPendingGroups.isEmpty() && inProgress < maxConcurrent) {
+      final Map<String, String> groupParameters = myPendingGroups.removeFirst();
+      myCreations.add(new Creation(groupParameters, myCreator.submitDeployment(groupParameters, myRevision, myBuildDescription)));
+      ++inProgress;
+    }
+  }
+
+  private void halt(@NotNull LoggingDeploymentListener listener, @NotNull Map<String, String> groupParameters, @NotNull String reason) {
+    myHalted = true;
+    myPendingGroups.clear();
+    final int notStarted = myWaves.size() - myWave - 1;
+    listener.rolloutHalted("" + getDeploymentGroupName(groupParameters),
+      reason + (notStarted > 0 ? ", " + notStarted + " more " + (notStarted == 1 ? "wave is" : "waves are") + " not started" : ""));
+  }
+
+  private static final class Creation {
+    @NotNull
+    private final Map<String, String> myGroupParameters;
+    @NotNull
+    private final CompletableFuture<CodeDeployDeploymentCreator.CreatedDeployment> myFuture;
+
+    private Creation(@NotNull Map<String, String> groupParameters, @NotNull CompletableFuture<CodeDeployDeploymentCreator.CreatedDeployment> future) {
+      myGroupParameters = groupParameters;
+      myFuture = future;
+    }
+  }
+}
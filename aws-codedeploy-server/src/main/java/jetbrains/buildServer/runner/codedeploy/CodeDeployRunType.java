@@ -2,6 +2,7 @@
 
 package jetbrains.buildServer.runner.codedeploy;
 
+import jetbrains.buildServer.controllers.AuthorizationInterceptor;
 import jetbrains.buildServer.controllers.BaseController;
 import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.util.CollectionsUtil;
@@ -32,13 +33,20 @@ public class CodeDeployRunType extends RunType {
   public CodeDeployRunType(@NotNull RunTypeRegistry registry,
                            @NotNull PluginDescriptor descriptor,
                            @NotNull WebControllerManager controllerManager,
-                           @NotNull ServerSettings serverSettings) {
+                           @NotNull ServerSettings serverSettings,
+                           @NotNull AuthorizationInterceptor authInterceptor,
+                           @NotNull CodeDeployDeploymentPoller poller) {
     registry.registerRunType(this);
 
     myServerSettings = serverSettings;
 
     myEditParamsPath = registerController(descriptor, controllerManager, EDIT_PARAMS_JSP, EDIT_PARAMS_HTML);
     myViewParamsPath = registerController(descriptor, controllerManager, VIEW_PARAMS_JSP, VIEW_PARAMS_HTML);
+
+    // AWS can't authenticate in TeamCity, notifications are verified by the controller itself
+    final String notificationsPath = descriptor.getPluginResourcesPath(NOTIFICATIONS_HTML);
+    controllerManager.registerController(notificationsPath, new CodeDeployNotificationController(poller));
+    authInterceptor.addPathNotRequiringAuth(notificationsPath);
   }
 
   @NotNull
@@ -0,0 +1,235 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.services.codedeploy.model.DeploymentStatus;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Registry of detached builds waiting for their deployments, keeps the context resolved on the first update
+ * so that further updates are a map lookup. Entries are evicted when builds finish,
+ * deployments of interrupted builds are stopped.
+ */
+public class CodeDeployTrackedBuilds {
+  @NotNull
+  private final ConcurrentMap<Long, TrackedBuild> myBuilds = new ConcurrentHashMap<>();
+  @NotNull
+  private final CodeDeployDeploymentPoller myPoller;
+
+  public CodeDeployTrackedBuilds(@NotNull EventDispatcher<BuildServerListener> events, @NotNull CodeDeployDeploymentPoller poller) {
+    myPoller = poller;
+    events.addListener(new BuildServerAdapter() {
+      @Override
+      public void buildFinished(@NotNull SRunningBuild build) {
+        evict(build);
+      }
+
+      @Override
+      public void buildInterrupted(@NotNull SRunningBuild build) {
+        final TrackedBuild tracked = myBuilds.remove(build.getBuildId());
+        if (tracked == null) return;
+        final CodeDeployRollout rollout = tracked.getRollout();
+        if (rollout != null) rollout.cancel();
+        for (BuildDeployment d : tracked.getDeployments()) {
+          if (d.getFinishDate() != null || isFinished(d.getLastStatus())) {
+            myPoller.forget(d.getDeploymentId());
+          } else {
+            myPoller.stopDeployment(d.getRunnerParameters(), d.getDeploymentId());
+          }
+        }
+      }
+    });
+  }
+
+  @Nullable
+  TrackedBuild get(@NotNull SRunningBuild build) {
+    return myBuilds.get(build.getBuildId());
+  }
+
+  @NotNull
+  TrackedBuild getOrCreate(@NotNull SRunningBuild build, @NotNull Function<SRunningBuild, TrackedBuild> factory) {
+    return myBuilds.computeIfAbsent(build.getBuildId(), id -> factory.apply(build));
+  }
+
+  static boolean isFinished(@Nullable String status) {
+    return DeploymentStatus.Succeeded.toString().equals(status) || DeploymentStatus.Failed.toString().equals(status) || DeploymentStatus.Stopped.toString().equals(status);
+  }
+
+  private void evict(@NotNull SRunningBuild build) {
+    final TrackedBuild tracked = myBuilds.remove(build.getBuildId());
+    if (tracked == null) return;
+    for (BuildDeployment d : tracked.getDeployments()) {
+      myPoller.forget(d.getDeploymentId());
+    }
+  }
+
+  static final class TrackedBuild {
+    @NotNull
+    private final List<BuildDeployment> myDeployments;
+    @NotNull
+    private final LoggingDeploymentListener myListener;
+    @Nullable
+    private final CodeDeployRollout myRollout;
+    @Nullable
+    private AWSClient myAWSClient;
+
+    TrackedBuild(@NotNull List<BuildDeployment> deployments, @NotNull LoggingDeploymentListener listener) {
+      this(deployments, listener, null);
+    }
+
+    TrackedBuild(@NotNull List<BuildDeployment> deployments, @NotNull LoggingDeploymentListener listener, @Nullable CodeDeployRollout rollout) {
+      myDeployments = new CopyOnWriteArrayList<>(deployments);
+      myListener = listener;
+      myRollout = rollout;
+    }
+
+    /**
+     * Several deployments if the build deploys to several deployment groups, rollout deployments are added as the waves start
+     */
+    @NotNull
+    List<BuildDeployment> getDeployments() {
+      return myDeployments;
+    }
+
+    void addDeployment(@NotNull BuildDeployment deployment) {
+      myDeployments.add(deployment);
+    }
+
+    /**
+     * Not null if the server deploys the build revision in waves
+     */
+    @Nullable
+    CodeDeployRollout getRollout() {
+      return myRollout;
+    }
+
+    /**
+     * Reports to the build log, may be used before the first status snapshot is available
+     */
+    @NotNull
+    LoggingDeploymentListener getListener() {
+      return myListener;
+    }
+
+    /**
+     * Created with the clients of the first status snapshot, status processing never uses them
+     */
+    @NotNull
+    synchronized AWSClient getAWSClient(@NotNull Function<AWSClient.Listener, AWSClient> factory) {
+      if (myAWSClient == null) myAWSClient = factory.apply(myListener);
+      return myAWSClient;
+    }
+
+    /**
+     * @return the latest of the deployments finish dates, null if some deployment is not finished yet
+     */
+    @Nullable
+    Date getFinishDate() {
+      Date finishDate = null;
+      for (BuildDeployment d : myDeployments) {
+        final Date date = d.getFinishDate();
+        if (date == null) return null;
+        if (finishDate == null || date.after(finishDate)) finishDate = date;
+      }
+      return finishDate;
+    }
+  }
+
+  static final class BuildDeployment {
+    @NotNull
+    private final String myDeploymentId;
+    @NotNull
+    private final Map<String, String> myRunnerParameters;
+    @Nullable
+    private final Long myCreatedTime;
+    @Nullable
+    private volatile String myLastStatus;
+    @Nullable
+    private volatile AWSClient.Listener.InstancesStatus myInstancesStatus;
+    @Nullable
+    private volatile Date myFinishDate;
+
+    /**
+     * @param runnerParameters parameters of the deployment group the deployment was created for
+     */
+    BuildDeployment(@NotNull String deploymentId, @NotNull Map<String, String> runnerParameters) {
+      this(deploymentId, runnerParameters, null);
+    }
+
+    /**
+     * @param createdTime time the server created the deployment at, null for deployments created by the build agent
+     */
+    BuildDeployment(@NotNull String deploymentId, @NotNull Map<String, String> runnerParameters, @Nullable Long createdTime) {
+      myDeploymentId = deploymentId;
+      myRunnerParameters = runnerParameters;
+      myCreatedTime = createdTime;
+    }
+
+    @NotNull
+    String getDeploymentId() {
+      return myDeploymentId;
+    }
+
+    @NotNull
+    Map<String, String> getRunnerParameters() {
+      return myRunnerParameters;
+    }
+
+    /**
+     * Null if the deployment was created by the build agent
+     */
+    @Nullable
+    Long getCreatedTime() {
+      return myCreatedTime;
+    }
+
+    @Nullable
+    String getLastStatus() {
+      return myLastStatus;
+    }
+
+    void setLastStatus(@Nullable String status) {
+      myLastStatus = status;
+    }
+
+    /**
+     * Instance counters of the last status snapshot
+     */
+    @Nullable
+    AWSClient.Listener.InstancesStatus getInstancesStatus() {
+      return myInstancesStatus;
+    }
+
+    void setInstancesStatus(@Nullable AWSClient.Listener.InstancesStatus instancesStatus) {
+      myInstancesStatus = instancesStatus;
+    }
+
+    /**
+     * Not null once the build doesn't wait for the deployment anymore
+     */
+    @Nullable
+    Date getFinishDate() {
+      return myFinishDate;
+    }
+
+    void setFinishDate(@NotNull Date finishDate) {
+      myFinishDate = finishDate;
+    }
+
+    @Override
+    public String toString() {
+      return myDeploymentId;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedDaemonThreadFactory;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.*;
+
+/**
+ * Persists tracking state of in-flight deployments: the last known status, the last logged instance counters
+ * and the next poll time. So that after a server restart deployments are not re-polled all at once
+ * and logging resumes from the last checkpoint.
+ */
+public class CodeDeployTrackingState {
+  @NotNull
+  private static final Logger LOG = Logger.getInstance(CodeDeployTrackingState.class.getName());
+
+  static final String STATE_FILE_NAME = "tracked-deployments.properties";
+  static final long SAVE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+  static final long STATE_TTL_MS = TimeUnit.DAYS.toMillis(1);
+
+  @NotNull
+  private final File myStateFile;
+  @NotNull
+  private final ConcurrentMap<String, Checkpoint> myCheckpoints = new ConcurrentHashMap<>();
+  private volatile boolean myDirty;
+  @NotNull
+  private final ScheduledExecutorService myExecutor = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("CodeDeploy tracking state"));
+
+  public CodeDeployTrackingState(@NotNull ServerPaths serverPaths) {
+    this(new File(serverPaths.getPluginDataDirectory(), CodeDeployConstants.RUNNER_TYPE));
+  }
+
+  CodeDeployTrackingState(@NotNull File stateDir) {
+    myStateFile = new File(stateDir, STATE_FILE_NAME);
+    load();
+    myExecutor.scheduleWithFixedDelay(this::saveIfDirty, SAVE_INTERVAL_MS, SAVE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  @Nullable
+  Checkpoint getCheckpoint(@NotNull String deploymentId) {
+    return myCheckpoints.get(deploymentId);
+  }
+
+  void checkpoint(@NotNull String deploymentId, @NotNull Checkpoint checkpoint) {
+    myCheckpoints.put(deploymentId, checkpoint);
+    myDirty = true;
+  }
+
+  void remove(@NotNull String deploymentId) {
+    if (myCheckpoints.remove(deploymentId) != null) myDirty = true;
+  }
+
+  public void dispose() {
+    myExecutor.shutdownNow();
+    saveIfDirty();
+  }
+
+  private void load() {
+    if (!myStateFile.isFile()) return;
+
+    InputStream input = null;
+    try {
+      input = new BufferedInputStream(new FileInputStream(myStateFile));
+      final Properties properties = new Properties();
+      properties.load(input);
+      final long now = System.currentTimeMillis();
+      for (String deploymentId : properties.stringPropertyNames()) {
+        final Checkpoint checkpoint = Checkpoint.parse(properties.getProperty(deploymentId));
+        // builds removed while the server was down never come back for their deployments
+        if (checkpoint != null && now - checkpoint.myTime < STATE_TTL_MS) myCheckpoints.put(deploymentId, checkpoint);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to load CodeDeploy deployments tracking state from " + myStateFile, e);
+    } finally {
+      FileUtil.close(input);
+    }
+  }
+
+  private synchronized void saveIfDirty() {
+    if (!myDirty) return;
+    myDirty = false;
+
+    OutputStream output = null;
+    try {
+      FileUtil.createParentDirs(myStateFile);
+      final Properties properties = new Properties();
+      for (Map.Entry<String, Checkpoint> e : myCheckpoints.entrySet()) {
+        properties.setProperty(e.getKey(), e.getValue().format());
+      }
+      output = new BufferedOutputStream(new FileOutputStream(myStateFile));
+      properties.store(output, null);
+    } catch (IOException e) {
+      LOG.warn("Failed to save CodeDeploy deployments tracking state to " + myStateFile, e);
+    } finally {
+      FileUtil.close(output);
+    }
+  }
+
+  static final class Checkpoint {
+    private final long myTime;
+    private final long myNextPollTime;
+    @Nullable
+    private final String myLastStatus;
+    @Nullable
+    private final AWSClient.Listener.InstancesStatus myInstancesStatus;
+
+    Checkpoint(long time, long nextPollTime, @Nullable String lastStatus, @Nullable AWSClient.Listener.InstancesStatus instancesStatus) {
+      myTime = time;
+      myNextPollTime = nextPollTime;
+      myLastStatus = lastStatus;
+      myInstancesStatus = instancesStatus;
+    }
+
+    /**
+     * Events which happened before this time are already logged
+     */
+    long getTime() {
+      return myTime;
+    }
+
+    long getNextPollTime() {
+      return myNextPollTime;
+    }
+
+    @Nullable
+    String getLastStatus() {
+      return myLastStatus;
+    }
+
+    /**
+     * Instance counters last logged for the deployment
+     */
+    @Nullable
+    AWSClient.Listener.InstancesStatus getInstancesStatus() {
+      return myInstancesStatus;
+    }
+
+    // time;nextPollTime;lastStatus;status,pending,inProgress,succeeded,failed,skipped
+    @NotNull
+    private String format() {
+      final StringBuilder sb = new StringBuilder().append(myTime).append(';').append(myNextPollTime).append(';').append(StringUtil.emptyIfNull(myLastStatus)).append(';');
+      final AWSClient.Listener.InstancesStatus s = myInstancesStatus;
+      if (s != null) {
+        sb.append(StringUtil.emptyIfNull(s.status)).append(',').append(s.pending).append(',').append(s.inProgress).append(',')
+          .append(s.succeeded).append(',').append(s.failed).append(',').append(s.skipped);
+      }
+      return sb.toString();
+    }
+
+    @Nullable
+    private static Checkpoint parse(@NotNull String value) {
+      final String[] parts = value.split(";", -1);
+      if (parts.length != 4) return null;
+      try {
+        return new Checkpoint(Long.parseLong(parts[0]), Long.parseLong(parts[1]), StringUtil.nullIfEmpty(parts[2]), parseInstancesStatus(parts[3]));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    @Nullable
+    private static AWSClient.Listener.InstancesStatus parseInstancesStatus(@NotNull String value) {
+      final String[] parts = value.split(",", -1);
+      if (parts.length != 6) return null;
+      final AWSClient.Listener.InstancesStatus s = new AWSClient.Listener.InstancesStatus();
+      s.status = StringUtil.nullIfEmpty(parts[0]);
+      s.pending = Integer.parseInt(parts[1]);
+      s.inProgress = Integer.parseInt(parts[2]);
+      s.succeeded = Integer.parseInt(parts[3]);
+      s.failed = Integer.parseInt(parts[4]);
+      s.skipped = Integer.parseInt(parts[5]);
+      return s;
+    }
+  }
+}
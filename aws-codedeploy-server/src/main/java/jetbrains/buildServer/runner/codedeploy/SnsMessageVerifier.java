@@ -0,0 +1,144 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Verifies signatures of Amazon SNS HTTP(S) deliveries,
+ * see https://docs.aws.amazon.com/sns/latest/dg/sns-verify-signature-of-message.html
+ */
+class SnsMessageVerifier {
+  private static final Pattern SNS_HOST = Pattern.compile("sns\\.[a-z0-9-]+\\.amazonaws\\.com(\\.cn)?");
+  private static final int TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(10);
+
+  private static final List<String> NOTIFICATION_FIELDS = Arrays.asList("Message", "MessageId", "Subject", "Timestamp", "TopicArn", "Type");
+  private static final List<String> SUBSCRIPTION_FIELDS = Arrays.asList("Message", "MessageId", "SubscribeURL", "Timestamp", "Token", "TopicArn", "Type");
+
+  @NotNull
+  private final ConcurrentMap<String, X509Certificate> myCertificates = new ConcurrentHashMap<>();
+  @NotNull
+  private final Predicate<String> myTrustedUrl;
+
+  SnsMessageVerifier() {
+    this(SnsMessageVerifier::isSnsUrl);
+  }
+
+  /**
+   * @param trustedUrl tells which URLs may serve signing certificates and subscription confirmations
+   */
+  SnsMessageVerifier(@NotNull Predicate<String> trustedUrl) {
+    myTrustedUrl = trustedUrl;
+  }
+
+  /**
+   * @return null if the message signature is valid, the reason why it's not otherwise
+   */
+  @Nullable
+  String verify(@NotNull JsonNode message) {
+    final String algorithm;
+    final String signatureVersion = getText(message, "SignatureVersion");
+    if ("1".equals(signatureVersion)) algorithm = "SHA1withRSA";
+    else if ("2".equals(signatureVersion)) algorithm = "SHA256withRSA";
+    else return "unsupported signature version " + signatureVersion;
+
+    final String certUrl = getText(message, "SigningCertURL");
+    if (!isTrustedUrl(certUrl)) return "unexpected signing certificate URL " + certUrl;
+
+    final String signature = getText(message, "Signature");
+    if (signature == null) return "no signature";
+
+    try {
+      final Signature verifier = Signature.getInstance(algorithm);
+      verifier.initVerify(getCertificate(certUrl));
+      verifier.update(getStringToSign(message).getBytes(StandardCharsets.UTF_8));
+      return verifier.verify(Base64.getDecoder().decode(signature)) ? null : "signature mismatch";
+    } catch (Exception e) {
+      return "failed to verify signature: " + e.getMessage();
+    }
+  }
+
+  boolean isTrustedUrl(@Nullable String url) {
+    return url != null && myTrustedUrl.test(url);
+  }
+
+  /**
+   * Only SNS endpoints are trusted to serve signing certificates and subscription confirmations
+   */
+  static boolean isSnsUrl(@Nullable String url) {
+    if (url == null) return false;
+    try {
+      final URL u = new URL(url);
+      return "https".equals(u.getProtocol()) && SNS_HOST.matcher(u.getHost()).matches();
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  @Nullable
+  static String getText(@NotNull JsonNode node, @NotNull String field) {
+    final JsonNode value = node.get(field);
+    return value == null || value.isNull() ? null : value.asText();
+  }
+
+  @NotNull
+  static String getStringToSign(@NotNull JsonNode message) {
+    final List<String> fields = "Notification".equals(getText(message, "Type")) ? NOTIFICATION_FIELDS : SUBSCRIPTION_FIELDS;
+    final StringBuilder sb = new StringBuilder();
+    for (String field : fields) {
+      final String value = getText(message, field);
+      if (value == null) continue;
+      sb.append(field).append('\n').append(value).append('\n');
+    }
+    return sb.toString();
+  }
+
+  @NotNull
+  private X509Certificate getCertificate(@NotNull String certUrl) throws Exception {
+    X509Certificate certificate = myCertificates.get(certUrl);
+    if (certificate != null) {
+      certificate.checkValidity();
+      return certificate;
+    }
+
+    final URLConnection connection = new URL(certUrl).openConnection();
+    connection.setConnectTimeout(TIMEOUT_MS);
+    connection.setReadTimeout(TIMEOUT_MS);
+    final InputStream input = connection.getInputStream();
+    try {
+      certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(input);
+    } finally {
+      FileUtil.close(input);
+    }
+    certificate.checkValidity();
+    myCertificates.put(certUrl, certificate);
+    return certificate;
+  }
+
+  /**
+   * Confirms SNS subscription by visiting the provided URL
+   */
+  static void confirmSubscription(@NotNull String subscribeUrl) throws Exception {
+    final URLConnection connection = new URL(subscribeUrl).openConnection();
+    connection.setConnectTimeout(TIMEOUT_MS);
+    connection.setReadTimeout(TIMEOUT_MS);
+    FileUtil.close(connection.getInputStream());
+  }
+}
@@ -23,12 +23,14 @@
             <props:option id="${register_deploy_steps}" value="${register_deploy_steps}">${deploymentScenarios[register_deploy_steps]}</props:option>
             <props:option id="${deploy_step}" value="${deploy_step}">${deploymentScenarios[deploy_step]}</props:option>
             <props:option id="${upload_step}" value="${upload_step}">${deploymentScenarios[upload_step]}</props:option>
+            <props:option id="${rollback_step}" value="${rollback_step}">${deploymentScenarios[rollback_step]}</props:option>
         </props:selectProperty>
         <span class="smallNote stepNote facultativeNote" id="${upload_register_deploy_steps}_note">Upload revision to S3, register it in CodeDeploy application and start deployment</span>
         <span class="smallNote stepNote facultativeNote" id="${upload_register_steps}_note">Upload revision to S3 and register it in CodeDeploy application</span>
         <span class="smallNote stepNote facultativeNote" id="${register_deploy_steps}_note">Register previously uploaded revision in CodeDeploy application and starts deployment</span>
         <span class="smallNote stepNote facultativeNote" id="${deploy_step}_note">Deploy previously uploaded and registered application revision</span>
         <span class="smallNote stepNote facultativeNote" id="${upload_step}_note">Upload application revision to S3</span>
+        <span class="smallNote stepNote facultativeNote" id="${rollback_step}_note">Redeploy the revision of the last successful deployment to the deployment group, nothing is uploaded or registered</span>
         <span class="error" id="error_${deployment_steps_param}"></span>
     </td>
 </tr>
@@ -45,13 +47,31 @@
             <span class="error" id="error_${revision_path_param}"></span>
         </td>
     </tr>
-    <tr>
+    <tr data-steps="${upload_step}">
+        <th><label for="${revision_s3_source_param}">${revision_s3_source_label}: </label></th>
+        <td><props:textProperty name="${revision_s3_source_param}" className="longField" maxlength="256"/>
+            <span class="smallNote">${revision_s3_source_note}, e.g. an artifact published to S3 artifact storage</span>
+            <span class="smallNote">If specified, the archive is copied to the bucket by S3 itself and ${revision_path_label} is ignored</span>
+            <span class="error" id="error_${revision_s3_source_param}"></span>
+        </td>
+    </tr>
+    <tr data-steps="${upload_step}">
+        <th><label for="${upload_engine_param}">${upload_engine_label}: </label></th>
+        <td><props:selectProperty name="${upload_engine_param}" className="mediumField">
+                <props:option value="${upload_engine_transfer_manager}">Transfer manager</props:option>
+                <props:option value="${upload_engine_parallel}">Parallel multipart</props:option>
+            </props:selectProperty>
+            <span class="smallNote">Parallel multipart upload sends large revisions in 64 MB parts over a bounded thread pool shared by all uploads on the agent</span>
+            <span class="error" id="error_${upload_engine_param}"></span>
+        </td>
+    </tr>
+    <tr data-steps="${upload_step} ${register_deploy_steps}">
         <th><label for="${bucket_name_param}">${bucket_name_label}: <l:star/></label></th>
         <td><props:textProperty name="${bucket_name_param}" className="longField" maxlength="256"/><a href="https://console.aws.amazon.com/s3" target="_blank" rel="noopener noreferrer">Open S3 Console</a>
             <span class="smallNote">Existing S3 bucket name</span><span class="error" id="error_${bucket_name_param}"></span>
         </td>
     </tr>
-    <tr>
+    <tr data-steps="${upload_step} ${register_deploy_steps}">
         <th><label for="${s3_object_key_param}">${s3_object_key_label}: <span id="${s3_object_key_param}_star" class="mandatoryAsterix facultativeAsterix" title="Mandatory field">*</span></label></th>
         <td><props:textProperty name="${s3_object_key_param}" className="longField" maxlength="256"/>
             <span id="${s3_object_key_param}_note" class="smallNote facultativeNote">Leave empty to use application revision archive name as a key</span>
@@ -59,50 +79,84 @@
             <span class="error" id="error_${s3_object_key_param}"></span>
         </td>
     </tr>
+    <tr data-steps="${upload_step}">
+        <th><label for="${s3_object_key_template_param}">${s3_object_key_template_label}: </label></th>
+        <td><props:textProperty name="${s3_object_key_template_param}" className="longField" maxlength="256"/>
+            <span class="smallNote">Uploads every archive matched by ${revision_path_label} as is, ${archive_name_placeholder} is replaced with the archive name. Keys are published as codedeploy.revision.s3.key.N build parameters</span><span class="error" id="error_${s3_object_key_template_param}"></span>
+        </td>
+    </tr>
+    <tr data-steps="${upload_step} ${register_deploy_steps}">
+        <th><label for="${matrix_param}">${matrix_label}: </label></th>
+        <td><props:textProperty name="${matrix_param}" className="longField" maxlength="4096" expandable="true"/>
+            <span class="smallNote">Several revisions processed concurrently, an entry per line: revision paths; S3 object key; application; deployment group. Empty fields are taken from the step settings</span><span class="error" id="error_${matrix_param}"></span>
+        </td>
+    </tr>
 </l:settingsGroup>
 
-<tr class="groupingTitle" data-steps="${register_deploy_steps}">
+<tr class="groupingTitle" data-steps="${register_deploy_steps} ${rollback_step}">
     <td colspan="2">CodeDeploy Application</td>
 </tr>
-<tr data-steps="${register_deploy_steps}">
+<tr data-steps="${register_deploy_steps} ${rollback_step}">
     <th><label for="${app_name_param}">${app_name_label}: <l:star/></label></th>
     <td><props:textProperty name="${app_name_param}" className="longField" maxlength="256"/><a href="https://console.aws.amazon.com/codedeploy" target="_blank" rel="noopener noreferrer">Open CodeDeploy Console</a>
         <span class="smallNote">Pre-configured CodeDeploy application name</span><span class="error" id="error_${app_name_param}"></span>
     </td>
 </tr>
-<tr data-steps="${deploy_step}">
+<tr data-steps="${deploy_step} ${rollback_step}">
     <th><label for="${dep_group_name_param}">${dep_group_name_label}: <l:star/></label></th>
-    <td><props:textProperty name="${dep_group_name_param}" className="longField" maxlength="256"/>
-        <span class="smallNote">Pre-configured instances, must be running for deployment to succeed</span><span class="error" id="error_${dep_group_name_param}"></span>
+    <td><props:textProperty name="${dep_group_name_param}" className="longField" maxlength="4096" expandable="true"/>
+        <span class="smallNote">Pre-configured instances, must be running for deployment to succeed. Newline-separated list of [region:]group deploys to all the groups concurrently, the groups must be in the S3 bucket region</span><span class="error" id="error_${dep_group_name_param}"></span>
     </td>
 </tr>
 <tr data-steps="${deploy_step}">
+    <th><label for="${rollout_plan_param}">${rollout_plan_label}: </label></th>
+    <td><props:textProperty name="${rollout_plan_param}" className="longField" maxlength="4096" expandable="true"/>
+        <span class="smallNote">Deploys in waves instead of ${dep_group_name_label}: a wave per line, comma-separated [region:]group list of the S3 bucket region optionally followed by | and the max number of concurrent deployments. A wave starts once the previous one succeeds, a failed deployment halts the rollout</span><span class="error" id="error_${rollout_plan_param}"></span>
+    </td>
+</tr>
+<tr data-steps="${deploy_step} ${rollback_step}">
     <th><label for="${green_fleet_param}">${green_fleet_label}: </label></th>
     <td><props:textProperty name="${green_fleet_param}" className="longField" maxlength="256" expandable="true"/>
         <span class="smallNote">For blue/green deployments with manual replacement instances provision: newline-separated list of EC2 tag key/value pairs or auto scaling group names</span>
         <span class="error" id="error_${green_fleet_param}"></span>
     </td>
 </tr>
-<tr data-steps="${deploy_step}">
+<tr data-steps="${deploy_step} ${rollback_step}">
     <th><label for="${dep_config_name_param}">${dep_config_name_label}: </label></th>
     <td><props:textProperty name="${dep_config_name_param}" className="longField" maxlength="256"/>
         <span class="smallNote">e.g. "CodeDeployDefault.OneAtATime", "CodeDeployDefault.AllAtOnce" or a custom one, leave blank for default configuration</span><span class="error" id="error_${dep_config_name_param}"></span>
     </td>
 </tr>
-<tr data-steps="${deploy_step}">
+<tr data-steps="${deploy_step} ${rollback_step}">
     <th><label for="${rollback_on_failure_param}">${rollback_on_failure_label}: </label></th>
     <td><props:checkboxProperty name="${rollback_on_failure_param}" uncheckedValue="false"/></td>
 </tr>
-<tr data-steps="${deploy_step}">
+<tr data-steps="${deploy_step} ${rollback_step}">
     <th><label for="${rollback_on_alarm_param}">${rollback_on_alarm_label}: </label></th>
     <td><props:checkboxProperty name="${rollback_on_alarm_param}" uncheckedValue="false"/></td>
 </tr>
+<tr data-steps="${deploy_step} ${rollback_step}">
+    <th><label for="${wait_timeout_param}">${wait_timeout_label}: </label></th>
+    <td><props:textProperty name="${wait_timeout_param}" className="longField" maxlength="256"/>
+        <span class="smallNote">Fail the build if the deployment doesn't finish in time, leave blank to wait until it finishes</span><span class="error" id="error_${wait_timeout_param}"></span>
+    </td>
+</tr>
+<tr data-steps="${deploy_step} ${rollback_step}">
+    <th><label for="${stop_on_timeout_param}">${stop_on_timeout_label}: </label></th>
+    <td><props:checkboxProperty name="${stop_on_timeout_param}" uncheckedValue="false"/></td>
+</tr>
+<tr data-steps="${deploy_step}">
+    <th><label for="${coordinated_deployment_param}">${coordinated_deployment_label}: </label></th>
+    <td><props:checkboxProperty name="${coordinated_deployment_param}" uncheckedValue="false"/>
+        <span class="smallNote">TeamCity server creates deployments to the group one at a time, a queued revision is skipped if a newer one is queued</span>
+    </td>
+</tr>
 
-<tr class="groupingTitle" data-steps="${deploy_step}">
+<tr class="groupingTitle" data-steps="${deploy_step} ${rollback_step}">
     <td colspan="2">File Exists Behavior</td>
 </tr>
 
-<tr data-steps="${deploy_step}">
+<tr data-steps="${deploy_step} ${rollback_step}">
     <th><label for="${file_exists_behavior_param}">${file_exists_behavior_label}: </label></th>
     <td><props:selectProperty name="${file_exists_behavior_param}" className="mediumField">
         <props:option value="">&lt;Default&gt;</props:option>
@@ -13,6 +13,13 @@
     ${revision_path_label}: <props:displayValue name="${revision_path_param}" emptyValue="empty"/>
 </div>
 
+<c:set var="revision_s3_source" value="${propertiesBean.properties[revision_s3_source_param]}"/>
+<c:if test="${not empty revision_s3_source}">
+    <div class="parameter">
+            ${revision_s3_source_label}: <props:displayValue name="${revision_s3_source_param}" emptyValue="empty"/>
+    </div>
+</c:if>
+
 <div class="parameter">
     ${bucket_name_label}: <props:displayValue name="${bucket_name_param}" emptyValue="empty"/>
 </div>
@@ -24,6 +31,18 @@
     </div>
 </c:if>
 
+<c:if test="${not empty propertiesBean.properties[s3_object_key_template_param]}">
+    <div class="parameter">
+            ${s3_object_key_template_label}: <props:displayValue name="${s3_object_key_template_param}" emptyValue="empty"/>
+    </div>
+</c:if>
+
+<c:if test="${not empty propertiesBean.properties[matrix_param]}">
+    <div class="parameter">
+            ${matrix_label}: <props:displayValue name="${matrix_param}" emptyValue="empty"/>
+    </div>
+</c:if>
+
 <div class="parameter">
     ${app_name_label}: <props:displayValue name="${app_name_param}" emptyValue="empty"/>
 </div>
@@ -45,4 +64,24 @@
 </div>
 <div class="parameter">
     ${rollback_on_alarm_label}: <strong><props:displayCheckboxValue name="${rollback_on_alarm_param}"/></strong>
-</div>
\ No newline at end of file
+</div>
+
+<c:set var="wait_timeout" value="${propertiesBean.properties[wait_timeout_param]}"/>
+<c:if test="${not empty wait_timeout}">
+    <div class="parameter">
+            ${wait_timeout_label}: <props:displayValue name="${wait_timeout_param}" emptyValue="empty"/>
+    </div>
+    <div class="parameter">
+            ${stop_on_timeout_label}: <strong><props:displayCheckboxValue name="${stop_on_timeout_param}"/></strong>
+    </div>
+</c:if>
+<c:if test="${not empty propertiesBean.properties[rollout_plan_param]}">
+    <div class="parameter">
+            ${rollout_plan_label}: <props:displayValue name="${rollout_plan_param}" emptyValue="empty"/>
+    </div>
+</c:if>
+<c:if test="${propertiesBean.properties[coordinated_deployment_param] == 'true'}">
+    <div class="parameter">
+            ${coordinated_deployment_label}: <strong><props:displayCheckboxValue name="${coordinated_deployment_param}"/></strong>
+    </div>
+</c:if>
\ No newline at end of file
@@ -0,0 +1,84 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class CodeDeployCircuitBreakerTest {
+  @Test
+  public void opens_after_min_polls() {
+    final CodeDeployCircuitBreaker breaker = new CodeDeployCircuitBreaker(50, 5, 1000);
+
+    for (int i = 0; i < 4; ++i) {
+      then(breaker.pollFailed(0)).isFalse();
+    }
+    then(breaker.getState()).isEqualTo(CodeDeployCircuitBreaker.State.CLOSED);
+    then(breaker.allowPoll(0)).isTrue();
+
+    then(breaker.pollFailed(0)).isTrue();
+    then(breaker.getState()).isEqualTo(CodeDeployCircuitBreaker.State.OPEN);
+    then(breaker.allowPoll(999)).isFalse();
+  }
+
+  @Test
+  public void old_polls_roll_off() {
+    final CodeDeployCircuitBreaker breaker = new CodeDeployCircuitBreaker(30, CodeDeployCircuitBreaker.WINDOW_SIZE, 1000);
+
+    for (int i = 0; i < 10; ++i) {
+      then(breaker.pollFailed(0)).isFalse();
+    }
+    for (int i = 0; i < CodeDeployCircuitBreaker.WINDOW_SIZE; ++i) {
+      then(breaker.pollSucceeded()).isFalse();
+    }
+
+    // the early failures are out of the window, 1 of 20 recent polls failed
+    then(breaker.pollFailed(0)).isFalse();
+    then(breaker.getState()).isEqualTo(CodeDeployCircuitBreaker.State.CLOSED);
+
+    for (int i = 0; i < 4; ++i) {
+      then(breaker.pollFailed(0)).isFalse();
+    }
+    // 6 of 20 recent polls failed
+    then(breaker.pollFailed(0)).isTrue();
+    then(breaker.getState()).isEqualTo(CodeDeployCircuitBreaker.State.OPEN);
+  }
+
+  @Test
+  public void single_probe_closes() {
+    final CodeDeployCircuitBreaker breaker = open(new CodeDeployCircuitBreaker(50, 5, 1000), 0);
+
+    then(breaker.allowPoll(999)).isFalse();
+    then(breaker.allowPoll(1000)).as("Probe must be allowed once open interval passes").isTrue();
+    then(breaker.getState()).isEqualTo(CodeDeployCircuitBreaker.State.HALF_OPEN);
+    then(breaker.allowPoll(1000)).as("Only a single probe is allowed").isFalse();
+
+    then(breaker.pollSucceeded()).isTrue();
+    then(breaker.getState()).isEqualTo(CodeDeployCircuitBreaker.State.CLOSED);
+    then(breaker.allowPoll(1000)).isTrue();
+
+    // the failures made before opening are forgotten
+    then(breaker.pollFailed(1000)).isFalse();
+    then(breaker.getState()).isEqualTo(CodeDeployCircuitBreaker.State.CLOSED);
+  }
+
+  @Test
+  public void failed_probe_reopens() {
+    final CodeDeployCircuitBreaker breaker = open(new CodeDeployCircuitBreaker(50, 5, 1000), 0);
+
+    then(breaker.allowPoll(1000)).isTrue();
+    then(breaker.pollFailed(1000)).isFalse();
+    then(breaker.getState()).isEqualTo(CodeDeployCircuitBreaker.State.OPEN);
+
+    then(breaker.allowPoll(1999)).isFalse();
+    then(breaker.allowPoll(2000)).isTrue();
+    then(breaker.getState()).isEqualTo(CodeDeployCircuitBreaker.State.HALF_OPEN);
+  }
+
+  private static CodeDeployCircuitBreaker open(CodeDeployCircuitBreaker breaker, long now) {
+    for (int i = 0; i < 5; ++i) {
+      breaker.pollFailed(now);
+    }
+    then(breaker.getState()).isEqualTo(CodeDeployCircuitBreaker.State.OPEN);
+    return breaker;
+  }
+}
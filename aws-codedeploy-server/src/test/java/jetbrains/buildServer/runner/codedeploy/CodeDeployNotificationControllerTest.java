@@ -0,0 +1,124 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static javax.servlet.http.HttpServletResponse.*;
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class CodeDeployNotificationControllerTest extends BaseTestCase {
+  private static final String DEPLOYMENT_NOTIFICATION =
+    "{\"deploymentId\":\"d-A1B2C3D4E\",\"applicationName\":\"app\",\"deploymentGroupName\":\"group\",\"status\":\"SUCCEEDED\"}";
+
+  private SnsStandIn mySns;
+  private List<String> myNotifications;
+  private CodeDeployNotificationController myController;
+
+  @BeforeMethod
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    mySns = new SnsStandIn();
+    myNotifications = new ArrayList<>();
+    myController = new CodeDeployNotificationController((deploymentId, applicationName, deploymentGroupName) -> {
+      myNotifications.add(deploymentId + " " + applicationName + "/" + deploymentGroupName);
+      return true;
+    }, new SnsMessageVerifier(url -> mySns.isLocalUrl(url)));
+    setInternalProperty(CodeDeployNotificationController.TOPIC_ARNS_PROPERTY, "arn:aws:sns:us-east-1:123456789012:other, " + SnsStandIn.TOPIC_ARN);
+  }
+
+  @AfterMethod
+  @Override
+  protected void tearDown() throws Exception {
+    mySns.stop();
+    super.tearDown();
+  }
+
+  @Test
+  public void subscription_confirmed() throws Exception {
+    then(handleSns(mySns.sign(mySns.subscriptionConfirmation(), 2).toString())).isEqualTo(SC_OK);
+    then(mySns.getConfirmations()).isEqualTo(1);
+  }
+
+  @Test
+  public void subscription_of_not_allowed_topic_rejected() throws Exception {
+    setInternalProperty(CodeDeployNotificationController.TOPIC_ARNS_PROPERTY, "arn:aws:sns:us-east-1:123456789012:other");
+    then(handleSns(mySns.sign(mySns.subscriptionConfirmation(), 2).toString())).isEqualTo(SC_FORBIDDEN);
+    then(mySns.getConfirmations()).isZero();
+  }
+
+  @Test
+  public void subscription_rejected_if_no_topics_allowed() throws Exception {
+    setInternalProperty(CodeDeployNotificationController.TOPIC_ARNS_PROPERTY, "");
+    then(handleSns(mySns.sign(mySns.subscriptionConfirmation(), 2).toString())).isEqualTo(SC_FORBIDDEN);
+    then(mySns.getConfirmations()).isZero();
+  }
+
+  @Test
+  public void tampered_subscription_not_confirmed() throws Exception {
+    then(handleSns(mySns.sign(mySns.subscriptionConfirmation(), 2).put("Token", "forged").toString())).isEqualTo(SC_FORBIDDEN);
+    then(mySns.getConfirmations()).isZero();
+  }
+
+  @Test
+  public void sns_notification_routed() throws Exception {
+    then(handleSns(mySns.sign(mySns.notification(DEPLOYMENT_NOTIFICATION), 2).toString())).isEqualTo(SC_OK);
+    then(myNotifications).containsExactly("d-A1B2C3D4E app/group");
+  }
+
+  @Test
+  public void tampered_sns_notification_rejected() throws Exception {
+    then(handleSns(mySns.sign(mySns.notification("{}"), 2).put("Message", DEPLOYMENT_NOTIFICATION).toString())).isEqualTo(SC_FORBIDDEN);
+    then(myNotifications).isEmpty();
+  }
+
+  @Test
+  public void sns_notification_of_not_allowed_topic_rejected() throws Exception {
+    setInternalProperty(CodeDeployNotificationController.TOPIC_ARNS_PROPERTY, "arn:aws:sns:us-east-1:123456789012:other");
+    then(handleSns(mySns.sign(mySns.notification(DEPLOYMENT_NOTIFICATION), 2).toString())).isEqualTo(SC_FORBIDDEN);
+    then(myNotifications).isEmpty();
+  }
+
+  @Test
+  public void sns_notification_without_deployment_ignored() throws Exception {
+    then(handleSns(mySns.sign(mySns.notification("not a json"), 2).toString())).isEqualTo(SC_OK);
+    then(handleSns(mySns.sign(mySns.notification("{\"status\":\"SUCCEEDED\"}"), 2).toString())).isEqualTo(SC_OK);
+    then(myNotifications).isEmpty();
+  }
+
+  @Test
+  public void event_with_secret_routed() throws Exception {
+    setInternalProperty(CodeDeployNotificationController.SECRET_PROPERTY, "s3cr3t");
+    final String event = "{\"source\":\"aws.codedeploy\",\"detail\":{\"deploymentId\":\"d-A1B2C3D4E\",\"application\":\"app\",\"deploymentGroup\":\"group\"}}";
+
+    then(myController.handle(null, "s3cr3t", event, "127.0.0.1")).isEqualTo(SC_OK);
+    then(myNotifications).containsExactly("d-A1B2C3D4E app/group");
+  }
+
+  @Test
+  public void event_without_valid_secret_rejected() throws Exception {
+    then(myController.handle(null, "s3cr3t", DEPLOYMENT_NOTIFICATION, "127.0.0.1")).isEqualTo(SC_FORBIDDEN);
+
+    setInternalProperty(CodeDeployNotificationController.SECRET_PROPERTY, "s3cr3t");
+    then(myController.handle(null, null, DEPLOYMENT_NOTIFICATION, "127.0.0.1")).isEqualTo(SC_FORBIDDEN);
+    then(myController.handle(null, "secret", DEPLOYMENT_NOTIFICATION, "127.0.0.1")).isEqualTo(SC_FORBIDDEN);
+    then(myNotifications).isEmpty();
+  }
+
+  @Test
+  public void malformed_body_rejected() throws Exception {
+    then(handleSns("{\"Type\":")).isEqualTo(SC_BAD_REQUEST);
+    then(handleSns("")).isEqualTo(SC_BAD_REQUEST);
+    then(handleSns("[]")).isEqualTo(SC_BAD_REQUEST);
+    then(mySns.getConfirmations()).isZero();
+  }
+
+  private int handleSns(String body) throws Exception {
+    return myController.handle("Notification", null, body, "127.0.0.1");
+  }
+}
@@ -0,0 +1,97 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.services.codedeploy.model.DeploymentInfo;
+import com.amazonaws.services.codedeploy.model.DeploymentOverview;
+import com.amazonaws.services.codedeploy.model.DeploymentStatus;
+import org.testng.annotations.Test;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class CodeDeployPollSchedulerTest {
+  private static final long NOW = TimeUnit.DAYS.toMillis(1);
+
+  @Test
+  public void unknown_status() {
+    final CodeDeployPollScheduler scheduler = new CodeDeployPollScheduler();
+    then(scheduler.getNextPollDelay(null, NOW)).isEqualTo(CodeDeployPollScheduler.DEFAULT_INTERVAL_MS);
+    then(scheduler.getNextPollDelay(new DeploymentInfo(), NOW)).isEqualTo(CodeDeployPollScheduler.DEFAULT_INTERVAL_MS);
+  }
+
+  @Test
+  public void created_and_queued() {
+    final CodeDeployPollScheduler scheduler = new CodeDeployPollScheduler();
+    then(scheduler.getNextPollDelay(createInfo("group", DeploymentStatus.Created, null), NOW)).isEqualTo(CodeDeployPollScheduler.MIN_INTERVAL_MS);
+    then(scheduler.getNextPollDelay(createInfo("group", DeploymentStatus.Queued, null), NOW)).isEqualTo(CodeDeployPollScheduler.MIN_INTERVAL_MS);
+  }
+
+  @Test
+  public void nearly_done() {
+    final CodeDeployPollScheduler scheduler = new CodeDeployPollScheduler();
+    final DeploymentInfo info = createInfo("group", DeploymentStatus.InProgress, NOW - TimeUnit.MINUTES.toMillis(10));
+
+    info.setDeploymentOverview(new DeploymentOverview().withPending(5L).withInProgress(5L).withSucceeded(10L));
+    then(scheduler.getNextPollDelay(info, NOW)).isEqualTo(CodeDeployPollScheduler.MAX_INTERVAL_MS);
+
+    info.setDeploymentOverview(new DeploymentOverview().withPending(0L).withInProgress(1L).withSucceeded(19L));
+    then(scheduler.getNextPollDelay(info, NOW)).isEqualTo(CodeDeployPollScheduler.MIN_INTERVAL_MS);
+  }
+
+  @Test
+  public void elapsed_time_without_history() {
+    final CodeDeployPollScheduler scheduler = new CodeDeployPollScheduler();
+    then(scheduler.getNextPollDelay(createInfo("group", DeploymentStatus.InProgress, NOW - TimeUnit.SECONDS.toMillis(200)), NOW))
+      .isEqualTo(TimeUnit.SECONDS.toMillis(20));
+    then(scheduler.getNextPollDelay(createInfo("group", DeploymentStatus.InProgress, NOW - TimeUnit.SECONDS.toMillis(5)), NOW))
+      .isEqualTo(CodeDeployPollScheduler.MIN_INTERVAL_MS);
+    then(scheduler.getNextPollDelay(createInfo("group", DeploymentStatus.InProgress, NOW - TimeUnit.HOURS.toMillis(1)), NOW))
+      .isEqualTo(CodeDeployPollScheduler.MAX_INTERVAL_MS);
+  }
+
+  @Test
+  public void average_duration_of_group() {
+    final CodeDeployPollScheduler scheduler = new CodeDeployPollScheduler();
+    scheduler.deploymentFinished(createFinishedInfo("group", DeploymentStatus.Succeeded, TimeUnit.SECONDS.toMillis(100)));
+    // failed deployments don't predict durations
+    scheduler.deploymentFinished(createFinishedInfo("group", DeploymentStatus.Failed, TimeUnit.SECONDS.toMillis(10)));
+
+    final DeploymentInfo info = createInfo("group", DeploymentStatus.InProgress, NOW - TimeUnit.SECONDS.toMillis(20));
+    then(scheduler.getNextPollDelay(info, NOW)).isEqualTo(TimeUnit.SECONDS.toMillis(20));
+
+    // 100s * 0.7 + 200s * 0.3
+    scheduler.deploymentFinished(createFinishedInfo("group", DeploymentStatus.Succeeded, TimeUnit.SECONDS.toMillis(200)));
+    then(scheduler.getNextPollDelay(info, NOW)).isEqualTo(TimeUnit.SECONDS.toMillis(110) / 4);
+
+    // the deployment takes longer than predicted
+    then(scheduler.getNextPollDelay(createInfo("group", DeploymentStatus.InProgress, NOW - TimeUnit.SECONDS.toMillis(300)), NOW))
+      .isEqualTo(TimeUnit.SECONDS.toMillis(30));
+
+    then(scheduler.getNextPollDelay(createInfo("other group", DeploymentStatus.InProgress, NOW - TimeUnit.SECONDS.toMillis(20)), NOW))
+      .isEqualTo(CodeDeployPollScheduler.MIN_INTERVAL_MS);
+  }
+
+  @Test
+  public void notifications_safety_net() {
+    final CodeDeployPollScheduler scheduler = new CodeDeployPollScheduler();
+    scheduler.notificationReceived("app", "group");
+
+    final long now = System.currentTimeMillis();
+    then(scheduler.getNextPollDelay(createInfo("group", DeploymentStatus.Created, now), now)).isEqualTo(CodeDeployPollScheduler.SAFETY_NET_INTERVAL_MS);
+    then(scheduler.getNextPollDelay(createInfo("other group", DeploymentStatus.Created, now), now)).isEqualTo(CodeDeployPollScheduler.MIN_INTERVAL_MS);
+
+    then(scheduler.getNextPollDelay(createInfo("group", DeploymentStatus.Created, now), now + CodeDeployPollScheduler.NOTIFICATIONS_TTL_MS))
+      .as("Must poll as usual once notifications stop").isEqualTo(CodeDeployPollScheduler.MIN_INTERVAL_MS);
+  }
+
+  private static DeploymentInfo createInfo(String group, DeploymentStatus status, Long startTime) {
+    final DeploymentInfo info = new DeploymentInfo().withApplicationName("app").withDeploymentGroupName(group).withStatus(status);
+    if (startTime != null) info.setStartTime(new Date(startTime));
+    return info;
+  }
+
+  private static DeploymentInfo createFinishedInfo(String group, DeploymentStatus status, long duration) {
+    return createInfo(group, status, 0L).withCompleteTime(new Date(duration));
+  }
+}
@@ -0,0 +1,280 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.codedeploy.model.DeploymentStatus;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.amazon.AWSException;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class CodeDeployRolloutTest extends BaseTestCase {
+  private static final long NOW = 1000;
+  private static final String PLAN = "canary\nprod-1, prod-2, prod-3 | 2";
+
+  private CodeDeployClientPool myClientPool;
+  private CodeDeployTrackingState myTrackingState;
+  private StubCreator myCreator;
+  private StubPoller myPoller;
+  private List<String> myEvents;
+  private CodeDeployTrackedBuilds.TrackedBuild myTracked;
+
+  @BeforeMethod(alwaysRun = true)
+  public void mySetUp() throws Exception {
+    final File dataDir = createTempDir();
+    myClientPool = new CodeDeployClientPool(dataDir);
+    myTrackingState = new CodeDeployTrackingState(dataDir);
+    myCreator = new StubCreator(myClientPool);
+    myPoller = new StubPoller(myClientPool, myTrackingState);
+    myEvents = new ArrayList<>();
+    myTracked = new CodeDeployTrackedBuilds.TrackedBuild(Collections.emptyList(), new RecordingListener(myEvents));
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void myTearDown() {
+    myPoller.dispose();
+    myCreator.dispose();
+    myTrackingState.dispose();
+    myClientPool.dispose();
+  }
+
+  @Test
+  public void waves_deployed_one_after_another() {
+    final CodeDeployRollout rollout = createRollout();
+
+    then(rollout.advance(myTracked, NOW)).isFalse();
+    then(myCreator.mySubmitted).containsExactly("canary");
+
+    myCreator.created("canary");
+    then(rollout.advance(myTracked, NOW)).isFalse();
+    then(myCreator.mySubmitted).as("Must wait for the wave to succeed").containsExactly("canary");
+
+    succeeded("canary");
+    then(rollout.advance(myTracked, NOW)).isFalse();
+    then(myCreator.mySubmitted).as("Must respect the wave concurrency").containsExactly("canary", "prod-1", "prod-2");
+
+    myCreator.created("prod-1");
+    myCreator.created("prod-2");
+    then(rollout.advance(myTracked, NOW)).isFalse();
+    then(myCreator.mySubmitted).hasSize(3);
+
+    succeeded("prod-1");
+    then(rollout.advance(myTracked, NOW)).isFalse();
+    then(myCreator.mySubmitted).containsExactly("canary", "prod-1", "prod-2", "prod-3");
+
+    myCreator.created("prod-3");
+    then(rollout.advance(myTracked, NOW)).isFalse();
+    succeeded("prod-2");
+    succeeded("prod-3");
+    then(rollout.advance(myTracked, NOW)).isTrue();
+
+    then(myEvents).containsExactly(
+      "wave 1 of 2: [canary]",
+      "created canary: [d-canary]",
+      "wave 2 of 2: [prod-1, prod-2, prod-3]",
+      "created prod-1: [d-canary, d-prod-1]",
+      "created prod-2: [d-canary, d-prod-1, d-prod-2]",
+      "created prod-3: [d-canary, d-prod-1, d-prod-2, d-prod-3]",
+      "finished 2");
+  }
+
+  @Test
+  public void failed_deployment_halts() {
+    final CodeDeployRollout rollout = createRollout();
+    rollout.advance(myTracked, NOW);
+    myCreator.created("canary");
+    rollout.advance(myTracked, NOW);
+
+    finished("canary", DeploymentStatus.Failed);
+    then(rollout.advance(myTracked, NOW)).isTrue();
+    then(myCreator.mySubmitted).containsExactly("canary");
+    then(myEvents).contains("halted canary: deployment d-canary didn't succeed, status: Failed, 1 more wave is not started");
+  }
+
+  @Test
+  public void failed_creation_halts() {
+    final CodeDeployRollout rollout = createRollout();
+    rollout.advance(myTracked, NOW);
+
+    myCreator.failed("canary", "ApplicationDoesNotExistException");
+    then(rollout.advance(myTracked, NOW)).isTrue();
+    then(myCreator.mySubmitted).containsExactly("canary");
+    then(myEvents).hasSize(2);
+    then(myEvents.get(1)).startsWith("halted canary: failed to create deployment: ");
+  }
+
+  @Test
+  public void busy_group_retried() {
+    final CodeDeployRollout rollout = createRollout();
+    rollout.advance(myTracked, NOW);
+
+    myCreator.failed("canary", "DeploymentLimitExceededException");
+    then(rollout.advance(myTracked, NOW)).isFalse();
+    then(myEvents).containsExactly("wave 1 of 2: [canary]", "delayed canary");
+
+    then(rollout.advance(myTracked, NOW + CodeDeployDeploymentCoordinator.BUSY_GROUP_RETRY_MS - 1)).isFalse();
+    then(myCreator.mySubmitted).containsExactly("canary");
+
+    then(rollout.advance(myTracked, NOW + CodeDeployDeploymentCoordinator.BUSY_GROUP_RETRY_MS)).isFalse();
+    then(myCreator.mySubmitted).containsExactly("canary", "canary");
+  }
+
+  @Test
+  public void cancel_stops_deployments_being_created() {
+    final CodeDeployRollout rollout = createRollout();
+    rollout.advance(myTracked, NOW);
+
+    rollout.cancel();
+    myCreator.created("canary");
+    then(myPoller.myStopped).containsExactly("d-canary");
+
+    then(rollout.advance(myTracked, NOW)).isTrue();
+    then(myCreator.mySubmitted).containsExactly("canary");
+    then(myTracked.getDeployments()).isEmpty();
+  }
+
+  @NotNull
+  private CodeDeployRollout createRollout() {
+    final Map<String, String> params = new HashMap<>();
+    params.put(CodeDeployConstants.APP_NAME_PARAM, "app");
+    params.put(CodeDeployConstants.ROLLOUT_PLAN_PARAM, PLAN);
+    final RolloutPlan plan = RolloutPlan.parse(params);
+    then(plan).isNotNull();
+    return new CodeDeployRollout(myCreator, myPoller, plan, new CodeDeployDeploymentCreator.Revision("revision.zip", null, null), "\"build\" #1");
+  }
+
+  private void succeeded(@NotNull String group) {
+    finished(group, DeploymentStatus.Succeeded);
+  }
+
+  private void finished(@NotNull String group, @NotNull DeploymentStatus status) {
+    for (CodeDeployTrackedBuilds.BuildDeployment d : myTracked.getDeployments()) {
+      if (!d.getDeploymentId().equals("d-" + group)) continue;
+      d.setLastStatus(status.toString());
+      d.setFinishDate(new Date());
+      return;
+    }
+    throw new AssertionError("No deployment to " + group);
+  }
+
+  private static final class StubCreator extends CodeDeployDeploymentCreator {
+    @NotNull
+    private final List<String> mySubmitted = new ArrayList<>();
+    @NotNull
+    private final Map<String, CompletableFuture<CreatedDeployment>> myFutures = new HashMap<>();
+
+    private StubCreator(@NotNull CodeDeployClientPool clientPool) {
+      super(clientPool);
+    }
+
+    @NotNull
+    @Override
+    CompletableFuture<CreatedDeployment> submitDeployment(@NotNull Map<String, String> params, @NotNull Revision revision, @NotNull String buildDescription) {
+      final String group = "" + CodeDeployUtil.getDeploymentGroupName(params);
+      final CompletableFuture<CreatedDeployment> future = new CompletableFuture<>();
+      mySubmitted.add(group);
+      myFutures.put(group, future);
+      return future;
+    }
+
+    private void created(@NotNull String group) {
+      myFutures.get(group).complete(new CreatedDeployment("d-" + group, NOW));
+    }
+
+    private void failed(@NotNull String group, @NotNull String errorCode) {
+      final AmazonServiceException e = new AmazonServiceException(errorCode);
+      e.setErrorCode(errorCode);
+      e.setStatusCode(400);
+      myFutures.get(group).completeExceptionally(new AWSException(e));
+    }
+  }
+
+  private static final class StubPoller extends CodeDeployDeploymentPoller {
+    @NotNull
+    private final List<String> myStopped = new ArrayList<>();
+
+    private StubPoller(@NotNull CodeDeployClientPool clientPool, @NotNull CodeDeployTrackingState trackingState) {
+      super(clientPool, trackingState);
+    }
+
+    @Override
+    void stopDeployment(@NotNull Map<String, String> runnerParameters, @NotNull String deploymentId) {
+      myStopped.add(deploymentId);
+    }
+  }
+
+  private static final class RecordingListener extends LoggingDeploymentListener {
+    @NotNull
+    private final List<String> myEvents;
+
+    private RecordingListener(@NotNull List<String> events) {
+      super(Collections.emptyMap(), StringUtil.EMPTY);
+      myEvents = events;
+    }
+
+    @Override
+    void rolloutWaveStarted(int wave, int waves, @NotNull Collection<String> deploymentGroups) {
+      myEvents.add("wave " + wave + " of " + waves + ": " + deploymentGroups);
+    }
+
+    @Override
+    void rolloutDeploymentCreated(@NotNull String deploymentGroupName, @NotNull String deploymentId, @NotNull List<String> deploymentIds) {
+      myEvents.add("created " + deploymentGroupName + ": " + deploymentIds);
+    }
+
+    @Override
+    void rolloutDeploymentDelayed(@NotNull String deploymentGroupName, @NotNull String reason) {
+      myEvents.add("delayed " + deploymentGroupName);
+    }
+
+    @Override
+    void rolloutHalted(@NotNull String deploymentGroupName, @NotNull String reason) {
+      myEvents.add("halted " + deploymentGroupName + ": " + reason);
+    }
+
+    @Override
+    void rolloutFinished(int waves) {
+      myEvents.add("finished " + waves);
+    }
+
+    @Override
+    protected void log(@NotNull String message) {
+    }
+
+    @Override
+    protected void err(@NotNull String message) {
+    }
+
+    @Override
+    protected void open(@NotNull String block) {
+    }
+
+    @Override
+    protected void close(@NotNull String block) {
+    }
+
+    @Override
+    protected void progress(@NotNull String message) {
+    }
+
+    @Override
+    protected void problem(int identity, @NotNull String type, @NotNull String descr) {
+    }
+
+    @Override
+    protected void parameter(@NotNull String name, @NotNull String value) {
+    }
+
+    @Override
+    protected void statusText(@NotNull String text) {
+    }
+  }
+}
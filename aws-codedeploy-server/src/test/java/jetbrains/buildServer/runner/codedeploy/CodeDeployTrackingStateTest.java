@@ -0,0 +1,89 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class CodeDeployTrackingStateTest extends BaseTestCase {
+  @Test
+  public void round_trip() throws Exception {
+    final File stateDir = createTempDir();
+    final long now = System.currentTimeMillis();
+
+    final AWSClient.Listener.InstancesStatus instancesStatus = new AWSClient.Listener.InstancesStatus();
+    instancesStatus.status = "InProgress";
+    instancesStatus.pending = 1;
+    instancesStatus.inProgress = 2;
+    instancesStatus.succeeded = 3;
+    instancesStatus.skipped = 4;
+
+    final CodeDeployTrackingState state = new CodeDeployTrackingState(stateDir);
+    state.checkpoint("d-1", new CodeDeployTrackingState.Checkpoint(now, now + 5000, "InProgress", instancesStatus));
+    state.checkpoint("d-2", new CodeDeployTrackingState.Checkpoint(now, now + 2000, null, null));
+    state.dispose();
+
+    then(FileUtil.readText(new File(stateDir, CodeDeployTrackingState.STATE_FILE_NAME)))
+      .contains("d-1=" + now + ";" + (now + 5000) + ";InProgress;InProgress,1,2,3,0,4")
+      .contains("d-2=" + now + ";" + (now + 2000) + ";;");
+
+    final CodeDeployTrackingState restored = new CodeDeployTrackingState(stateDir);
+    try {
+      final CodeDeployTrackingState.Checkpoint checkpoint = restored.getCheckpoint("d-1");
+      then(checkpoint).isNotNull();
+      then(checkpoint.getTime()).isEqualTo(now);
+      then(checkpoint.getNextPollTime()).isEqualTo(now + 5000);
+      then(checkpoint.getLastStatus()).isEqualTo("InProgress");
+      final AWSClient.Listener.InstancesStatus restoredStatus = checkpoint.getInstancesStatus();
+      then(restoredStatus).isNotNull();
+      then(restoredStatus.status).isEqualTo("InProgress");
+      then(restoredStatus.pending).isEqualTo(1);
+      then(restoredStatus.inProgress).isEqualTo(2);
+      then(restoredStatus.succeeded).isEqualTo(3);
+      then(restoredStatus.failed).isEqualTo(0);
+      then(restoredStatus.skipped).isEqualTo(4);
+
+      final CodeDeployTrackingState.Checkpoint empty = restored.getCheckpoint("d-2");
+      then(empty).isNotNull();
+      then(empty.getLastStatus()).isNull();
+      then(empty.getInstancesStatus()).isNull();
+
+      restored.remove("d-1");
+    } finally {
+      restored.dispose();
+    }
+
+    final CodeDeployTrackingState afterRemoval = new CodeDeployTrackingState(stateDir);
+    try {
+      then(afterRemoval.getCheckpoint("d-1")).isNull();
+      then(afterRemoval.getCheckpoint("d-2")).isNotNull();
+    } finally {
+      afterRemoval.dispose();
+    }
+  }
+
+  @Test
+  public void expired_and_malformed_checkpoints() throws Exception {
+    final File stateDir = createTempDir();
+    final long now = System.currentTimeMillis();
+    final long expired = now - CodeDeployTrackingState.STATE_TTL_MS - 1000;
+    FileUtil.writeFile(new File(stateDir, CodeDeployTrackingState.STATE_FILE_NAME),
+      "d-1=" + now + ";" + now + ";Created;\n" +
+      "d-2=" + expired + ";" + expired + ";InProgress;\n" +
+      "d-3=not a checkpoint\n" +
+      "d-4=" + now + ";" + now + ";InProgress;InProgress,1,x,0,0,0\n", "UTF-8");
+
+    final CodeDeployTrackingState state = new CodeDeployTrackingState(stateDir);
+    try {
+      then(state.getCheckpoint("d-1")).isNotNull();
+      then(state.getCheckpoint("d-2")).as("Must drop checkpoints older than the TTL").isNull();
+      then(state.getCheckpoint("d-3")).isNull();
+      then(state.getCheckpoint("d-4")).isNull();
+    } finally {
+      state.dispose();
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.assertj.core.api.BDDAssertions.then;
+
+public class SnsMessageVerifierTest {
+  private SnsStandIn mySns;
+  private SnsMessageVerifier myVerifier;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    mySns = new SnsStandIn();
+    myVerifier = new SnsMessageVerifier(url -> mySns.isLocalUrl(url));
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    mySns.stop();
+  }
+
+  @Test
+  public void notification_string_to_sign() {
+    final ObjectNode message = mySns.notification("hello");
+    message.put("UnsubscribeURL", "https://sns.us-east-1.amazonaws.com/?Action=Unsubscribe");
+
+    then(SnsMessageVerifier.getStringToSign(message)).isEqualTo(
+      "Message\nhello\n" +
+      "MessageId\n22b80b92-fdea-4c2c-8f9d-bdfb0c7bf324\n" +
+      "Timestamp\n2026-10-19T12:00:00.000Z\n" +
+      "TopicArn\n" + SnsStandIn.TOPIC_ARN + "\n" +
+      "Type\nNotification\n");
+
+    message.put("Subject", "Deployment succeeded");
+    then(SnsMessageVerifier.getStringToSign(message)).contains("MessageId\n22b80b92-fdea-4c2c-8f9d-bdfb0c7bf324\nSubject\nDeployment succeeded\nTimestamp\n");
+  }
+
+  @Test
+  public void subscription_string_to_sign() {
+    then(SnsMessageVerifier.getStringToSign(mySns.subscriptionConfirmation())).isEqualTo(
+      "Message\nYou have chosen to subscribe to the topic " + SnsStandIn.TOPIC_ARN + "\n" +
+      "MessageId\n22b80b92-fdea-4c2c-8f9d-bdfb0c7bf324\n" +
+      "SubscribeURL\n" + mySns.getUrl(SnsStandIn.SUBSCRIBE_PATH) + "\n" +
+      "Timestamp\n2026-10-19T12:00:00.000Z\n" +
+      "Token\n2336412f37f\n" +
+      "TopicArn\n" + SnsStandIn.TOPIC_ARN + "\n" +
+      "Type\nSubscriptionConfirmation\n");
+  }
+
+  @Test
+  public void sns_urls() {
+    then(SnsMessageVerifier.isSnsUrl("https://sns.us-east-1.amazonaws.com/SimpleNotificationService-1.pem")).isTrue();
+    then(SnsMessageVerifier.isSnsUrl("https://sns.cn-north-1.amazonaws.com.cn/SimpleNotificationService-1.pem")).isTrue();
+
+    then(SnsMessageVerifier.isSnsUrl("http://sns.us-east-1.amazonaws.com/SimpleNotificationService-1.pem")).isFalse();
+    then(SnsMessageVerifier.isSnsUrl("https://sns.us-east-1.amazonaws.com.example.com/SimpleNotificationService-1.pem")).isFalse();
+    then(SnsMessageVerifier.isSnsUrl("https://example.com/sns.us-east-1.amazonaws.com/SimpleNotificationService-1.pem")).isFalse();
+    then(SnsMessageVerifier.isSnsUrl("https://s3.amazonaws.com/SimpleNotificationService-1.pem")).isFalse();
+    then(SnsMessageVerifier.isSnsUrl("not a url")).isFalse();
+    then(SnsMessageVerifier.isSnsUrl(null)).isFalse();
+  }
+
+  @Test
+  public void signed_messages_verified() throws Exception {
+    then(myVerifier.verify(mySns.sign(mySns.notification("hello"), 2))).isNull();
+    then(myVerifier.verify(mySns.sign(mySns.notification("hello"), 1))).isNull();
+    then(myVerifier.verify(mySns.sign(mySns.subscriptionConfirmation(), 2))).isNull();
+  }
+
+  @Test
+  public void tampered_messages_rejected() throws Exception {
+    final ObjectNode notification = mySns.sign(mySns.notification("hello"), 2);
+    notification.put("Message", "{\"deploymentId\":\"d-FAKE\"}");
+    then(myVerifier.verify(notification)).isEqualTo("signature mismatch");
+
+    final ObjectNode subscription = mySns.sign(mySns.subscriptionConfirmation(), 2);
+    subscription.put("TopicArn", "arn:aws:sns:us-east-1:210987654321:other");
+    then(myVerifier.verify(subscription)).isEqualTo("signature mismatch");
+
+    final ObjectNode unsigned = mySns.sign(mySns.notification("hello"), 2);
+    unsigned.remove("Signature");
+    then(myVerifier.verify(unsigned)).isEqualTo("no signature");
+  }
+
+  @Test
+  public void unsupported_signature_version_rejected() throws Exception {
+    final ObjectNode message = mySns.sign(mySns.notification("hello"), 2);
+    message.put("SignatureVersion", "3");
+    then(myVerifier.verify(message)).isEqualTo("unsupported signature version 3");
+  }
+
+  @Test
+  public void certificate_of_untrusted_url_not_fetched() throws Exception {
+    final ObjectNode message = mySns.sign(mySns.notification("hello"), 2);
+    then(new SnsMessageVerifier().verify(message)).startsWith("unexpected signing certificate URL ");
+  }
+}
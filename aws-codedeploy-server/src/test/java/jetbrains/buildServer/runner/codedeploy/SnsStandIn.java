@@ -0,0 +1,131 @@
+package jetbrains.buildServer.runner.codedeploy;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local HTTP server standing in for SNS: serves the signing certificate, counts subscription confirmations
+ * and signs messages with the certificate key
+ */
+class SnsStandIn {
+  static final String CERT_PATH = "/SimpleNotificationService.pem";
+  static final String SUBSCRIBE_PATH = "/confirm";
+  static final String TOPIC_ARN = "arn:aws:sns:us-east-1:123456789012:codedeploy";
+
+  @NotNull
+  private final ObjectMapper myObjectMapper = new ObjectMapper();
+  @NotNull
+  private final AtomicInteger myConfirmations = new AtomicInteger();
+  @NotNull
+  private final PrivateKey myKey;
+  @NotNull
+  private final HttpServer myServer;
+
+  SnsStandIn() throws Exception {
+    final byte[] cert = readResource("signing-cert.pem");
+    myKey = KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(Base64.getMimeDecoder().decode(
+      new String(readResource("signing-key.pem"), StandardCharsets.US_ASCII).replaceAll("-----[A-Z ]+-----", ""))));
+
+    myServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    myServer.createContext(CERT_PATH, exchange -> {
+      exchange.sendResponseHeaders(200, cert.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(cert);
+      }
+    });
+    myServer.createContext(SUBSCRIBE_PATH, exchange -> {
+      myConfirmations.incrementAndGet();
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    });
+    myServer.start();
+  }
+
+  @NotNull
+  String getUrl(@NotNull String path) {
+    return "http://" + myServer.getAddress().getHostString() + ":" + myServer.getAddress().getPort() + path;
+  }
+
+  boolean isLocalUrl(@NotNull String url) {
+    return url.startsWith(getUrl("/"));
+  }
+
+  int getConfirmations() {
+    return myConfirmations.get();
+  }
+
+  @NotNull
+  ObjectNode notification(@NotNull String message) {
+    final ObjectNode node = message("Notification");
+    node.put("Message", message);
+    return node;
+  }
+
+  @NotNull
+  ObjectNode subscriptionConfirmation() {
+    final ObjectNode node = message("SubscriptionConfirmation");
+    node.put("Message", "You have chosen to subscribe to the topic " + TOPIC_ARN);
+    node.put("SubscribeURL", getUrl(SUBSCRIBE_PATH));
+    node.put("Token", "2336412f37f");
+    return node;
+  }
+
+  /**
+   * Signs the message as SNS does, with SHA256withRSA for signature version 2 and SHA1withRSA for version 1
+   */
+  @NotNull
+  ObjectNode sign(@NotNull ObjectNode message, int signatureVersion) throws Exception {
+    message.put("SignatureVersion", String.valueOf(signatureVersion));
+    message.put("SigningCertURL", getUrl(CERT_PATH));
+    final Signature signature = Signature.getInstance(signatureVersion == 1 ? "SHA1withRSA" : "SHA256withRSA");
+    signature.initSign(myKey);
+    signature.update(SnsMessageVerifier.getStringToSign(message).getBytes(StandardCharsets.UTF_8));
+    message.put("Signature", Base64.getEncoder().encodeToString(signature.sign()));
+    return message;
+  }
+
+  void stop() {
+    myServer.stop(0);
+  }
+
+  @NotNull
+  private ObjectNode message(@NotNull String type) {
+    final ObjectNode node = myObjectMapper.createObjectNode();
+    node.put("Type", type);
+    node.put("MessageId", "22b80b92-fdea-4c2c-8f9d-bdfb0c7bf324");
+    node.put("TopicArn", TOPIC_ARN);
+    node.put("Timestamp", "2026-10-19T12:00:00.000Z");
+    return node;
+  }
+
+  @NotNull
+  private static byte[] readResource(@NotNull String name) throws IOException {
+    final InputStream input = SnsStandIn.class.getResourceAsStream("/sns/" + name);
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      int read;
+      while ((read = input.read(buffer)) > 0) out.write(buffer, 0, read);
+      return out.toByteArray();
+    } finally {
+      FileUtil.close(input);
+    }
+  }
+}